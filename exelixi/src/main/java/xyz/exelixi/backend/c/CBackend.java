@@ -33,6 +33,8 @@ package xyz.exelixi.backend.c;
 
 import com.google.auto.service.AutoService;
 import xyz.exelixi.backend.ExelixiBackend;
+import xyz.exelixi.backend.c.phases.ActorFusionPhase;
+import xyz.exelixi.backend.c.phases.GraphPartitioningPhase;
 
 /**
  * @author Simone Casale-Brunet
@@ -82,6 +84,7 @@ public class CBackend extends ExelixiBackend {
         addPhase(CalToAmPhase);
         addPhase(RemoveEmptyTransitionsPhase);
         addPhase(ReduceActorMachinePhase);
+        addPhase(new ActorFusionPhase());
         addPhase(CompositionEntitiesUniquePhase);
         addPhase(CompositionPhase);
         addPhase(InternalizeBuffersPhase);
@@ -89,6 +92,7 @@ public class CBackend extends ExelixiBackend {
 
         // Code generations
         addPhase(RemoveUnusedEntityDeclsPhase);
+        addPhase(new GraphPartitioningPhase());
         addPhase(PrintNetworkPhase);
         addPhase(new CBackendPhase());
     }
@@ -42,9 +42,18 @@ import se.lth.cs.tycho.phases.attributes.ActorMachineScopes;
 import se.lth.cs.tycho.phases.attributes.GlobalNames;
 import se.lth.cs.tycho.phases.attributes.Names;
 import se.lth.cs.tycho.phases.attributes.Types;
+import se.lth.cs.tycho.settings.Configuration;
 import xyz.exelixi.backend.c.codegen.*;
 
+import xyz.exelixi.utils.ChannelProfile;
+import xyz.exelixi.utils.ThreadMapping;
+
 import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
 
 import static org.multij.BindingKind.*;
 
@@ -75,6 +84,43 @@ public interface CBackendCore extends Closeable {
         emitter().close();
     }
 
+    @Binding(LAZY)
+    default Configuration configuration() {
+        return context().getConfiguration();
+    }
+
+    /**
+     * The channel profile of a previous execution, by target end name, or an empty map
+     */
+    @Binding(LAZY)
+    default Map<String, ChannelProfile.Entry> channelProfile() {
+        String path = configuration().get(CBackendPhase.channelProfile);
+        if (path.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        try {
+            return ChannelProfile.read(Paths.get(path));
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * The thread mapping file, if any
+     */
+    @Binding(LAZY)
+    default Optional<ThreadMapping> threadMapping() {
+        String path = configuration().get(CBackendPhase.mapping);
+        if (path.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(ThreadMapping.read(Paths.get(path)));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
     @Binding(LAZY)
     default Types types() {
         return context().getAttributeManager().getAttributeModule(Types.key, task());
@@ -137,9 +183,44 @@ public interface CBackendCore extends Closeable {
     Callables callables();
 
     @Binding(MODULE)
-    ExelixiBasicChannels channels();
+    ExelixiBasicChannels basicChannels();
+
+    @Binding(MODULE)
+    ExelixiLockFreeChannels lockFreeChannels();
+
+    default ExelixiChannels channels() {
+        if (configuration().get(CBackendPhase.channels).equals(CBackendPhase.LOCK_FREE_CHANNELS)) {
+            return lockFreeChannels();
+        } else {
+            return basicChannels();
+        }
+    }
 
     @Binding(MODULE)
     Preprocessor preprocessor();
 
+    @Binding(MODULE)
+    Partitioning partitioning();
+
+    @Binding(MODULE)
+    Scheduler scheduler();
+
+    @Binding(MODULE)
+    StaticClusters staticClusters();
+
+    @Binding(MODULE)
+    Profiler profiler();
+
+    @Binding(MODULE)
+    Batching batching();
+
+    @Binding(MODULE)
+    Placement placement();
+
+    @Binding(MODULE)
+    Vectorization vectorization();
+
+    @Binding(MODULE)
+    ChannelSpecialization channelSpecialization();
+
 }
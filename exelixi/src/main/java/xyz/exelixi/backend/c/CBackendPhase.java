@@ -7,13 +7,23 @@ import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
 import se.lth.cs.tycho.ir.network.Instance;
 import se.lth.cs.tycho.phases.Phase;
 import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.OnOffSetting;
+import se.lth.cs.tycho.settings.Setting;
+import se.lth.cs.tycho.settings.StringSetting;
 import xyz.exelixi.Settings;
 import xyz.exelixi.backend.c.codegen.Emitter;
+import xyz.exelixi.utils.ChannelProfile;
+import xyz.exelixi.utils.IntegerSetting;
+import xyz.exelixi.utils.ThreadMapping;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -24,6 +34,202 @@ import java.util.stream.Collectors;
  */
 public class CBackendPhase implements Phase {
 
+    /**
+     * Number of worker threads of the generated program
+     */
+    public static final Setting<Integer> threads = new IntegerSetting() {
+        @Override public String getKey() { return "c-threads"; }
+        @Override public String getDescription() { return "Number of threads among which the actor instances are partitioned"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 1; }
+    };
+
+    public static final String BASIC_CHANNELS = "basic";
+
+    public static final String LOCK_FREE_CHANNELS = "lock-free";
+
+    /**
+     * Channel implementation of the generated program
+     */
+    public static final Setting<String> channels = new StringSetting() {
+        @Override public String getKey() { return "c-channels"; }
+        @Override public String getDescription() { return "Channel implementation: \"" + BASIC_CHANNELS + "\" or \"" + LOCK_FREE_CHANNELS + "\" (single-producer/single-consumer with atomic indices)"; }
+        @Override public String defaultValue(Configuration configuration) { return BASIC_CHANNELS; }
+    };
+
+    /**
+     * Default channel buffer size
+     */
+    public static final Setting<Integer> bufferSize = new IntegerSetting() {
+        @Override public String getKey() { return "c-buffer-size"; }
+        @Override public String getDescription() { return "Default number of tokens of a channel buffer, rounded up to a power of two (overridden by the bufferSize connection attribute)"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 256; }
+    };
+
+    /**
+     * Broadcast channels
+     */
+    public static final Setting<Boolean> broadcast = new OnOffSetting() {
+        @Override public String getKey() { return "c-broadcast"; }
+        @Override public String getDescription() { return "The readers of an output port share a single buffer, each with its own read index"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return false; }
+    };
+
+    public static final String STDIO_IO = "stdio";
+
+    public static final String MMAP_IO = "mmap";
+
+    /**
+     * File I/O of the network ports
+     */
+    public static final Setting<String> io = new StringSetting() {
+        @Override public String getKey() { return "c-io"; }
+        @Override public String getDescription() { return "Network port file I/O: \"" + STDIO_IO + "\" or \"" + MMAP_IO + "\" (memory-mapped input files, block-buffered output files)"; }
+        @Override public String defaultValue(Configuration configuration) { return STDIO_IO; }
+    };
+
+    /**
+     * Block size of the network port file I/O
+     */
+    public static final Setting<Integer> ioBlockSize = new IntegerSetting() {
+        @Override public String getKey() { return "c-io-block-size"; }
+        @Override public String getDescription() { return "Size in bytes of the blocks in which the network files are read and written; the output files are written in blocks in \"" + MMAP_IO + "\" I/O only"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 1 << 20; }
+    };
+
+    public static final String ROUND_ROBIN_SCHEDULER = "round-robin";
+
+    public static final String DATA_DRIVEN_SCHEDULER = "data-driven";
+
+    public static final String WORK_STEALING_SCHEDULER = "work-stealing";
+
+    /**
+     * Actor scheduling of the generated program
+     */
+    public static final Setting<String> scheduler = new StringSetting() {
+        @Override public String getKey() { return "c-scheduler"; }
+        @Override public String getDescription() { return "Actor scheduling: \"" + ROUND_ROBIN_SCHEDULER + "\" (every actor on each sweep) or \"" + DATA_DRIVEN_SCHEDULER + "\" (ready list of the actors woken by channel operations, single thread) or \"" + WORK_STEALING_SCHEDULER + "\" (the woken actors executed by a pool of c-threads work-stealing workers)"; }
+        @Override public String defaultValue(Configuration configuration) { return ROUND_ROBIN_SCHEDULER; }
+    };
+
+    /**
+     * Static scheduling of the static rate sub-networks
+     */
+    public static final Setting<Boolean> staticClusters = new OnOffSetting() {
+        @Override public String getKey() { return "c-static-clusters"; }
+        @Override public String getDescription() { return "Execute the connected static rate (SDF/CSDF) instances with a compile-time schedule (ignored by the " + DATA_DRIVEN_SCHEDULER + " scheduler)"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return false; }
+    };
+
+    /**
+     * Instrumentation of the generated program
+     */
+    public static final Setting<Boolean> profile = new OnOffSetting() {
+        @Override public String getKey() { return "c-profile"; }
+        @Override public String getDescription() { return "Count the firings, idle calls and execution time of the actors and the high-water mark and producer stalls of the channels, and write a JSON report and a CSV channel profile at exit"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return false; }
+    };
+
+    /**
+     * Channel profile of a previous execution
+     */
+    public static final Setting<String> channelProfile = new StringSetting() {
+        @Override public String getKey() { return "c-channel-profile"; }
+        @Override public String getDescription() { return "CSV channel profile written by a program compiled with c-profile, used to size each channel buffer (small buffers for the channels that never hold more than " + ChannelProfile.SMALL_SIZE + " tokens, larger buffers for the channels that stalled their producer)"; }
+        @Override public String defaultValue(Configuration configuration) { return ""; }
+    };
+
+    /**
+     * Controller dispatch with computed gotos
+     */
+    public static final Setting<Boolean> computedGoto = new OnOffSetting() {
+        @Override public String getKey() { return "c-computed-goto"; }
+        @Override public String getDescription() { return "Resume the actor controllers with a computed goto on the saved label address when the C compiler supports labels as values (GCC, Clang)"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return true; }
+    };
+
+    /**
+     * Condition results kept during one controller invocation
+     */
+    public static final Setting<Boolean> conditionCache = new OnOffSetting() {
+        @Override public String getKey() { return "c-condition-cache"; }
+        @Override public String getDescription() { return "Evaluate the conditions tested by several controller states at most once between two transitions of an actor invocation"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return true; }
+    };
+
+    public static final String NO_BATCH = "none";
+
+    public static final String BUDGET_BATCH = "budget";
+
+    public static final String DRAIN_BATCH = "drain";
+
+    public static final String SPACE_BATCH = "space";
+
+    /**
+     * Batched firing of the actors
+     */
+    public static final Setting<String> firingBatch = new StringSetting() {
+        @Override public String getKey() { return "c-firing-batch"; }
+        @Override public String getDescription() { return "Invoke an actor again while it makes progress: \"" + NO_BATCH + "\" (once per schedule), \"" + BUDGET_BATCH + "\" (return to the scheduler after c-firing-budget firings), \"" + DRAIN_BATCH + "\" (until its inputs are drained or its outputs are full) or \"" + SPACE_BATCH + "\" (while its output channels are at most half full)"; }
+        @Override public String defaultValue(Configuration configuration) { return NO_BATCH; }
+    };
+
+    /**
+     * Firing budget of an invocation
+     */
+    public static final Setting<Integer> firingBudget = new IntegerSetting() {
+        @Override public String getKey() { return "c-firing-budget"; }
+        @Override public String getDescription() { return "Maximum number of transitions an actor fires in one invocation with \"" + BUDGET_BATCH + "\" batching"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 16; }
+    };
+
+    /**
+     * Explicit vectorization of the repeated token copies
+     */
+    public static final Setting<Boolean> simd = new OnOffSetting() {
+        @Override public String getKey() { return "c-simd"; }
+        @Override public String getDescription() { return "Mark the token copies of the repeated input and output patterns with OpenMP simd directives, and compile with -fopenmp-simd"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return false; }
+    };
+
+    /**
+     * Channel operations specialized per port
+     */
+    public static final Setting<Boolean> specializeChannels = new OnOffSetting() {
+        @Override public String getKey() { return "c-specialize-channels"; }
+        @Override public String getDescription() { return "Generate the channel operations of an actor with a constant fan-out count and buffer mask when they are the same for every instance of the actor"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return true; }
+    };
+
+    /**
+     * Thread mapping file
+     */
+    public static final Setting<String> mapping = new StringSetting() {
+        @Override public String getKey() { return "c-mapping"; }
+        @Override public String getDescription() { return "Mapping file that assigns the instances to pinned threads, and the threads to CPU sets and NUMA nodes (replaces c-threads)"; }
+        @Override public String defaultValue(Configuration configuration) { return ""; }
+    };
+
+    private static List<Setting<?>> settings = new ArrayList<>();
+    static {
+        settings.add(threads);
+        settings.add(channels);
+        settings.add(bufferSize);
+        settings.add(broadcast);
+        settings.add(io);
+        settings.add(ioBlockSize);
+        settings.add(scheduler);
+        settings.add(staticClusters);
+        settings.add(profile);
+        settings.add(channelProfile);
+        settings.add(computedGoto);
+        settings.add(conditionCache);
+        settings.add(firingBatch);
+        settings.add(firingBudget);
+        settings.add(simd);
+        settings.add(specializeChannels);
+        settings.add(mapping);
+    }
+
     /**
      * Source path
      */
@@ -49,6 +255,72 @@ public class CBackendPhase implements Phase {
     public CompilationTask execute(CompilationTask task, Context context) {
         String targetName = task.getIdentifier().getLast().toString();
 
+        String channelsKind = context.getConfiguration().get(channels);
+        if (!channelsKind.equals(BASIC_CHANNELS) && !channelsKind.equals(LOCK_FREE_CHANNELS)) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Unknown channel implementation \"" + channelsKind + "\""));
+            return task;
+        }
+
+        String ioKind = context.getConfiguration().get(io);
+        if (!ioKind.equals(STDIO_IO) && !ioKind.equals(MMAP_IO)) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Unknown network port I/O \"" + ioKind + "\""));
+            return task;
+        }
+
+        String schedulerKind = context.getConfiguration().get(scheduler);
+        if (!schedulerKind.equals(ROUND_ROBIN_SCHEDULER) && !schedulerKind.equals(DATA_DRIVEN_SCHEDULER) && !schedulerKind.equals(WORK_STEALING_SCHEDULER)) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Unknown scheduler \"" + schedulerKind + "\""));
+            return task;
+        }
+        if (schedulerKind.equals(DATA_DRIVEN_SCHEDULER) && context.getConfiguration().get(threads) > 1) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "The " + DATA_DRIVEN_SCHEDULER + " scheduler requires a single thread"));
+            return task;
+        }
+        if (schedulerKind.equals(WORK_STEALING_SCHEDULER) && context.getConfiguration().get(threads) < 2) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "The " + WORK_STEALING_SCHEDULER + " scheduler requires at least two threads"));
+            return task;
+        }
+
+        String batchKind = context.getConfiguration().get(firingBatch);
+        if (!batchKind.equals(NO_BATCH) && !batchKind.equals(BUDGET_BATCH) && !batchKind.equals(DRAIN_BATCH) && !batchKind.equals(SPACE_BATCH)) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Unknown firing batch \"" + batchKind + "\""));
+            return task;
+        }
+
+        String mappingPath = context.getConfiguration().get(mapping);
+        if (!mappingPath.isEmpty()) {
+            ThreadMapping threadMapping;
+            try {
+                threadMapping = ThreadMapping.read(Paths.get(mappingPath));
+            } catch (IOException e) {
+                context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Can not read the thread mapping: " + e.getMessage()));
+                return task;
+            }
+            Set<String> instanceNames = task.getNetwork().getInstances().stream()
+                    .map(Instance::getInstanceName)
+                    .collect(Collectors.toSet());
+            boolean unknown = false;
+            for (String name : threadMapping.getInstanceNames()) {
+                if (!instanceNames.contains(name)) {
+                    context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "The thread mapping maps the unknown instance \"" + name + "\""));
+                    unknown = true;
+                }
+            }
+            if (unknown) {
+                return task;
+            }
+            if (!schedulerKind.equals(ROUND_ROBIN_SCHEDULER)) {
+                context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "A thread mapping requires the " + ROUND_ROBIN_SCHEDULER + " scheduler"));
+                return task;
+            }
+        }
+
+        String channelProfilePath = context.getConfiguration().get(channelProfile);
+        if (!channelProfilePath.isEmpty() && !Files.isReadable(Paths.get(channelProfilePath))) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Can not read the channel profile \"" + channelProfilePath + "\""));
+            return task;
+        }
+
         // -- Create src and include directories
         targetPath = context.getConfiguration().get(Settings.targetPath);
         srcPath = createDirectory(targetPath, "src");
@@ -205,4 +477,9 @@ public class CBackendPhase implements Phase {
                 .bind("emitter").to(new Emitter(path))
                 .instance();
     }
+
+    @Override
+    public List<Setting<?>> getPhaseSettings() {
+        return settings;
+    }
 }
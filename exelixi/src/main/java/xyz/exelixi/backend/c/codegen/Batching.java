@@ -0,0 +1,132 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+
+import java.util.List;
+
+/**
+ * Batched firing: an instance is invoked again as long as it makes progress, instead of returning to the
+ * scheduler after its first wait. The batch is bounded by the progress of the instance, or by the room left
+ * in its output channels. In the budget mode the controller itself returns to the scheduler after a number
+ * of firings, even if it could fire again.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface Batching {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    default String mode() {
+        return backend().configuration().get(CBackendPhase.firingBatch);
+    }
+
+    default boolean isEnabled() {
+        return !mode().equals(CBackendPhase.NO_BATCH) && !mode().equals(CBackendPhase.BUDGET_BATCH);
+    }
+
+    /**
+     * The number of transitions a controller fires before it saves its state and returns
+     *
+     * @return the budget, or 0 if the controllers only return when they wait
+     */
+    default int firingBudget() {
+        if (mode().equals(CBackendPhase.BUDGET_BATCH)) {
+            return Math.max(1, backend().configuration().get(CBackendPhase.firingBudget));
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * The expression that executes one batch of an instance
+     *
+     * @param instance the instance
+     * @return the C expression, true if the instance has made progress
+     */
+    default String runCall(Instance instance) {
+        if (isEnabled()) {
+            return String.format("%s_batch()", instance.getInstanceName());
+        } else {
+            return String.format("%s_run(&%s)", instance.getEntityName().getLast(), instance.getInstanceName());
+        }
+    }
+
+    /**
+     * Emit the batch function of every instance
+     *
+     * @param network the network
+     */
+    default void declareBatches(Network network) {
+        if (!isEnabled()) {
+            return;
+        }
+        emitter().emit("// -- Batches");
+        for (Instance instance : network.getInstances()) {
+            String name = instance.getInstanceName();
+            String run = String.format("%s_run(&%s)", instance.getEntityName().getLast(), name);
+            if (mode().equals(CBackendPhase.SPACE_BATCH)) {
+                declareRoom(instance);
+            }
+            emitter().emit("static _Bool %s_batch(void) {", name);
+            emitter().increaseIndentation();
+            emitter().emit("if (!%s) {", run);
+            emitter().increaseIndentation();
+            emitter().emit("return false;");
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+            switch (mode()) {
+                case CBackendPhase.DRAIN_BATCH:
+                    emitter().emit("while (%s);", run);
+                    break;
+                case CBackendPhase.SPACE_BATCH:
+                    emitter().emit("while (%s_has_room() && %s);", name, run);
+                    break;
+            }
+            emitter().emit("return true;");
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+            emitter().emit("");
+        }
+    }
+
+    /**
+     * Emit the test of the size-aware batch: every output channel of the instance is at most half full, so
+     * that the consumers run before the producer fills their channels.
+     *
+     * @param instance the instance
+     */
+    default void declareRoom(Instance instance) {
+        String name = instance.getInstanceName();
+        List<PortDecl> outputs = backend().globalNames().entityDecl(instance.getEntityName(), true).getEntity().getOutputPorts();
+        emitter().emit("static inline _Bool %s_has_room(void) {", name);
+        emitter().increaseIndentation();
+        for (PortDecl port : outputs) {
+            String type = backend().code().type(backend().types().declaredPortType(port));
+            emitter().emit("for (size_t c = 0; c < %s.%s_count; c++) {", name, port.getName());
+            emitter().increaseIndentation();
+            emitter().emit("if (channel_space_%s(%s.%s_channels[c]) * 2 <= %2$s.%3$s_channels[c]->mask + 1) {", type, name, port.getName());
+            emitter().increaseIndentation();
+            emitter().emit("return false;");
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+        }
+        emitter().emit("return true;");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+}
@@ -41,6 +41,8 @@ public interface CMakeLists {
         emitter().emit("# -- Includes");
         emitter().emit("include_directories(./include)");
         emitter().emit("");
+        backend().profiler().cmakeOption();
+        backend().vectorization().cmakeOption();
         emitter().emit("# -- Source sub-directory");
         emitter().emit("add_subdirectory(src)");
     }
@@ -67,6 +69,13 @@ public interface CMakeLists {
         emitter().emit("# -- Add executable");
         emitter().emit("add_executable(%s ${filenames})", targetName);
         emitter().emit("");
+
+        if (backend().partitioning().isMultiThreaded()) {
+            emitter().emit("# -- Threads");
+            emitter().emit("find_package(Threads REQUIRED)");
+            emitter().emit("target_link_libraries(%s ${CMAKE_THREAD_LIBS_INIT})", targetName);
+            emitter().emit("");
+        }
     }
 
 }
@@ -0,0 +1,167 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.IRNode;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+
+import java.util.*;
+
+import static org.multij.BindingKind.LAZY;
+
+/**
+ * Channel operations specialized at code generation. When every instance of an actor has the same number
+ * of readers on an output port, the fan-out count is a constant of the actor code, and when every instance
+ * reads an input port from a buffer of the same size, the buffer mask is a constant. The C compiler then
+ * unrolls the fan-out loops of the inlined channel functions and folds the index arithmetic.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface ChannelSpecialization {
+    @Binding
+    CBackendCore backend();
+
+    default boolean isEnabled() {
+        return backend().configuration().get(CBackendPhase.specializeChannels);
+    }
+
+    /**
+     * The number of readers of every output port, by actor and port name, for the ports that have the same
+     * number of readers in every instance of the actor
+     */
+    @Binding(LAZY)
+    default Map<String, Map<String, Integer>> fanOuts() {
+        Network network = backend().task().getNetwork();
+        Map<Connection.End, Integer> readers = new HashMap<>();
+        for (Connection connection : network.getConnections()) {
+            readers.merge(connection.getSource(), 1, Integer::sum);
+        }
+        Map<String, Map<String, Set<Integer>>> counts = new HashMap<>();
+        for (Instance instance : network.getInstances()) {
+            GlobalEntityDecl entityDecl = backend().globalNames().entityDecl(instance.getEntityName(), true);
+            for (PortDecl port : entityDecl.getEntity().getOutputPorts()) {
+                Connection.End end = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
+                counts.computeIfAbsent(entityDecl.getName(), name -> new HashMap<>())
+                        .computeIfAbsent(port.getName(), name -> new HashSet<>())
+                        .add(readers.getOrDefault(end, 0));
+            }
+        }
+        return uniform(counts);
+    }
+
+    /**
+     * The buffer size of every input port, by actor and port name, for the ports that have the same buffer
+     * size in every instance of the actor
+     */
+    @Binding(LAZY)
+    default Map<String, Map<String, Integer>> bufferSizes() {
+        Network network = backend().task().getNetwork();
+        Map<Connection.End, Connection> connections = new HashMap<>();
+        Map<Connection.End, List<Connection.End>> readers = new HashMap<>();
+        for (Connection connection : network.getConnections()) {
+            connections.put(connection.getTarget(), connection);
+            readers.computeIfAbsent(connection.getSource(), end -> new ArrayList<>()).add(connection.getTarget());
+        }
+        boolean broadcast = backend().configuration().get(CBackendPhase.broadcast);
+        Map<String, Map<String, Set<Integer>>> sizes = new HashMap<>();
+        for (Instance instance : network.getInstances()) {
+            GlobalEntityDecl entityDecl = backend().globalNames().entityDecl(instance.getEntityName(), true);
+            for (PortDecl port : entityDecl.getEntity().getInputPorts()) {
+                Connection.End end = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
+                Connection connection = connections.get(end);
+                int size = backend().mainNetwork().channelSize(end, connection);
+                if (broadcast && connection != null && readers.get(connection.getSource()).size() > 1) {
+                    // -- the readers of a broadcast share the largest buffer of the readers of the same type
+                    String type = tokenType(end);
+                    size = readers.get(connection.getSource()).stream()
+                            .filter(reader -> tokenType(reader).equals(type))
+                            .mapToInt(reader -> backend().mainNetwork().channelSize(reader, connections.get(reader)))
+                            .max().orElse(size);
+                }
+                sizes.computeIfAbsent(entityDecl.getName(), name -> new HashMap<>())
+                        .computeIfAbsent(port.getName(), name -> new HashSet<>())
+                        .add(size);
+            }
+        }
+        return uniform(sizes);
+    }
+
+    default Map<String, Map<String, Integer>> uniform(Map<String, Map<String, Set<Integer>>> values) {
+        Map<String, Map<String, Integer>> result = new HashMap<>();
+        values.forEach((entity, ports) -> ports.forEach((port, set) -> {
+            if (set.size() == 1) {
+                result.computeIfAbsent(entity, name -> new HashMap<>()).put(port, set.iterator().next());
+            }
+        }));
+        return result;
+    }
+
+    default String tokenType(Connection.End end) {
+        Network network = backend().task().getNetwork();
+        List<PortDecl> ports;
+        if (end.getInstance().isPresent()) {
+            Instance instance = network.getInstances().stream()
+                    .filter(inst -> inst.getInstanceName().equals(end.getInstance().get()))
+                    .findFirst().get();
+            ports = backend().globalNames().entityDecl(instance.getEntityName(), true).getEntity().getInputPorts();
+        } else {
+            ports = network.getOutputPorts();
+        }
+        return ports.stream()
+                .filter(port -> port.getName().equals(end.getPort()))
+                .map(port -> backend().code().type(backend().types().declaredPortType(port)))
+                .findFirst().orElse("");
+    }
+
+    /**
+     * The name of the actor that uses a port
+     */
+    default Optional<String> entityName(IRNode node) {
+        for (IRNode parent = node; parent != null; parent = backend().tree().parent(parent)) {
+            if (parent instanceof GlobalEntityDecl) {
+                return Optional.of(((GlobalEntityDecl) parent).getName());
+            }
+        }
+        return Optional.empty();
+    }
+
+    default Optional<Integer> lookup(Map<String, Map<String, Integer>> values, Port port) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        return entityName(port).map(values::get).map(ports -> ports.get(port.getName()));
+    }
+
+    /**
+     * The number of readers of an output port of the actor being generated
+     *
+     * @param port the output port
+     * @return a constant, or the count of the actor state
+     */
+    default String count(Port port) {
+        return lookup(fanOuts(), port)
+                .map(count -> Integer.toString(count))
+                .orElse(String.format("self->%s_count", port.getName()));
+    }
+
+    /**
+     * The buffer mask of an input port of the actor being generated
+     *
+     * @param port the input port
+     * @return a constant, or the mask of the channel
+     */
+    default String mask(Port port) {
+        return lookup(bufferSizes(), port)
+                .map(size -> Integer.toString(size - 1))
+                .orElse(String.format("self->%s_channel->mask", port.getName()));
+    }
+
+}
@@ -3,6 +3,7 @@ package xyz.exelixi.backend.c.codegen;
 import org.multij.Binding;
 import org.multij.Module;
 import se.lth.cs.tycho.ir.Generator;
+import se.lth.cs.tycho.ir.Port;
 import se.lth.cs.tycho.ir.decl.ClosureVarDecl;
 import se.lth.cs.tycho.ir.decl.GeneratorVarDecl;
 import se.lth.cs.tycho.ir.decl.VarDecl;
@@ -21,6 +22,7 @@ import xyz.exelixi.backend.c.CBackendCore;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.OptionalInt;
 import java.util.stream.Collectors;
 
 import static org.multij.BindingKind.MODULE;
@@ -46,6 +48,10 @@ public interface Code {
         return backend().names();
     }
 
+    default String mask(Port port) {
+        return backend().channelSpecialization().mask(port);
+    }
+
     void assign(Type type, String lvalue, Expression expr);
 
     default void assign(RefType type, String lvalue, Expression expr) {
@@ -89,10 +95,10 @@ public interface Code {
         Type portType = types().portType(input.getPort());
         String tmp = variables().generateTemp();
         if (input.getOffset() == 0) {
-            emitter().emit("%s = channel_peek_first_%s(self->%s_channel);", lvalue, type(portType), input.getPort().getName());
+            emitter().emit("%s = channel_peek_first_masked_%s(self->%s_channel, %s);", lvalue, type(portType), input.getPort().getName(), mask(input.getPort()));
         } else {
             emitter().emit("%s;", declaration(portType, tmp));
-            emitter().emit("channel_peek_%s(self->%s_channel, %d, 1, &%s);", type(portType), input.getPort().getName(), input.getOffset(), tmp);
+            emitter().emit("channel_peek_masked_%s(self->%s_channel, %d, 1, &%s, %s);", type(portType), input.getPort().getName(), input.getOffset(), tmp, mask(input.getPort()));
             emitter().emit("%s = %s;", lvalue, tmp); // should handle some discrepancies between port type and variable type.
         }
     }
@@ -106,7 +112,77 @@ public interface Code {
         assert input.getPatternLength() == 1; // only with one variable
         assert input.getOffset() == 0; // and that variable is therefore the first
         Type portType = types().portType(input.getPort());
-        emitter().emit("channel_peek_%s(self->%s_channel, 0, %d, (%1$s*) &%s);", type(portType), input.getPort().getName(), input.getRepeat(), lvalue);
+        if (type(type.getElementType()).equals(type(portType))) {
+            emitter().emit("channel_peek_masked_%s(self->%s_channel, 0, %d, %s, %s);", type(portType), input.getPort().getName(), input.getRepeat(), lvalue, mask(input.getPort()));
+        } else {
+            // -- peek the tokens in an aligned scratch buffer and convert them in a vectorizable loop
+            throughScratch(portType, Integer.toString(input.getRepeat()), OptionalInt.of(input.getRepeat()), (buffer, first, tokens) -> {
+                emitter().emit("channel_peek_masked_%s(self->%s_channel, %s, %s, %s, %s);", type(portType), input.getPort().getName(), first, tokens, buffer, mask(input.getPort()));
+                backend().vectorization().copy(type(type.getElementType()), String.format("&%s[%s]", lvalue, first), type(portType), buffer, tokens);
+            });
+        }
+    }
+
+    /**
+     * The conversion of the tokens of a chunk of a repeated pattern
+     */
+    @FunctionalInterface
+    interface ScratchChunk {
+        /**
+         * @param buffer the scratch buffer
+         * @param first  the index of the first token of the chunk in the pattern
+         * @param tokens the number of tokens of the chunk
+         */
+        void emit(String buffer, String first, String tokens);
+    }
+
+    /**
+     * Emit the conversion of a repeated pattern through an aligned scratch buffer. The buffer is sized
+     * statically, to the repeat count if it is known and fits the scratch size, and otherwise to the scratch
+     * size, the pattern being converted in chunks.
+     *
+     * @param tokenType the token type of the buffer
+     * @param repeat    the repeat count
+     * @param constant  the repeat count, if it is known at code generation
+     * @param chunk     the conversion of a chunk
+     */
+    default void throughScratch(Type tokenType, String repeat, OptionalInt constant, ScratchChunk chunk) {
+        int scratch = backend().vectorization().scratchTokens();
+        String buffer = variables().generateTemp();
+        emitter().emit("{");
+        emitter().increaseIndentation();
+        if (constant.isPresent() && constant.getAsInt() <= scratch) {
+            emitter().emit("%s[%d] SIMD_ALIGNED;", declaration(tokenType, buffer), Math.max(1, constant.getAsInt()));
+            chunk.emit(buffer, "0", repeat);
+        } else {
+            String total = variables().generateTemp();
+            String first = variables().generateTemp();
+            String tokens = variables().generateTemp();
+            emitter().emit("%s[%d] SIMD_ALIGNED;", declaration(tokenType, buffer), scratch);
+            emitter().emit("size_t %s = %s;", total, repeat);
+            emitter().emit("for (size_t %1$s = 0; %1$s < %2$s; %1$s += %3$d) {", first, total, scratch);
+            emitter().increaseIndentation();
+            emitter().emit("size_t %s = %s - %s < %d ? %2$s - %3$s : %4$d;", tokens, total, first, scratch);
+            chunk.emit(buffer, first, tokens);
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+        }
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+    }
+
+    /**
+     * The repeat count of an output pattern, if it is an integer literal
+     */
+    default OptionalInt constantRepeat(Expression repeat) {
+        if (repeat instanceof ExprLiteral && ((ExprLiteral) repeat).getKind() == ExprLiteral.Kind.Integer) {
+            try {
+                return OptionalInt.of(Integer.decode(((ExprLiteral) repeat).getText()));
+            } catch (NumberFormatException e) {
+                return OptionalInt.empty();
+            }
+        }
+        return OptionalInt.empty();
     }
 
     default void assignList(ListType type, String lvalue, ExprVariable var) {
@@ -543,30 +619,43 @@ public interface Code {
     void execute(Statement stmt);
 
     default void execute(StmtConsume consume) {
-        emitter().emit("channel_consume_%s(self->%s_channel, %d);", type(types().portType(consume.getPort())), consume.getPort().getName(), consume.getNumberOfTokens());
+        emitter().emit("channel_consume_masked_%s(self->%s_channel, %d, %s);", type(types().portType(consume.getPort())), consume.getPort().getName(), consume.getNumberOfTokens(), mask(consume.getPort()));
     }
 
     default void execute(StmtWrite write) {
         String portName = write.getPort().getName();
+        String count = backend().channelSpecialization().count(write.getPort());
         if (write.getRepeatExpression() == null) {
             String portType = type(types().portType(write.getPort()));
             String tmp = variables().generateTemp();
             emitter().emit("%s;", declaration(types().portType(write.getPort()), tmp));
             for (Expression expr : write.getValues()) {
                 emitter().emit("%s = %s;", tmp, evaluate(expr));
-                emitter().emit("channel_write_one_%s(self->%s_channels, self->%2$s_count, %s);", portType, portName, tmp);
+                emitter().emit("channel_write_one_%s(self->%s_channels, %s, %s);", portType, portName, count, tmp);
             }
         } else if (write.getValues().size() == 1) {
+            Type valueType = types().type(write.getValues().get(0));
             String portType = type(types().portType(write.getPort()));
             String value = evaluate(write.getValues().get(0));
             String repeat = evaluate(write.getRepeatExpression());
-            String temp = variables().generateTemp();
-            emitter().emit("for (size_t %1$s = 0; %1$s < %2$s; %1$s++) {", temp, repeat);
-            emitter().increaseIndentation();
-            emitter().emit("channel_write_one_%1$s(self->%2$s_channels, self->%2$s_count, %3$s[%4$s]);", portType, portName, value, temp);
-            emitter().decreaseIndentation();
-            emitter().emit("}");
-//			emitter().emit("channel_write_%s(self->%s_channels, self->%2$s_count, %s, %s);", portType, portName, value, evaluate(write.getRepeatExpression()));
+            if (valueType instanceof ListType && type(((ListType) valueType).getElementType()).equals(portType)) {
+                // -- the list has the layout of the channel tokens: bulk copy
+                emitter().emit("channel_write_%s(self->%s_channels, %s, %s, %s);", portType, portName, count, value, repeat);
+            } else if (valueType instanceof ListType) {
+                // -- convert the list in an aligned scratch buffer with a vectorizable loop, then bulk copy
+                String elementType = type(((ListType) valueType).getElementType());
+                throughScratch(types().portType(write.getPort()), repeat, constantRepeat(write.getRepeatExpression()), (buffer, first, tokens) -> {
+                    backend().vectorization().copy(portType, buffer, elementType, String.format("&%s[%s]", value, first), tokens);
+                    emitter().emit("channel_write_%s(self->%s_channels, %s, %s, %s);", portType, portName, count, buffer, tokens);
+                });
+            } else {
+                String temp = variables().generateTemp();
+                emitter().emit("for (size_t %1$s = 0; %1$s < %2$s; %1$s++) {", temp, repeat);
+                emitter().increaseIndentation();
+                emitter().emit("channel_write_one_%1$s(self->%2$s_channels, %3$s, %4$s[%5$s]);", portType, portName, count, value, temp);
+                emitter().decreaseIndentation();
+                emitter().emit("}");
+            }
         } else {
             throw new Error("not implemented");
         }
@@ -586,7 +675,7 @@ public interface Code {
             Type t = types().declaredType(decl);
             String declarationName = variables().declarationName(decl);
             String d = declaration(t, declarationName);
-            emitter().emit("%s;", d);
+            emitter().emit("%s%s;", d, backend().vectorization().alignment(t));
             if (decl.getValue() != null) {
                 assign(t, declarationName, decl.getValue());
             }
@@ -2,9 +2,14 @@ package xyz.exelixi.backend.c.codegen;
 
 import org.multij.Binding;
 import org.multij.Module;
+import se.lth.cs.tycho.ir.Port;
 import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Condition;
+import se.lth.cs.tycho.ir.entity.am.PortCondition;
+import se.lth.cs.tycho.ir.entity.am.Transition;
 import se.lth.cs.tycho.ir.entity.am.ctrl.*;
 import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
 
 import java.util.*;
 
@@ -18,6 +23,23 @@ public interface Controllers {
     }
 
 
+    default boolean isComputedGoto() {
+        return backend().configuration().get(CBackendPhase.computedGoto);
+    }
+
+    /**
+     * Emit the feature check of the computed goto dispatch, in fifo.h
+     */
+    default void computedGotoCode() {
+        if (isComputedGoto()) {
+            emitter().emit("// CONTROLLER DISPATCH");
+            emitter().emit("#if (defined(__GNUC__) || defined(__clang__)) && !defined(EXELIXI_NO_COMPUTED_GOTO)");
+            emitter().emit("#define EXELIXI_COMPUTED_GOTO");
+            emitter().emit("#endif");
+            emitter().emit("");
+        }
+    }
+
     default void emitControllerPrototype(String name, ActorMachine actorMachine) {
         emitter().emit("_Bool %s_run(%1$s_state *self);", name);
     }
@@ -31,6 +53,16 @@ public interface Controllers {
         emitter().increaseIndentation();
 
         emitter().emit("_Bool progress = false;");
+        if (backend().batching().firingBudget() > 0) {
+            emitter().emit("int firings_left = %d;", backend().batching().firingBudget());
+        }
+        if (backend().scheduler().isDataDriven()) {
+            emitter().emit("_Bool blocked_on_space = false;");
+        }
+        backend().profiler().runBegin();
+        for (int condition : cachedConditions(actorMachine)) {
+            emitter().emit("_Bool condition_%d_known = false, condition_%1$d;", condition);
+        }
         emitter().emit("");
 
         jumpInto(waitTargets.stream().mapToInt(stateMap::get).collect(BitSet::new, BitSet::set, BitSet::or));
@@ -41,7 +73,7 @@ public interface Controllers {
             backend().scopes().init(actorMachine, instruction).stream().forEach(scope ->
                     emitter().emit("%s_init_scope_%d(self);", name, scope)
             );
-            emitInstruction(name, instruction, stateMap);
+            emitInstruction(name, actorMachine, instruction, stateMap);
         }
 
         emitter().decreaseIndentation();
@@ -57,46 +89,166 @@ public interface Controllers {
         return result;
     }
 
-    void emitInstruction(String name, Instruction instruction, Map<State, Integer> stateNumbers);
+    void emitInstruction(String name, ActorMachine actorMachine, Instruction instruction, Map<State, Integer> stateNumbers);
 
-    default void emitInstruction(String name, Test test, Map<State, Integer> stateNumbers) {
-        emitter().emit("if (%s_condition_%d(self)) {", name, test.condition());
+    default void emitInstruction(String name, ActorMachine actorMachine, Test test, Map<State, Integer> stateNumbers) {
+        if (cachedConditions(actorMachine).contains(test.condition())) {
+            emitter().emit("if (!condition_%d_known) {", test.condition());
+            emitter().emit("	condition_%d = %s_condition_%1$d(self);", test.condition(), name);
+            emitter().emit("	condition_%d_known = true;", test.condition());
+            emitter().emit("}");
+            emitter().emit("if (condition_%d) {", test.condition());
+        } else {
+            emitter().emit("if (%s_condition_%d(self)) {", name, test.condition());
+        }
         emitter().increaseIndentation();
         emitter().emit("goto S%d;", stateNumbers.get(test.targetTrue()));
         emitter().decreaseIndentation();
         emitter().emit("} else {");
         emitter().increaseIndentation();
+        if (backend().scheduler().isDataDriven() && isOutputCondition(actorMachine.getConditions().get(test.condition()))) {
+            emitter().emit("blocked_on_space = true;");
+        }
         emitter().emit("goto S%d;", stateNumbers.get(test.targetFalse()));
         emitter().decreaseIndentation();
         emitter().emit("}");
         emitter().emit("");
     }
 
-    default void emitInstruction(String name, Wait wait, Map<State, Integer> stateNumbers) {
-        emitter().emit("self->program_counter = %d;", stateNumbers.get(wait.target()));
-        emitter().emit("return progress;");
+    default void emitInstruction(String name, ActorMachine actorMachine, Wait wait, Map<State, Integer> stateNumbers) {
+        suspend(stateNumbers.get(wait.target()));
         emitter().emit("");
     }
 
-    default void emitInstruction(String name, Exec exec, Map<State, Integer> stateNumbers) {
+    /**
+     * Emit the return of the controller, which resumes at a state on its next invocation
+     *
+     * @param state the number of the state
+     */
+    default void suspend(int state) {
+        if (isComputedGoto()) {
+            emitter().emit("#ifdef EXELIXI_COMPUTED_GOTO");
+            emitter().emit("self->program_counter = &&S%d;", state);
+            emitter().emit("#else");
+            emitter().emit("self->program_counter = %d;", state);
+            emitter().emit("#endif");
+        } else {
+            emitter().emit("self->program_counter = %d;", state);
+        }
+        if (backend().scheduler().isDataDriven()) {
+            // -- the task is woken by a consume on its output channels only if it waits for space
+            emitter().emit("self->task->blocked_on_space = blocked_on_space;");
+        }
+        backend().profiler().runEnd();
+        emitter().emit("return progress;");
+    }
+
+    default void emitInstruction(String name, ActorMachine actorMachine, Exec exec, Map<State, Integer> stateNumbers) {
         emitter().emit("%s_transition_%d(self);", name, exec.transition());
+        Transition transition = actorMachine.getTransitions().get(exec.transition());
+        for (int condition : cachedConditions(actorMachine)) {
+            if (isInvalidatedBy(actorMachine.getConditions().get(condition), transition)) {
+                emitter().emit("condition_%d_known = false;", condition);
+            } else {
+                // -- a port condition the transition does not touch stays true, but a feedback channel may have made it true
+                emitter().emit("condition_%d_known = condition_%1$d_known && condition_%1$d;", condition);
+            }
+        }
         emitter().emit("progress = true;");
+        if (backend().scheduler().isDataDriven()) {
+            emitter().emit("blocked_on_space = false;");
+        }
+        if (backend().batching().firingBudget() > 0) {
+            // -- the budget is spent: return to the scheduler, which invokes the actor again since it made progress
+            emitter().emit("if (--firings_left == 0) {");
+            emitter().increaseIndentation();
+            suspend(stateNumbers.get(exec.target()));
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+        }
         emitter().emit("goto S%d;", stateNumbers.get(exec.target()));
         emitter().emit("");
     }
 
+    /**
+     * The conditions tested by more than one controller state, whose results are kept until a transition
+     * invalidates them. Within one invocation the tokens of an input port are only consumed, and the space
+     * of an output port only filled, by the actor itself, so a true port condition stays true until a
+     * transition uses the port.
+     *
+     * @param actorMachine the actor machine
+     * @return the condition numbers
+     */
+    default SortedSet<Integer> cachedConditions(ActorMachine actorMachine) {
+        SortedSet<Integer> result = new TreeSet<>();
+        if (!backend().configuration().get(CBackendPhase.conditionCache)) {
+            return result;
+        }
+        Set<Integer> tested = new HashSet<>();
+        for (State state : actorMachine.controller().getStateList()) {
+            Instruction instruction = state.getInstructions().get(0);
+            if (instruction.getKind() == InstructionKind.TEST) {
+                int condition = ((Test) instruction).condition();
+                if (!tested.add(condition)) {
+                    result.add(condition);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A transition may change the variables read by any guard
+     */
+    default boolean isInvalidatedBy(Condition condition, Transition transition) {
+        return true;
+    }
+
+    default boolean isInvalidatedBy(PortCondition condition, Transition transition) {
+        String port = condition.getPortName().getName();
+        Map<Port, Integer> rates = condition.isInputCondition() ? transition.getInputRates() : transition.getOutputRates();
+        return rates.keySet().stream().anyMatch(p -> p.getName().equals(port));
+    }
+
+    default boolean isOutputCondition(Condition condition) {
+        return false;
+    }
+
+    default boolean isOutputCondition(PortCondition condition) {
+        return !condition.isInputCondition();
+    }
+
+    /**
+     * Emit the jump to the state saved by the last wait. With computed gotos the saved state is the label
+     * address itself, and the initial null address falls through to the first state.
+     */
     default void jumpInto(BitSet waitTargets) {
+        if (isComputedGoto()) {
+            emitter().emit("#ifdef EXELIXI_COMPUTED_GOTO");
+            emitter().emit("if (self->program_counter != NULL) {");
+            emitter().emit("	goto *self->program_counter;");
+            emitter().emit("}");
+            emitter().emit("#else");
+        }
         emitter().emit("switch (self->program_counter) {");
         waitTargets.stream().forEach(s -> emitter().emit("case %d: goto S%1$d;", s));
         emitter().emit("}");
+        if (isComputedGoto()) {
+            emitter().emit("#endif");
+        }
         emitter().emit("");
     }
 
+    /**
+     * The states a controller resumes at: the targets of the waits, and with a firing budget the targets of
+     * the transitions
+     */
     default Set<State> collectWaitTargets(List<? extends State> stateList) {
+        boolean budget = backend().batching().firingBudget() > 0;
         Set<State> targets = new HashSet<>();
         for (State state : stateList) {
             Instruction i = state.getInstructions().get(0);
-            if (i.getKind() == InstructionKind.WAIT) {
+            if (i.getKind() == InstructionKind.WAIT || budget && i.getKind() == InstructionKind.EXEC) {
                 i.forEachTarget(targets::add);
             }
         }
@@ -4,6 +4,7 @@ import org.multij.Binding;
 import org.multij.Module;
 import se.lth.cs.tycho.types.Type;
 import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
 
 @Module
 public interface ExelixiBasicChannels extends ExelixiChannels {
@@ -14,24 +15,104 @@ public interface ExelixiBasicChannels extends ExelixiChannels {
         return backend().emitter();
     }
 
+    /**
+     * Channels are guarded by a mutex when the network is executed by several threads
+     */
+    default boolean isThreadSafe() {
+        return backend().partitioning().isMultiThreaded();
+    }
+
+    default void channelIncludes() {
+        if (isThreadSafe()) {
+            preprocessor().preprocessor_system_include("pthread");
+        }
+    }
+
+    default void shareChannel(String tokenType, String channel) {
+        if (isThreadSafe()) {
+            emitter().emit("%s.shared = true;", channel);
+        }
+    }
+
+    default void lock(String indent, String tokenType, String channel) {
+        if (isThreadSafe()) {
+            emitter().emit("%schannel_lock_%s(%s);", indent, tokenType, channel);
+        }
+    }
+
+    default void unlock(String indent, String tokenType, String channel) {
+        if (isThreadSafe()) {
+            emitter().emit("%schannel_unlock_%s(%s);", indent, tokenType, channel);
+        }
+    }
+
     default void channelCodeForType(Type type) {
         String tokenType = backend().code().type(type);
         emitter().emit("// CHANNEL %s", type);
         emitter().emit("typedef struct {");
         emitter().emit("	size_t head;");
         emitter().emit("	size_t tokens;");
+        emitter().emit("	size_t mask;");
         emitter().emit("	%s *buffer;", tokenType);
+        if (isThreadSafe()) {
+            emitter().emit("	pthread_mutex_t lock;");
+            emitter().emit("	_Bool shared;");
+        }
+        backend().scheduler().channelFields();
+        backend().profiler().channelFields();
         emitter().emit("} channel_%s;", tokenType);
         emitter().emit("");
 
-        emitter().emit("static inline _Bool channel_has_data_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
-        emitter().emit("	return channel->tokens >= tokens;");
+        if (isThreadSafe()) {
+            // -- only the channels crossing a thread boundary are marked as shared
+            emitter().emit("static inline void channel_lock_%s(channel_%1$s *channel) {", tokenType);
+            emitter().emit("	if (channel->shared) {");
+            emitter().emit("		pthread_mutex_lock(&channel->lock);");
+            emitter().emit("	}");
+            emitter().emit("}");
+            emitter().emit("");
+
+            emitter().emit("static inline void channel_unlock_%s(channel_%1$s *channel) {", tokenType);
+            emitter().emit("	if (channel->shared) {");
+            emitter().emit("		pthread_mutex_unlock(&channel->lock);");
+            emitter().emit("	}");
+            emitter().emit("}");
+            emitter().emit("");
+
+            emitter().emit("static inline _Bool channel_has_data_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
+            emitter().emit("	channel_lock_%s(channel);", tokenType);
+            emitter().emit("	_Bool result = channel->tokens >= tokens;");
+            emitter().emit("	channel_unlock_%s(channel);", tokenType);
+            emitter().emit("	return result;");
+            emitter().emit("}");
+            emitter().emit("");
+        } else {
+            emitter().emit("static inline _Bool channel_has_data_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
+            emitter().emit("	return channel->tokens >= tokens;");
+            emitter().emit("}");
+            emitter().emit("");
+        }
+
+        emitter().emit("static inline size_t channel_tokens_%s(channel_%1$s *channel) {", tokenType);
+        lock("	", tokenType, "channel");
+        emitter().emit("	size_t tokens = channel->tokens;");
+        unlock("	", tokenType, "channel");
+        emitter().emit("	return tokens;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline size_t channel_space_%s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	return channel->mask + 1 - channel_tokens_%s(channel);", tokenType);
         emitter().emit("}");
         emitter().emit("");
 
         emitter().emit("static inline _Bool channel_has_space_%s(channel_%1$s *channel_vector[], size_t channel_count, size_t tokens) {", tokenType);
         emitter().emit("	for (size_t i = 0; i < channel_count; i++) {");
-        emitter().emit("		if (BUFFER_SIZE - channel_vector[i]->tokens < tokens) {");
+        lock("		", tokenType, "channel_vector[i]");
+        emitter().emit("		size_t space = channel_vector[i]->mask + 1 - channel_vector[i]->tokens;");
+        unlock("		", tokenType, "channel_vector[i]");
+        emitter().emit("		if (space < tokens) {");
+        backend().profiler().stall("			", "channel_vector[i]");
         emitter().emit("			return false;");
         emitter().emit("		}");
         emitter().emit("	}");
@@ -39,67 +120,152 @@ public interface ExelixiBasicChannels extends ExelixiChannels {
         emitter().emit("}");
         emitter().emit("");
 
+        // -- readers attached to a broadcast buffer all have the same tail, the tokens are copied once per buffer
         emitter().emit("static inline void channel_write_one_%s(channel_%1$s *channel_vector[], size_t channel_count, %1$s data) {", tokenType);
+        emitter().emit("	%s *written = NULL;", tokenType);
         emitter().emit("	for (size_t c = 0; c < channel_count; c++) {");
         emitter().emit("		channel_%s *chan = channel_vector[c];", tokenType);
-        emitter().emit("		chan->buffer[(chan->head + chan->tokens) %% BUFFER_SIZE] = data;");
+        lock("		", tokenType, "chan");
+        emitter().emit("		if (chan->buffer != written) {");
+        emitter().emit("			chan->buffer[(chan->head + chan->tokens) & chan->mask] = data;");
+        emitter().emit("			written = chan->buffer;");
+        emitter().emit("		}");
         emitter().emit("		chan->tokens++;");
+        backend().profiler().highWater("		", "chan", "chan->tokens");
+        unlock("		", tokenType, "chan");
+        backend().scheduler().wakeReader("		", "chan");
         emitter().emit("	}");
         emitter().emit("}");
         emitter().emit("");
 
         emitter().emit("static inline void channel_write_%s(channel_%1$s *channel_vector[], size_t channel_count, %1$s *data, size_t tokens) {", tokenType);
+        emitter().emit("	%s *written = NULL;", tokenType);
         emitter().emit("	for (size_t c = 0; c < channel_count; c++) {");
         emitter().emit("		channel_%s *chan = channel_vector[c];", tokenType);
-        emitter().emit("		for (size_t i = 0; i < tokens; i++) {");
-        emitter().emit("			chan->buffer[(chan->head + chan->tokens) %% BUFFER_SIZE] = data[i];");
-        emitter().emit("			chan->tokens++;");
+        lock("		", tokenType, "chan");
+        emitter().emit("		if (chan->buffer != written) {");
+        emitter().emit("			size_t tail = (chan->head + chan->tokens) & chan->mask;");
+        emitter().emit("			size_t before_wrap = chan->mask + 1 - tail;");
+        emitter().emit("			if (tokens <= before_wrap) {");
+        emitter().emit("				memcpy(&chan->buffer[tail], data, tokens * sizeof(%s));", tokenType);
+        emitter().emit("			} else {");
+        emitter().emit("				memcpy(&chan->buffer[tail], data, before_wrap * sizeof(%s));", tokenType);
+        emitter().emit("				memcpy(chan->buffer, &data[before_wrap], (tokens - before_wrap) * sizeof(%s));", tokenType);
+        emitter().emit("			}");
+        emitter().emit("			written = chan->buffer;");
         emitter().emit("		}");
+        emitter().emit("		chan->tokens += tokens;");
+        backend().profiler().highWater("		", "chan", "chan->tokens");
+        unlock("		", tokenType, "chan");
+        backend().scheduler().wakeReader("		", "chan");
         emitter().emit("	}");
         emitter().emit("}");
         emitter().emit("");
 
-        emitter().emit("static inline %s channel_peek_first_%1$s(channel_%1$s *channel) {", tokenType);
+        // -- peeking does not need the lock: the head is owned by the reader, and the tokens were made
+        // -- visible by the channel_has_data test that precedes every read. The masked variants take the
+        // -- mask of the buffer as a parameter, a constant when the size is known at code generation.
+        emitter().emit("static inline %s channel_peek_first_masked_%1$s(channel_%1$s *channel, size_t mask) {", tokenType);
+        emitter().emit("	(void) mask;");
         emitter().emit("	return channel->buffer[channel->head];");
         emitter().emit("}");
         emitter().emit("");
 
-        emitter().emit("static inline void channel_peek_%s(channel_%1$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType);
-        emitter().emit("	%s *res = result;", tokenType);
-        emitter().emit("	for (size_t i = 0; i < tokens; i++) {");
-        emitter().emit("		res[i] = channel->buffer[(channel->head+i+offset) %% BUFFER_SIZE];");
+        emitter().emit("static inline %s channel_peek_first_%1$s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	return channel_peek_first_masked_%s(channel, channel->mask);", tokenType);
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_peek_masked_%s(channel_%1$s *channel, size_t offset, size_t tokens, %1$s *result, size_t mask) {", tokenType);
+        emitter().emit("	size_t first = (channel->head + offset) & mask;");
+        emitter().emit("	size_t before_wrap = mask + 1 - first;");
+        emitter().emit("	if (tokens <= before_wrap) {");
+        emitter().emit("		memcpy(result, &channel->buffer[first], tokens * sizeof(%s));", tokenType);
+        emitter().emit("	} else {");
+        emitter().emit("		memcpy(result, &channel->buffer[first], before_wrap * sizeof(%s));", tokenType);
+        emitter().emit("		memcpy(&result[before_wrap], channel->buffer, (tokens - before_wrap) * sizeof(%s));", tokenType);
         emitter().emit("	}");
         emitter().emit("}");
         emitter().emit("");
 
-        emitter().emit("static inline void channel_consume_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
+        emitter().emit("static inline void channel_peek_%s(channel_%1$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType);
+        emitter().emit("	channel_peek_masked_%s(channel, offset, tokens, result, channel->mask);", tokenType);
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_consume_masked_%s(channel_%1$s *channel, size_t tokens, size_t mask) {", tokenType);
+        lock("	", tokenType, "channel");
         emitter().emit("	channel->tokens -= tokens;");
-        emitter().emit("	channel->head = (channel->head + tokens) %% BUFFER_SIZE;");
+        emitter().emit("	channel->head = (channel->head + tokens) & mask;");
+        unlock("	", tokenType, "channel");
+        backend().scheduler().wakeWriter("	", "channel");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_consume_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
+        emitter().emit("	channel_consume_masked_%s(channel, tokens, channel->mask);", tokenType);
         emitter().emit("}");
         emitter().emit("");
 
-        emitter().emit("static void channel_create_%1$s(channel_%1$s *channel) {", tokenType);
-        emitter().emit("	%s *buffer = malloc(sizeof(%1$s)*BUFFER_SIZE);", tokenType);
+        emitter().emit("static void channel_create_%1$s(channel_%1$s *channel, size_t size) {", tokenType);
+        emitter().emit("	%s *buffer;", tokenType);
+        backend().placement().allocateBuffer("	", "buffer", tokenType, "size");
         emitter().emit("	channel->head = 0;");
+        emitter().emit("	channel->mask = size - 1;");
         emitter().emit("	channel->tokens = 0;");
         emitter().emit("	channel->buffer = buffer;");
+        if (isThreadSafe()) {
+            emitter().emit("	pthread_mutex_init(&channel->lock, NULL);");
+            emitter().emit("	channel->shared = false;");
+        }
+        backend().scheduler().initChannelFields("	", "channel");
+        backend().profiler().initChannelFields("	", "channel");
         emitter().emit("}");
         emitter().emit("");
 
 
         emitter().emit("static void channel_destroy_%s(channel_%1$s *channel) {", tokenType);
         emitter().emit("	free(channel->buffer);");
+        if (isThreadSafe()) {
+            emitter().emit("	pthread_mutex_destroy(&channel->lock);");
+        }
+        emitter().emit("}");
+        emitter().emit("");
+
+        // -- broadcast: a reader attached to the buffer of another reader of the same output port
+        emitter().emit("static void channel_attach_%1$s(channel_%1$s *channel, channel_%1$s *owner) {", tokenType);
+        emitter().emit("	channel->head = 0;");
+        emitter().emit("	channel->mask = owner->mask;");
+        emitter().emit("	channel->tokens = 0;");
+        emitter().emit("	channel->buffer = owner->buffer;");
+        if (isThreadSafe()) {
+            emitter().emit("	pthread_mutex_init(&channel->lock, NULL);");
+            emitter().emit("	channel->shared = false;");
+        }
+        backend().scheduler().initChannelFields("	", "channel");
+        backend().profiler().initChannelFields("	", "channel");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void channel_detach_%s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	channel->buffer = NULL;");
+        if (isThreadSafe()) {
+            emitter().emit("	pthread_mutex_destroy(&channel->lock);");
+        }
         emitter().emit("}");
         emitter().emit("");
     }
 
     default void inputActorCodeForType(Type type) {
         String tokenType = backend().code().type(type);
+        int blockSize = backend().configuration().get(CBackendPhase.ioBlockSize);
 
         emitter().emit("typedef struct {");
         emitter().emit("	size_t channelc;");
         emitter().emit("	channel_%s **channelv;", tokenType);
         emitter().emit("	FILE *stream;");
+        emitter().emit("	%s *block;", tokenType);
+        emitter().emit("	size_t capacity;");
         emitter().emit("} input_actor_%s;", tokenType);
         emitter().emit("");
 
@@ -108,11 +274,15 @@ public interface ExelixiBasicChannels extends ExelixiChannels {
         emitter().emit("    actor->channelv = channel_vector;");
         emitter().emit("    actor->channelc = channel_count;");
         emitter().emit("    actor->stream = stream;");
+        // -- the tokens are read in blocks of a fixed size, the free space of a channel can be too large for the stack
+        emitter().emit("    actor->capacity = %d / sizeof(%s) > 0 ? %1$d / sizeof(%2$s) : 1;", blockSize, tokenType);
+        emitter().emit("    actor->block = malloc(sizeof(%s) * actor->capacity);", tokenType);
         emitter().emit("    return actor;");
         emitter().emit("}");
         emitter().emit("");
 
         emitter().emit("static void input_actor_destroy_%s(input_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    free(actor->block);");
         emitter().emit("    free(actor);");
         emitter().emit("}");
         emitter().emit("");
@@ -120,14 +290,18 @@ public interface ExelixiBasicChannels extends ExelixiChannels {
         emitter().emit("static _Bool input_actor_run_%s(input_actor_%1$s *actor) {", tokenType);
         emitter().emit("    size_t tokens = SIZE_MAX;");
         emitter().emit("    for (size_t i = 0; i < actor->channelc; i++) {");
-        emitter().emit("        size_t s = BUFFER_SIZE - actor->channelv[i]->tokens;");
+        lock("        ", tokenType, "actor->channelv[i]");
+        emitter().emit("        size_t s = actor->channelv[i]->mask + 1 - actor->channelv[i]->tokens;");
+        unlock("        ", tokenType, "actor->channelv[i]");
         emitter().emit("        tokens = s < tokens ? s : tokens;");
         emitter().emit("    }");
+        emitter().emit("    if (tokens > actor->capacity) {");
+        emitter().emit("        tokens = actor->capacity;");
+        emitter().emit("    }");
         emitter().emit("    if (tokens > 0) {");
-        emitter().emit("        %s buf[tokens];", tokenType);
-        emitter().emit("        tokens = fread(buf, sizeof(%s), tokens, actor->stream);", tokenType);
+        emitter().emit("        tokens = fread(actor->block, sizeof(%s), tokens, actor->stream);", tokenType);
         emitter().emit("        if (tokens > 0) {");
-        emitter().emit("            channel_write_%s(actor->channelv, actor->channelc, buf, tokens);", tokenType);
+        emitter().emit("            channel_write_%s(actor->channelv, actor->channelc, actor->block, tokens);", tokenType);
         emitter().emit("            return true;");
         emitter().emit("        } else {");
         emitter().emit("            return false;");
@@ -161,23 +335,23 @@ public interface ExelixiBasicChannels extends ExelixiChannels {
         emitter().emit("}");
         emitter().emit("");
 
+        outputActorWriteCode(tokenType);
+
+        // -- the head is owned by the reader, only the token count needs the lock
         emitter().emit("static _Bool output_actor_run_%s(output_actor_%1$s* actor) {", tokenType);
         emitter().emit("    channel_%s *channel = actor->channel;", tokenType);
-        emitter().emit("    if (channel->tokens > 0) {");
-        emitter().emit("        size_t wrap_or_end = channel->head + channel->tokens;");
-        emitter().emit("        if (wrap_or_end > BUFFER_SIZE) {");
-        emitter().emit("            wrap_or_end = BUFFER_SIZE;");
-        emitter().emit("        }");
-        emitter().emit("        size_t tokens_before_wrap = wrap_or_end - channel->head;");
-        emitter().emit("        fwrite(&channel->buffer[channel->head], sizeof(%s), tokens_before_wrap, actor->stream);", tokenType);
-        emitter().emit("");
-        emitter().emit("        size_t tokens_after_wrap = channel->tokens - tokens_before_wrap;");
-        emitter().emit("        if (tokens_after_wrap > 0) {");
-        emitter().emit("            fwrite(&channel->buffer, sizeof(%s), tokens_after_wrap, actor->stream);", tokenType);
+        emitter().emit("    size_t tokens = channel_tokens_%s(channel);", tokenType);
+        emitter().emit("    if (tokens > 0) {");
+        emitter().emit("        size_t tokens_before_wrap = channel->mask + 1 - channel->head;");
+        emitter().emit("        if (tokens < tokens_before_wrap) {");
+        emitter().emit("            tokens_before_wrap = tokens;");
         emitter().emit("        }");
-        emitter().emit("");
-        emitter().emit("        //channel->head = (channel->head + channel->tokens) %% BUFFER_SIZE;");
-        emitter().emit("        channel->tokens = 0;");
+        emitter().emit("        struct iovec iov[2] = {");
+        emitter().emit("            { &channel->buffer[channel->head], tokens_before_wrap * sizeof(%s) },", tokenType);
+        emitter().emit("            { channel->buffer, (tokens - tokens_before_wrap) * sizeof(%s) }", tokenType);
+        emitter().emit("        };");
+        emitter().emit("        output_actor_write_%s(actor, iov, tokens > tokens_before_wrap ? 2 : 1);", tokenType);
+        emitter().emit("        channel_consume_%s(channel, tokens);", tokenType);
         emitter().emit("        return true;");
         emitter().emit("    } else {");
         emitter().emit("        return false;");
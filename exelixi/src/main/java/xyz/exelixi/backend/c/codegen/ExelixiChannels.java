@@ -2,12 +2,17 @@ package xyz.exelixi.backend.c.codegen;
 
 import org.multij.Binding;
 import org.multij.Module;
+import se.lth.cs.tycho.ir.network.Connection;
 import se.lth.cs.tycho.ir.network.Network;
 import se.lth.cs.tycho.types.IntType;
 import se.lth.cs.tycho.types.Type;
 import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+import xyz.exelixi.utils.BufferSizes;
 
+import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.function.Consumer;
 
 @Module
 public interface ExelixiChannels {
@@ -28,32 +33,281 @@ public interface ExelixiChannels {
 
     void outputActorCodeForType(Type type);
 
+    /**
+     * Emit the system includes required by the channel implementation
+     */
+    default void channelIncludes() {
+    }
+
+    /**
+     * Emit the initialization of a channel that is accessed by two different threads
+     *
+     * @param tokenType the token type
+     * @param channel   the channel variable name
+     */
+    default void shareChannel(String tokenType, String channel) {
+    }
+
+    default boolean isMappedIo() {
+        return backend().configuration().get(CBackendPhase.io).equals(CBackendPhase.MMAP_IO);
+    }
+
+    /**
+     * Emit the system includes required by the input and output actors
+     */
+    default void ioIncludes() {
+        if (isMappedIo()) {
+            preprocessor().preprocessor_system_include("sys/mman");
+            preprocessor().preprocessor_system_include("sys/stat");
+        } else {
+            preprocessor().preprocessor_system_include("sys/uio");
+        }
+        preprocessor().preprocessor_system_include("unistd");
+    }
+
+    /**
+     * Emit output_actor_write_T, that writes the segments of a channel buffer to the file descriptor of
+     * the output stream with a single writev call, and resumes after partial writes.
+     *
+     * @param tokenType the token type
+     */
+    default void outputActorWriteCode(String tokenType) {
+        emitter().emit("static void output_actor_write_%s(output_actor_%1$s *actor, struct iovec *iov, int iovcnt) {", tokenType);
+        emitter().emit("    while (iovcnt > 0) {");
+        emitter().emit("        ssize_t written = writev(fileno(actor->stream), iov, iovcnt);");
+        emitter().emit("        if (written < 0) {");
+        emitter().emit("            perror(\"output_actor_write_%s\");", tokenType);
+        emitter().emit("            return;");
+        emitter().emit("        }");
+        emitter().emit("        while (iovcnt > 0 && (size_t) written >= iov->iov_len) {");
+        emitter().emit("            written -= iov->iov_len;");
+        emitter().emit("            iov++;");
+        emitter().emit("            iovcnt--;");
+        emitter().emit("        }");
+        emitter().emit("        if (iovcnt > 0) {");
+        emitter().emit("            iov->iov_base = (char *) iov->iov_base + written;");
+        emitter().emit("            iov->iov_len -= written;");
+        emitter().emit("        }");
+        emitter().emit("    }");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
     default void outputActorCode() {
+        Consumer<Type> outputActorCode = isMappedIo() ? this::bufferedOutputActorCodeForType : this::outputActorCodeForType;
         backend().task().getNetwork().getOutputPorts().stream()
                 .map(backend().types()::declaredPortType)
                 .distinct()
-                .forEach(this::outputActorCodeForType);
+                .forEach(outputActorCode);
     }
 
     default void inputActorCode() {
+        Consumer<Type> inputActorCode = isMappedIo() ? this::mappedInputActorCodeForType : this::inputActorCodeForType;
         backend().task().getNetwork().getInputPorts().stream()
                 .map(backend().types()::declaredPortType)
                 .distinct()
-                .forEach(this::inputActorCodeForType);
+                .forEach(inputActorCode);
+    }
+
+    /**
+     * Input actor that maps its file in memory and writes the tokens to the channels directly from the
+     * mapping. Streams that can not be mapped (pipes, empty files) are read in blocks with fread.
+     *
+     * @param type the token type
+     */
+    default void mappedInputActorCodeForType(Type type) {
+        String tokenType = backend().code().type(type);
+        int blockSize = backend().configuration().get(CBackendPhase.ioBlockSize);
+
+        emitter().emit("typedef struct {");
+        emitter().emit("	size_t channelc;");
+        emitter().emit("	channel_%s **channelv;", tokenType);
+        emitter().emit("	FILE *stream;");
+        emitter().emit("	%s *map;", tokenType);
+        emitter().emit("	size_t map_length;");
+        emitter().emit("	size_t position;");
+        emitter().emit("	size_t count;");
+        emitter().emit("	%s *block;", tokenType);
+        emitter().emit("	size_t capacity;");
+        emitter().emit("} input_actor_%s;", tokenType);
+        emitter().emit("");
+
+        emitter().emit("static input_actor_%s *input_actor_create_%1$s(FILE *stream, channel_%1$s *channel_vector[], size_t channel_count) {", tokenType);
+        emitter().emit("    input_actor_%s *actor = malloc(sizeof(input_actor_%1$s));", tokenType);
+        emitter().emit("    actor->channelv = channel_vector;");
+        emitter().emit("    actor->channelc = channel_count;");
+        emitter().emit("    actor->stream = stream;");
+        emitter().emit("    actor->map = NULL;");
+        emitter().emit("    actor->map_length = 0;");
+        emitter().emit("    actor->position = 0;");
+        emitter().emit("    actor->count = SIZE_MAX;");
+        emitter().emit("    actor->block = NULL;");
+        emitter().emit("    actor->capacity = 0;");
+        emitter().emit("    struct stat status;");
+        emitter().emit("    if (fstat(fileno(stream), &status) == 0 && S_ISREG(status.st_mode) && status.st_size > 0) {");
+        emitter().emit("        void *map = mmap(NULL, status.st_size, PROT_READ, MAP_PRIVATE, fileno(stream), 0);");
+        emitter().emit("        if (map != MAP_FAILED) {");
+        emitter().emit("            madvise(map, status.st_size, MADV_SEQUENTIAL);");
+        emitter().emit("            actor->map = map;");
+        emitter().emit("            actor->map_length = status.st_size;");
+        emitter().emit("            actor->count = status.st_size / sizeof(%s);", tokenType);
+        emitter().emit("        }");
+        emitter().emit("    }");
+        emitter().emit("    if (actor->map == NULL) {");
+        emitter().emit("        actor->capacity = %d / sizeof(%s) > 0 ? %1$d / sizeof(%2$s) : 1;", blockSize, tokenType);
+        emitter().emit("        actor->block = malloc(sizeof(%s) * actor->capacity);", tokenType);
+        emitter().emit("    }");
+        emitter().emit("    return actor;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void input_actor_destroy_%s(input_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    if (actor->map != NULL) {");
+        emitter().emit("        munmap(actor->map, actor->map_length);");
+        emitter().emit("    }");
+        emitter().emit("    free(actor->block);");
+        emitter().emit("    free(actor);");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static _Bool input_actor_run_%s(input_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    size_t tokens = actor->count - actor->position;");
+        emitter().emit("    for (size_t i = 0; i < actor->channelc; i++) {");
+        emitter().emit("        size_t s = channel_space_%s(actor->channelv[i]);", tokenType);
+        emitter().emit("        tokens = s < tokens ? s : tokens;");
+        emitter().emit("    }");
+        emitter().emit("    if (tokens == 0) {");
+        emitter().emit("        return false;");
+        emitter().emit("    }");
+        emitter().emit("    if (actor->map != NULL) {");
+        emitter().emit("        channel_write_%s(actor->channelv, actor->channelc, &actor->map[actor->position], tokens);", tokenType);
+        emitter().emit("        actor->position += tokens;");
+        emitter().emit("        return true;");
+        emitter().emit("    }");
+        emitter().emit("    if (tokens > actor->capacity) {");
+        emitter().emit("        tokens = actor->capacity;");
+        emitter().emit("    }");
+        emitter().emit("    tokens = fread(actor->block, sizeof(%s), tokens, actor->stream);", tokenType);
+        emitter().emit("    if (tokens > 0) {");
+        emitter().emit("        channel_write_%s(actor->channelv, actor->channelc, actor->block, tokens);", tokenType);
+        emitter().emit("        return true;");
+        emitter().emit("    } else {");
+        emitter().emit("        return false;");
+        emitter().emit("    }");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    /**
+     * Output actor that drains its channel into a page aligned block, and writes the block to the file
+     * descriptor of the stream when it is full and when the actor is destroyed.
+     *
+     * @param type the token type
+     */
+    default void bufferedOutputActorCodeForType(Type type) {
+        String tokenType = backend().code().type(type);
+        int blockSize = backend().configuration().get(CBackendPhase.ioBlockSize);
+
+        emitter().emit("typedef struct {");
+        emitter().emit("	channel_%s *channel;", tokenType);
+        emitter().emit("	FILE *stream;");
+        emitter().emit("	%s *block;", tokenType);
+        emitter().emit("	size_t capacity;");
+        emitter().emit("	size_t fill;");
+        emitter().emit("} output_actor_%s;", tokenType);
+        emitter().emit("");
+
+        emitter().emit("static void output_actor_flush_%s(output_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    char *data = (char *) actor->block;");
+        emitter().emit("    size_t length = actor->fill * sizeof(%s);", tokenType);
+        emitter().emit("    while (length > 0) {");
+        emitter().emit("        ssize_t written = write(fileno(actor->stream), data, length);");
+        emitter().emit("        if (written < 0) {");
+        emitter().emit("            perror(\"output_actor_flush_%s\");", tokenType);
+        emitter().emit("            break;");
+        emitter().emit("        }");
+        emitter().emit("        data += written;");
+        emitter().emit("        length -= written;");
+        emitter().emit("    }");
+        emitter().emit("    actor->fill = 0;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static output_actor_%s *output_actor_create_%1$s(FILE *stream, channel_%1$s *channel) {", tokenType);
+        emitter().emit("    output_actor_%s *actor = malloc(sizeof(output_actor_%1$s));", tokenType);
+        emitter().emit("    actor->channel = channel;");
+        emitter().emit("    actor->stream = stream;");
+        emitter().emit("    actor->capacity = %d / sizeof(%s) > 0 ? %1$d / sizeof(%2$s) : 1;", blockSize, tokenType);
+        emitter().emit("    actor->fill = 0;");
+        emitter().emit("    void *block = NULL;");
+        emitter().emit("    if (posix_memalign(&block, 4096, sizeof(%s) * actor->capacity) != 0) {", tokenType);
+        emitter().emit("        block = malloc(sizeof(%s) * actor->capacity);", tokenType);
+        emitter().emit("    }");
+        emitter().emit("    actor->block = block;");
+        emitter().emit("    return actor;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void output_actor_destroy_%s(output_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    output_actor_flush_%s(actor);", tokenType);
+        emitter().emit("    free(actor->block);");
+        emitter().emit("    free(actor);");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static _Bool output_actor_run_%s(output_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    size_t tokens = channel_tokens_%s(actor->channel);", tokenType);
+        emitter().emit("    if (tokens == 0) {");
+        emitter().emit("        return false;");
+        emitter().emit("    }");
+        emitter().emit("    while (tokens > 0) {");
+        emitter().emit("        size_t n = actor->capacity - actor->fill;");
+        emitter().emit("        n = tokens < n ? tokens : n;");
+        emitter().emit("        channel_peek_%s(actor->channel, 0, n, &actor->block[actor->fill]);", tokenType);
+        emitter().emit("        channel_consume_%s(actor->channel, n);", tokenType);
+        emitter().emit("        actor->fill += n;");
+        emitter().emit("        tokens -= n;");
+        emitter().emit("        if (actor->fill == actor->capacity) {");
+        emitter().emit("            output_actor_flush_%s(actor);", tokenType);
+        emitter().emit("        }");
+        emitter().emit("    }");
+        emitter().emit("    return true;");
+        emitter().emit("}");
+        emitter().emit("");
     }
 
     default void fifo_h() {
         preprocessor().preprocessor_ifndef("fifo");
         preprocessor().preprocessor_define("fifo");
         preprocessor().preprocessor_system_include("stdint");
+        preprocessor().preprocessor_system_include("string");
+        channelIncludes();
+        backend().placement().bufferIncludes();
         emitter().emit("");
-        emitter().emitRawLine("#ifndef BUFFER_SIZE\n" +
-                "#define BUFFER_SIZE 256\n" +
-                "#endif\n");
+        backend().scheduler().taskCode();
+        backend().profiler().profileCode();
+        backend().controllers().computedGotoCode();
+        backend().vectorization().simdCode();
         channelCode();
         preprocessor().preprocessor_endif();
     }
 
+    /**
+     * The number of tokens of a channel buffer. The size is taken from the buffer size attribute of the
+     * connection, or from the default size of the backend, and is rounded up to a power of two so that
+     * the channels can wrap their indices with a mask.
+     *
+     * @param connection the connection, or empty for an unconnected port
+     * @return the buffer size
+     */
+    default int bufferSize(Optional<Connection> connection) {
+        int size = backend().configuration().get(CBackendPhase.bufferSize);
+        if (connection.isPresent()) {
+            size = BufferSizes.declaredSize(connection.get()).orElse(size);
+        }
+        return BufferSizes.nextPowerOfTwo(Math.max(1, size));
+    }
+
     default void channelCode() {
         Network network = backend().task().getNetwork();
         network.getConnections().stream()
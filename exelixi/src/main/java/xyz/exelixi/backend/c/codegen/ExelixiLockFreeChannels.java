@@ -0,0 +1,310 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.types.Type;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+
+/**
+ * Single-producer/single-consumer channels without locks. The write index is owned by the writer and the
+ * read index by the reader; each index lives on its own cache line together with the owner's cached copy of
+ * the other index, and is published with release stores and observed with acquire loads. Indices are free
+ * running, so the number of tokens in a channel is always {@code write - read}.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface ExelixiLockFreeChannels extends ExelixiChannels {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    default void channelIncludes() {
+        preprocessor().preprocessor_system_include("stdalign");
+        preprocessor().preprocessor_system_include("stdatomic");
+        emitter().emit("");
+        emitter().emitRawLine("#ifndef CACHE_LINE_SIZE\n" +
+                "#define CACHE_LINE_SIZE 64\n" +
+                "#endif");
+    }
+
+    default void channelCodeForType(Type type) {
+        String tokenType = backend().code().type(type);
+        emitter().emit("// CHANNEL %s", type);
+        emitter().emit("typedef struct {");
+        emitter().emit("	// -- writer");
+        emitter().emit("	alignas(CACHE_LINE_SIZE) atomic_size_t write;");
+        emitter().emit("	size_t read_cache;");
+        emitter().emit("	// -- reader");
+        emitter().emit("	alignas(CACHE_LINE_SIZE) atomic_size_t read;");
+        emitter().emit("	size_t write_cache;");
+        emitter().emit("	// -- shared");
+        emitter().emit("	alignas(CACHE_LINE_SIZE) size_t mask;");
+        emitter().emit("	%s *buffer;", tokenType);
+        backend().scheduler().channelFields();
+        backend().profiler().channelFields();
+        emitter().emit("} channel_%s;", tokenType);
+        emitter().emit("");
+
+        emitter().emit("static inline _Bool channel_has_data_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
+        emitter().emit("	size_t read = atomic_load_explicit(&channel->read, memory_order_relaxed);");
+        emitter().emit("	if (channel->write_cache - read >= tokens) {");
+        emitter().emit("		return true;");
+        emitter().emit("	}");
+        emitter().emit("	channel->write_cache = atomic_load_explicit(&channel->write, memory_order_acquire);");
+        emitter().emit("	return channel->write_cache - read >= tokens;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline size_t channel_tokens_%s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	size_t read = atomic_load_explicit(&channel->read, memory_order_relaxed);");
+        emitter().emit("	channel->write_cache = atomic_load_explicit(&channel->write, memory_order_acquire);");
+        emitter().emit("	return channel->write_cache - read;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline size_t channel_space_%s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	size_t write = atomic_load_explicit(&channel->write, memory_order_relaxed);");
+        emitter().emit("	channel->read_cache = atomic_load_explicit(&channel->read, memory_order_acquire);");
+        emitter().emit("	return channel->mask + 1 - (write - channel->read_cache);");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline _Bool channel_has_space_%s(channel_%1$s *channel_vector[], size_t channel_count, size_t tokens) {", tokenType);
+        emitter().emit("	for (size_t i = 0; i < channel_count; i++) {");
+        emitter().emit("		channel_%s *chan = channel_vector[i];", tokenType);
+        emitter().emit("		size_t write = atomic_load_explicit(&chan->write, memory_order_relaxed);");
+        emitter().emit("		if (chan->mask + 1 - (write - chan->read_cache) < tokens && channel_space_%s(chan) < tokens) {", tokenType);
+        backend().profiler().stall("			", "chan");
+        emitter().emit("			return false;");
+        emitter().emit("		}");
+        emitter().emit("	}");
+        emitter().emit("	return true;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        // -- readers attached to a broadcast buffer all have the same write index, the tokens are copied once per buffer
+        emitter().emit("static inline void channel_write_one_%s(channel_%1$s *channel_vector[], size_t channel_count, %1$s data) {", tokenType);
+        emitter().emit("	%s *written = NULL;", tokenType);
+        emitter().emit("	for (size_t c = 0; c < channel_count; c++) {");
+        emitter().emit("		channel_%s *chan = channel_vector[c];", tokenType);
+        emitter().emit("		size_t write = atomic_load_explicit(&chan->write, memory_order_relaxed);");
+        emitter().emit("		if (chan->buffer != written) {");
+        emitter().emit("			chan->buffer[write & chan->mask] = data;");
+        emitter().emit("			written = chan->buffer;");
+        emitter().emit("		}");
+        emitter().emit("		atomic_store_explicit(&chan->write, write + 1, memory_order_release);");
+        backend().profiler().highWater("		", "chan", "write + 1 - atomic_load_explicit(&chan->read, memory_order_relaxed)");
+        backend().scheduler().wakeReader("		", "chan");
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_write_%s(channel_%1$s *channel_vector[], size_t channel_count, %1$s *data, size_t tokens) {", tokenType);
+        emitter().emit("	%s *written = NULL;", tokenType);
+        emitter().emit("	for (size_t c = 0; c < channel_count; c++) {");
+        emitter().emit("		channel_%s *chan = channel_vector[c];", tokenType);
+        emitter().emit("		size_t write = atomic_load_explicit(&chan->write, memory_order_relaxed);");
+        emitter().emit("		if (chan->buffer != written) {");
+        emitter().emit("			size_t tail = write & chan->mask;");
+        emitter().emit("			size_t before_wrap = chan->mask + 1 - tail;");
+        emitter().emit("			if (tokens <= before_wrap) {");
+        emitter().emit("				memcpy(&chan->buffer[tail], data, tokens * sizeof(%s));", tokenType);
+        emitter().emit("			} else {");
+        emitter().emit("				memcpy(&chan->buffer[tail], data, before_wrap * sizeof(%s));", tokenType);
+        emitter().emit("				memcpy(chan->buffer, &data[before_wrap], (tokens - before_wrap) * sizeof(%s));", tokenType);
+        emitter().emit("			}");
+        emitter().emit("			written = chan->buffer;");
+        emitter().emit("		}");
+        emitter().emit("		atomic_store_explicit(&chan->write, write + tokens, memory_order_release);");
+        backend().profiler().highWater("		", "chan", "write + tokens - atomic_load_explicit(&chan->read, memory_order_relaxed)");
+        backend().scheduler().wakeReader("		", "chan");
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().emit("");
+
+        // -- the masked variants take the mask of the buffer as a parameter, a constant when the size is
+        // -- known at code generation
+        emitter().emit("static inline %s channel_peek_first_masked_%1$s(channel_%1$s *channel, size_t mask) {", tokenType);
+        emitter().emit("	size_t read = atomic_load_explicit(&channel->read, memory_order_relaxed);");
+        emitter().emit("	return channel->buffer[read & mask];");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline %s channel_peek_first_%1$s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	return channel_peek_first_masked_%s(channel, channel->mask);", tokenType);
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_peek_masked_%s(channel_%1$s *channel, size_t offset, size_t tokens, %1$s *result, size_t mask) {", tokenType);
+        emitter().emit("	size_t first = (atomic_load_explicit(&channel->read, memory_order_relaxed) + offset) & mask;");
+        emitter().emit("	size_t before_wrap = mask + 1 - first;");
+        emitter().emit("	if (tokens <= before_wrap) {");
+        emitter().emit("		memcpy(result, &channel->buffer[first], tokens * sizeof(%s));", tokenType);
+        emitter().emit("	} else {");
+        emitter().emit("		memcpy(result, &channel->buffer[first], before_wrap * sizeof(%s));", tokenType);
+        emitter().emit("		memcpy(&result[before_wrap], channel->buffer, (tokens - before_wrap) * sizeof(%s));", tokenType);
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_peek_%s(channel_%1$s *channel, size_t offset, size_t tokens, %1$s *result) {", tokenType);
+        emitter().emit("	channel_peek_masked_%s(channel, offset, tokens, result, channel->mask);", tokenType);
+        emitter().emit("}");
+        emitter().emit("");
+
+        // -- the read index is never wrapped, the mask is only applied on access
+        emitter().emit("static inline void channel_consume_masked_%s(channel_%1$s *channel, size_t tokens, size_t mask) {", tokenType);
+        emitter().emit("	(void) mask;");
+        emitter().emit("	size_t read = atomic_load_explicit(&channel->read, memory_order_relaxed);");
+        emitter().emit("	atomic_store_explicit(&channel->read, read + tokens, memory_order_release);");
+        backend().scheduler().wakeWriter("	", "channel");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static inline void channel_consume_%s(channel_%1$s *channel, size_t tokens) {", tokenType);
+        emitter().emit("	channel_consume_masked_%s(channel, tokens, channel->mask);", tokenType);
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void channel_create_%1$s(channel_%1$s *channel, size_t size) {", tokenType);
+        emitter().emit("	atomic_init(&channel->write, 0);");
+        emitter().emit("	atomic_init(&channel->read, 0);");
+        emitter().emit("	channel->read_cache = 0;");
+        emitter().emit("	channel->write_cache = 0;");
+        emitter().emit("	channel->mask = size - 1;");
+        backend().placement().allocateBuffer("	", "channel->buffer", tokenType, "size");
+        backend().scheduler().initChannelFields("	", "channel");
+        backend().profiler().initChannelFields("	", "channel");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void channel_destroy_%s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	free(channel->buffer);");
+        emitter().emit("}");
+        emitter().emit("");
+
+        // -- broadcast: a reader attached to the buffer of another reader of the same output port
+        emitter().emit("static void channel_attach_%1$s(channel_%1$s *channel, channel_%1$s *owner) {", tokenType);
+        emitter().emit("	atomic_init(&channel->write, 0);");
+        emitter().emit("	atomic_init(&channel->read, 0);");
+        emitter().emit("	channel->read_cache = 0;");
+        emitter().emit("	channel->write_cache = 0;");
+        emitter().emit("	channel->mask = owner->mask;");
+        emitter().emit("	channel->buffer = owner->buffer;");
+        backend().scheduler().initChannelFields("	", "channel");
+        backend().profiler().initChannelFields("	", "channel");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void channel_detach_%s(channel_%1$s *channel) {", tokenType);
+        emitter().emit("	channel->buffer = NULL;");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    default void inputActorCodeForType(Type type) {
+        String tokenType = backend().code().type(type);
+        int blockSize = backend().configuration().get(CBackendPhase.ioBlockSize);
+
+        emitter().emit("typedef struct {");
+        emitter().emit("	size_t channelc;");
+        emitter().emit("	channel_%s **channelv;", tokenType);
+        emitter().emit("	FILE *stream;");
+        emitter().emit("	%s *block;", tokenType);
+        emitter().emit("	size_t capacity;");
+        emitter().emit("} input_actor_%s;", tokenType);
+        emitter().emit("");
+
+        emitter().emit("static input_actor_%s *input_actor_create_%1$s(FILE *stream, channel_%1$s *channel_vector[], size_t channel_count) {", tokenType);
+        emitter().emit("    input_actor_%s *actor = malloc(sizeof(input_actor_%1$s));", tokenType);
+        emitter().emit("    actor->channelv = channel_vector;");
+        emitter().emit("    actor->channelc = channel_count;");
+        emitter().emit("    actor->stream = stream;");
+        // -- the tokens are read in blocks of a fixed size, the free space of a channel can be too large for the stack
+        emitter().emit("    actor->capacity = %d / sizeof(%s) > 0 ? %1$d / sizeof(%2$s) : 1;", blockSize, tokenType);
+        emitter().emit("    actor->block = malloc(sizeof(%s) * actor->capacity);", tokenType);
+        emitter().emit("    return actor;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void input_actor_destroy_%s(input_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    free(actor->block);");
+        emitter().emit("    free(actor);");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static _Bool input_actor_run_%s(input_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    size_t tokens = SIZE_MAX;");
+        emitter().emit("    for (size_t i = 0; i < actor->channelc; i++) {");
+        emitter().emit("        size_t s = channel_space_%s(actor->channelv[i]);", tokenType);
+        emitter().emit("        tokens = s < tokens ? s : tokens;");
+        emitter().emit("    }");
+        emitter().emit("    if (tokens > actor->capacity) {");
+        emitter().emit("        tokens = actor->capacity;");
+        emitter().emit("    }");
+        emitter().emit("    if (tokens > 0) {");
+        emitter().emit("        tokens = fread(actor->block, sizeof(%s), tokens, actor->stream);", tokenType);
+        emitter().emit("        if (tokens > 0) {");
+        emitter().emit("            channel_write_%s(actor->channelv, actor->channelc, actor->block, tokens);", tokenType);
+        emitter().emit("            return true;");
+        emitter().emit("        } else {");
+        emitter().emit("            return false;");
+        emitter().emit("        }");
+        emitter().emit("    } else {");
+        emitter().emit("        return false;");
+        emitter().emit("    }");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    default void outputActorCodeForType(Type type) {
+        String tokenType = backend().code().type(type);
+
+        emitter().emit("typedef struct {");
+        emitter().emit("	channel_%s *channel;", tokenType);
+        emitter().emit("	FILE *stream;");
+        emitter().emit("} output_actor_%s;", tokenType);
+        emitter().emit("");
+
+        emitter().emit("static output_actor_%s *output_actor_create_%1$s(FILE *stream, channel_%1$s *channel) {", tokenType);
+        emitter().emit("    output_actor_%s *actor = malloc(sizeof(output_actor_%1$s));", tokenType);
+        emitter().emit("    actor->channel = channel;");
+        emitter().emit("    actor->stream = stream;");
+        emitter().emit("    return actor;");
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void output_actor_destroy_%s(output_actor_%1$s *actor) {", tokenType);
+        emitter().emit("    free(actor);");
+        emitter().emit("}");
+        emitter().emit("");
+
+        outputActorWriteCode(tokenType);
+
+        emitter().emit("static _Bool output_actor_run_%s(output_actor_%1$s* actor) {", tokenType);
+        emitter().emit("    channel_%s *channel = actor->channel;", tokenType);
+        emitter().emit("    size_t read = atomic_load_explicit(&channel->read, memory_order_relaxed);");
+        emitter().emit("    size_t tokens = atomic_load_explicit(&channel->write, memory_order_acquire) - read;");
+        emitter().emit("    if (tokens > 0) {");
+        emitter().emit("        size_t head = read & channel->mask;");
+        emitter().emit("        size_t tokens_before_wrap = tokens < channel->mask + 1 - head ? tokens : channel->mask + 1 - head;");
+        emitter().emit("        struct iovec iov[2] = {");
+        emitter().emit("            { &channel->buffer[head], tokens_before_wrap * sizeof(%s) },", tokenType);
+        emitter().emit("            { channel->buffer, (tokens - tokens_before_wrap) * sizeof(%s) }", tokenType);
+        emitter().emit("        };");
+        emitter().emit("        output_actor_write_%s(actor, iov, tokens > tokens_before_wrap ? 2 : 1);", tokenType);
+        emitter().emit("        channel_consume_%s(channel, tokens);", tokenType);
+        emitter().emit("        return true;");
+        emitter().emit("    } else {");
+        emitter().emit("        return false;");
+        emitter().emit("    }");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+}
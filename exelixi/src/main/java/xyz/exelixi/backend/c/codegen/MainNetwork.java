@@ -15,9 +15,14 @@ import se.lth.cs.tycho.phases.attributes.GlobalNames;
 import se.lth.cs.tycho.phases.attributes.Names;
 import se.lth.cs.tycho.types.Type;
 import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+import xyz.exelixi.utils.BufferSizes;
+import xyz.exelixi.utils.ChannelProfile;
+import xyz.exelixi.utils.Pair;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 @Module
@@ -45,6 +50,10 @@ public interface MainNetwork {
         return backend().preprocessor();
     }
 
+    default Partitioning partitioning() {
+        return backend().partitioning();
+    }
+
     default void generateCode() {
         CompilationTask task = backend().task();
         Network network = task.getNetwork();
@@ -56,6 +65,25 @@ public interface MainNetwork {
 
         volatileInterrupted();
 
+        backend().channels().inputActorCode();
+        backend().channels().outputActorCode();
+
+        declareInstances(network);
+
+        backend().batching().declareBatches(network);
+
+        backend().placement().declarePlacement();
+
+        if (backend().scheduler().isDataDriven()) {
+            backend().scheduler().declareTasks(network);
+        }
+
+        backend().staticClusters().declareClusters();
+
+        if (partitioning().isMultiThreaded() && !backend().scheduler().isDataDriven()) {
+            declarePartitions(network);
+        }
+
         declareRun(network);
     }
 
@@ -65,11 +93,18 @@ public interface MainNetwork {
     }
 
     default void includeHeaders() {
+        backend().placement().includes();
         preprocessor().preprocessor_system_include("stdio");
         preprocessor().preprocessor_system_include("stdlib");
         preprocessor().preprocessor_system_include("stdbool");
         preprocessor().preprocessor_system_include("inttypes");
         preprocessor().preprocessor_system_include("string");
+        if (partitioning().isMultiThreaded()) {
+            preprocessor().preprocessor_system_include("pthread");
+            preprocessor().preprocessor_system_include("sched");
+            preprocessor().preprocessor_system_include("stdatomic");
+        }
+        backend().channels().ioIncludes();
         preprocessor().preprocessor_user_include("fifo");
         preprocessor().preprocessor_user_include("callables");
         CompilationTask task = backend().task();
@@ -81,6 +116,173 @@ public interface MainNetwork {
         emitter().emit("");
     }
 
+    default void declareInstances(Network network) {
+        emitter().emit("// -- Instances");
+        for (Instance instance : network.getInstances()) {
+            emitter().emit("static %s_state %s%s;", instance.getEntityName().getLast(), instance.getInstanceName(), backend().placement().stateAttribute());
+        }
+        emitter().emit("");
+        emitter().emit("// -- Network ports");
+        for (PortDecl port : network.getInputPorts()) {
+            emitter().emit("static input_actor_%s *%s_input_actor;", code().type(backend().types().declaredPortType(port)), port.getName());
+        }
+        for (PortDecl port : network.getOutputPorts()) {
+            emitter().emit("static output_actor_%s *%s_output_actor;", code().type(backend().types().declaredPortType(port)), port.getName());
+        }
+        emitter().emit("");
+    }
+
+    /**
+     * Emit the calls to the actors of one scheduling sweep
+     *
+     * @param network    the network
+     * @param partition  the partition index, or -1 for all the actors
+     */
+    default void sweep(Network network, int partition) {
+        for (PortDecl inputPort : network.getInputPorts()) {
+            if (partition < 0 || partitioning().partitionOf(new Connection.End(Optional.empty(), inputPort.getName())) == partition) {
+                emitter().emit("progress |= input_actor_run_%s(%s_input_actor);", code().type(backend().types().declaredPortType(inputPort)), inputPort.getName());
+            }
+        }
+        List<Instance> instances = partition < 0 ? network.getInstances() : partitioning().partitions().get(partition);
+        for (Instance instance : instances) {
+            Optional<StaticCluster> cluster = backend().staticClusters().clusterOf(instance);
+            if (!cluster.isPresent()) {
+                emitter().emit("progress |= %s;", backend().batching().runCall(instance));
+            } else if (cluster.get().instances.get(0) == instance) {
+                emitter().emit("progress |= %s();", cluster.get().functionName());
+            }
+        }
+        for (PortDecl outputPort : network.getOutputPorts()) {
+            if (partition < 0 || partitioning().partitionOf(new Connection.End(Optional.empty(), outputPort.getName())) == partition) {
+                emitter().emit("progress |= output_actor_run_%s(%s_output_actor);", code().type(backend().types().declaredPortType(outputPort)), outputPort.getName());
+            }
+        }
+    }
+
+    /**
+     * Emit one sweep function and one worker per partition. The network has terminated when no partition
+     * can make progress: the worker of partition 0 takes a snapshot of the global activity counter, waits
+     * until every other partition has completed a full sweep that started after the snapshot, runs its own
+     * sweep, and finally checks that the activity counter has not changed.
+     *
+     * @param network the network
+     */
+    default void declarePartitions(Network network) {
+        int partitions = partitioning().partitions().size();
+
+        emitter().emit("// -- Partitions");
+        emitter().emit("static atomic_bool network_terminated;");
+        emitter().emit("static atomic_ulong network_activity;");
+        emitter().emit("static atomic_ulong partition_sweeps[%d];", partitions);
+        emitter().emit("");
+
+        for (int p = 0; p < partitions; p++) {
+            emitter().emit("static _Bool partition_%d_sweep(void) {", p);
+            emitter().increaseIndentation();
+            emitter().emit("_Bool progress = false;");
+            sweep(network, p);
+            emitter().emit("return progress;");
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+            emitter().emit("");
+        }
+
+        String sweeps = IntStream.range(0, partitions).mapToObj(p -> String.format("partition_%d_sweep", p)).collect(Collectors.joining(", "));
+        emitter().emit("static _Bool (*const partition_sweep[%d])(void) = { %s };", partitions, sweeps);
+        emitter().emit("");
+
+        emitter().emit("static _Bool network_quiescent(void) {");
+        emitter().increaseIndentation();
+        emitter().emit("unsigned long activity = atomic_load(&network_activity);");
+        emitter().emit("unsigned long sweeps[%d];", partitions);
+        emitter().emit("for (size_t p = 0; p < %d; p++) {", partitions);
+        emitter().emit("	sweeps[p] = atomic_load(&partition_sweeps[p]);");
+        emitter().emit("}");
+        emitter().emit("for (size_t p = 1; p < %d; p++) {", partitions);
+        emitter().emit("	while (atomic_load(&partition_sweeps[p]) < sweeps[p] + 2) {");
+        emitter().emit("		if (interrupted || atomic_load(&network_activity) != activity) {");
+        emitter().emit("			return false;");
+        emitter().emit("		}");
+        emitter().emit("		sched_yield();");
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().emit("if (partition_sweep[0]()) {");
+        emitter().emit("	atomic_fetch_add(&network_activity, 1);");
+        emitter().emit("	return false;");
+        emitter().emit("}");
+        emitter().emit("return atomic_load(&network_activity) == activity;");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("");
+
+        emitter().emit("static void *partition_worker(void *arg) {");
+        emitter().increaseIndentation();
+        emitter().emit("size_t partition = (size_t) arg;");
+        backend().placement().pin("partition");
+        emitter().emit("while (!interrupted && !atomic_load(&network_terminated)) {");
+        emitter().increaseIndentation();
+        emitter().emit("_Bool progress = partition_sweep[partition]();");
+        emitter().emit("if (progress) {");
+        emitter().emit("	atomic_fetch_add(&network_activity, 1);");
+        emitter().emit("}");
+        emitter().emit("atomic_fetch_add(&partition_sweeps[partition], 1);");
+        emitter().emit("if (!progress) {");
+        emitter().emit("	if (partition == 0 && network_quiescent()) {");
+        emitter().emit("		atomic_store(&network_terminated, true);");
+        emitter().emit("	} else {");
+        emitter().emit("		sched_yield();");
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("return NULL;");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    /**
+     * The number of tokens of the channel of a target end, adjusted by the channel profile if any
+     *
+     * @param target     the target end
+     * @param connection the connection of the target end, or null for an unconnected port
+     * @return the buffer size
+     */
+    default int channelSize(Connection.End target, Connection connection) {
+        int size = backend().channels().bufferSize(Optional.ofNullable(connection));
+        // -- a size declared on the connection is kept, the profile only replaces the default size
+        ChannelProfile.Entry profile = backend().channelProfile().get(ChannelProfile.endName(target));
+        if (profile != null && (connection == null || !BufferSizes.declaredSize(connection).isPresent())) {
+            int rate = portRate(target, true);
+            if (connection != null) {
+                rate = Math.max(rate, portRate(connection.getSource(), false));
+            }
+            size = profile.channelSize(size, rate);
+        }
+        return backend().staticClusters().channelSize(target, size);
+    }
+
+    /**
+     * The largest number of tokens read from or written to a connection end at once
+     *
+     * @param end   the connection end
+     * @param input true for the target end of a connection, false for its source end
+     * @return the rate, 1 for a network port
+     */
+    default int portRate(Connection.End end, boolean input) {
+        if (!end.getInstance().isPresent()) {
+            return 1;
+        }
+        for (Instance instance : backend().task().getNetwork().getInstances()) {
+            if (instance.getInstanceName().equals(end.getInstance().get())) {
+                GlobalEntityDecl entityDecl = globalNames().entityDecl(instance.getEntityName(), true);
+                return BufferSizes.portRate(entityDecl.getEntity(), end.getPort(), input);
+            }
+        }
+        return 1;
+    }
+
     default void declareRun(Network network) {
         List<Connection> connections = network.getConnections();
         List<Instance> instances = network.getInstances();
@@ -108,6 +310,8 @@ public interface MainNetwork {
         Map<Connection.End, String> connectionTypes = new HashMap<>();
         Map<Connection.End, PortDecl> targetPorts = new LinkedHashMap<>();
         Map<Connection.End, List<Connection.End>> srcToTgt = new HashMap<>();
+        Map<Connection.End, Connection.End> tgtToSrc = new HashMap<>();
+        Map<Connection.End, Connection> tgtToConnection = new HashMap<>();
 
         for (PortDecl outputPort : network.getOutputPorts()) {
             targetPorts.put(new Connection.End(Optional.empty(), outputPort.getName()), outputPort);
@@ -125,8 +329,14 @@ public interface MainNetwork {
             Connection.End tgt = connection.getTarget();
             srcToTgt.computeIfAbsent(src, x -> new ArrayList<>())
                     .add(tgt);
+            tgtToSrc.put(tgt, src);
+            tgtToConnection.put(tgt, connection);
         }
 
+        // -- broadcast channels: the readers of an output port with the same token type share one buffer
+        boolean broadcast = backend().configuration().get(CBackendPhase.broadcast);
+        Map<Pair<Connection.End, String>, String> broadcastBuffers = new HashMap<>();
+        Set<String> attachedChannels = new HashSet<>();
         {
             int i = 0;
             for (Map.Entry<Connection.End, PortDecl> targetPort : targetPorts.entrySet()) {
@@ -136,13 +346,36 @@ public interface MainNetwork {
                 connectionTypes.put(targetPort.getKey(), typeName);
                 connectionNames.put(targetPort.getKey(), channelName);
                 emitter().emit("channel_%s %s;", typeName, channelName);
-                emitter().emit("channel_create_%s(&%s);", typeName, channelName);
+                Connection.End source = tgtToSrc.get(targetPort.getKey());
+                if (broadcast && source != null && srcToTgt.get(source).size() > 1) {
+                    Pair<Connection.End, String> key = Pair.of(source, typeName);
+                    if (broadcastBuffers.containsKey(key)) {
+                        emitter().emit("channel_attach_%s(&%s, &%s);", typeName, channelName, broadcastBuffers.get(key));
+                        attachedChannels.add(channelName);
+                    } else {
+                        // -- the buffer must hold the largest size requested by the readers
+                        int size = srcToTgt.get(source).stream()
+                                .filter(tgt -> targetPorts.containsKey(tgt) && code().type(backend().types().declaredPortType(targetPorts.get(tgt))).equals(typeName))
+                                .mapToInt(tgt -> channelSize(tgt, tgtToConnection.get(tgt)))
+                                .max().getAsInt();
+                        emitter().emit("channel_create_%s(&%s, %d);", typeName, channelName, size);
+                        backend().placement().bindChannel(targetPort.getKey(), channelName, typeName, size);
+                        broadcastBuffers.put(key, channelName);
+                    }
+                } else {
+                    int size = channelSize(targetPort.getKey(), tgtToConnection.get(targetPort.getKey()));
+                    emitter().emit("channel_create_%s(&%s, %d);", typeName, channelName, size);
+                    backend().placement().bindChannel(targetPort.getKey(), channelName, typeName, size);
+                }
+                if (source != null && partitioning().isShared(source, targetPort.getKey())) {
+                    backend().channels().shareChannel(typeName, channelName);
+                }
                 i = i + 1;
             }
         }
         emitter().emit("");
+        instances.forEach(backend().placement()::bindInstance);
         for (Instance instance : instances) {
-            emitter().emit("static %s_state %s;", instance.getEntityName().getLast(), instance.getInstanceName());
             emitter().emit("memset(&%s, 0, sizeof(%s_state));", instance.getInstanceName(), instance.getEntityName().getLast());
         }
         for (Instance instance : instances) {
@@ -188,7 +421,7 @@ public interface MainNetwork {
             String tokenType = code().type(backend().types().declaredPortType(port));
             emitter().emit("channel_%s *%s_channels[%d] = { &%s };", tokenType, port.getName(), outgoing.size(), channels);
             String type = backend().code().type(backend().types().declaredPortType(port));
-            emitter().emit("input_actor_%s *%s_input_actor = input_actor_create_%1$s(%2$s_input_file, %2$s_channels, %d);", type, port.getName(), outgoing.size());
+            emitter().emit("%s_input_actor = input_actor_create_%s(%1$s_input_file, %1$s_channels, %d);", port.getName(), type, outgoing.size());
             emitter().emit("");
             argi = argi + 1;
         }
@@ -197,50 +430,65 @@ public interface MainNetwork {
             String channel = connectionNames.get(end);
             emitter().emit("FILE *%s_output_file = fopen(argv[%d], \"w\");", port.getName(), argi);
             String type = backend().code().type(backend().types().declaredPortType(port));
-            emitter().emit("output_actor_%s *%s_output_actor = output_actor_create_%1$s(%2$s_output_file, &%s);", type, port.getName(), channel);
+            emitter().emit("%s_output_actor = output_actor_create_%s(%1$s_output_file, &%s);", port.getName(), type, channel);
             emitter().emit("");
             argi = argi + 1;
         }
 
-        emitter().emit("_Bool progress;");
-        emitter().emit("do {");
-        emitter().increaseIndentation();
-        emitter().emit("progress = false;");
-        for (PortDecl inputPort : network.getInputPorts()) {
-            emitter().emit("progress |= input_actor_run_%s(%s_input_actor);", code().type(backend().types().declaredPortType(inputPort)), inputPort.getName());
-        }
-        for (Instance instance : instances) {
-            emitter().emit("progress |= %s_run(&%s);", instance.getEntityName().getLast(), instance.getInstanceName());
-        }
-        for (PortDecl outputPort : network.getOutputPorts()) {
-            emitter().emit("progress |= output_actor_run_%s(%s_output_actor);", code().type(backend().types().declaredPortType(outputPort)), outputPort.getName());
+        if (backend().scheduler().isDataDriven()) {
+            backend().scheduler().initTasks(network, connectionNames, tgtToSrc);
+            backend().scheduler().schedule();
+        } else if (partitioning().isMultiThreaded()) {
+            int partitions = partitioning().partitions().size();
+            emitter().emit("pthread_t threads[%d];", partitions);
+            emitter().emit("for (size_t t = 1; t < %d; t++) {", partitions);
+            emitter().emit("	pthread_create(&threads[t], NULL, partition_worker, (void *) t);");
+            emitter().emit("}");
+            emitter().emit("partition_worker((void *) 0);");
+            emitter().emit("for (size_t t = 1; t < %d; t++) {", partitions);
+            emitter().emit("	pthread_join(threads[t], NULL);");
+            emitter().emit("}");
+            emitter().emit("");
+        } else {
+            backend().placement().pin("0");
+            emitter().emit("_Bool progress;");
+            emitter().emit("do {");
+            emitter().increaseIndentation();
+            emitter().emit("progress = false;");
+            sweep(network, -1);
+            emitter().decreaseIndentation();
+            emitter().emit("} while (progress && !interrupted);");
+            emitter().emit("");
         }
-        emitter().decreaseIndentation();
-        emitter().emit("} while (progress && !interrupted);");
-        emitter().emit("");
 
+        backend().profiler().report(network, connectionNames, tgtToSrc);
 
         for (Map.Entry<Connection.End, String> nameEntry : connectionNames.entrySet()) {
             String name = nameEntry.getValue();
             String type = connectionTypes.get(nameEntry.getKey());
-            emitter().emit("channel_destroy_%s(&%s);", type, name);
+            if (attachedChannels.contains(name)) {
+                emitter().emit("channel_detach_%s(&%s);", type, name);
+            } else {
+                emitter().emit("channel_destroy_%s(&%s);", type, name);
+            }
         }
 
 
+        // -- the actors are destroyed before their files are closed, as they may still flush data
         for (PortDecl port : network.getInputPorts()) {
-            emitter().emit("fclose(%s_input_file);", port.getName());
+            emitter().emit("input_actor_destroy_%s(%s_input_actor);", code().type(backend().types().declaredPortType(port)), port.getName());
         }
 
         for (PortDecl port : network.getOutputPorts()) {
-            emitter().emit("fclose(%s_output_file);", port.getName());
+            emitter().emit("output_actor_destroy_%s(%s_output_actor);", code().type(backend().types().declaredPortType(port)), port.getName());
         }
 
         for (PortDecl port : network.getInputPorts()) {
-            emitter().emit("input_actor_destroy_%s(%s_input_actor);", code().type(backend().types().declaredPortType(port)), port.getName());
+            emitter().emit("fclose(%s_input_file);", port.getName());
         }
 
         for (PortDecl port : network.getOutputPorts()) {
-            emitter().emit("output_actor_destroy_%s(%s_output_actor);", code().type(backend().types().declaredPortType(port)), port.getName());
+            emitter().emit("fclose(%s_output_file);", port.getName());
         }
 
         emitter().decreaseIndentation();
@@ -0,0 +1,146 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.ToolAttribute;
+import se.lth.cs.tycho.ir.ToolValueAttribute;
+import se.lth.cs.tycho.ir.expr.ExprLiteral;
+import se.lth.cs.tycho.ir.expr.Expression;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+import xyz.exelixi.backend.c.phases.GraphPartitioningPhase;
+import xyz.exelixi.utils.ThreadMapping;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+
+import static org.multij.BindingKind.LAZY;
+
+/**
+ * Partitioning of the network instances among the threads of the generated program
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface Partitioning {
+    @Binding
+    CBackendCore backend();
+
+    /**
+     * The instances executed by each thread, in scheduling order. Instances are assigned by the thread
+     * mapping if any, or else by the partition attributes of the graph partitioning, or else in contiguous
+     * blocks of the network instance list, so that neighbouring actors share a thread.
+     */
+    @Binding(LAZY)
+    default List<List<Instance>> partitions() {
+        List<Instance> instances = backend().task().getNetwork().getInstances();
+        if (backend().threadMapping().isPresent()) {
+            ThreadMapping mapping = backend().threadMapping().get();
+            List<List<Instance>> partitions = new ArrayList<>();
+            mapping.getThreads().forEach(thread -> partitions.add(new ArrayList<>()));
+            instances.forEach(instance -> partitions.get(mapping.threadOf(instance.getInstanceName())).add(instance));
+            return partitions;
+        }
+        if (isGraphPartitioned()) {
+            List<List<Instance>> partitions = new ArrayList<>();
+            for (Instance instance : instances) {
+                int partition = partitionAttribute(instance).orElse(0);
+                while (partitions.size() <= partition) {
+                    partitions.add(new ArrayList<>());
+                }
+                partitions.get(partition).add(instance);
+            }
+            return partitions;
+        }
+        int threads = Math.max(1, Math.min(backend().configuration().get(CBackendPhase.threads), instances.size()));
+        List<List<Instance>> partitions = new ArrayList<>();
+        for (int p = 0; p < threads; p++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < instances.size(); i++) {
+            partitions.get(i * threads / instances.size()).add(instances.get(i));
+        }
+        return partitions;
+    }
+
+    /**
+     * Test if the instances have been given partitions by the graph partitioning phase
+     */
+    default boolean isGraphPartitioned() {
+        return backend().task().getNetwork().getInstances().stream().anyMatch(instance -> partitionAttribute(instance).isPresent());
+    }
+
+    default OptionalInt partitionAttribute(Instance instance) {
+        for (ToolAttribute attribute : instance.getAttributes()) {
+            if (attribute instanceof ToolValueAttribute && attribute.getName().equals(GraphPartitioningPhase.PARTITION)) {
+                Expression value = ((ToolValueAttribute) attribute).getValue();
+                if (value instanceof ExprLiteral && ((ExprLiteral) value).getKind() == ExprLiteral.Kind.Integer) {
+                    return OptionalInt.of(Integer.parseInt(((ExprLiteral) value).getText()));
+                }
+            }
+        }
+        return OptionalInt.empty();
+    }
+
+    default boolean isMultiThreaded() {
+        return partitions().size() > 1 || backend().scheduler().isWorkStealing();
+    }
+
+    default int partitionOf(Instance instance) {
+        return partitionOf(instance.getInstanceName());
+    }
+
+    default int partitionOf(String instanceName) {
+        List<List<Instance>> partitions = partitions();
+        for (int p = 0; p < partitions.size(); p++) {
+            for (Instance instance : partitions.get(p)) {
+                if (instance.getInstanceName().equals(instanceName)) {
+                    return p;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The partition that executes a connection end. Network input ports are executed by the partition of
+     * their first reader, network output ports by the partition of their writer.
+     *
+     * @param end the connection end
+     * @return the partition index
+     */
+    default int partitionOf(Connection.End end) {
+        if (end.getInstance().isPresent()) {
+            return partitionOf(end.getInstance().get());
+        }
+        Network network = backend().task().getNetwork();
+        for (Connection connection : network.getConnections()) {
+            if (connection.getSource().equals(end) && connection.getTarget().getInstance().isPresent()) {
+                return partitionOf(connection.getTarget());
+            }
+            if (connection.getTarget().equals(end) && connection.getSource().getInstance().isPresent()) {
+                return partitionOf(connection.getSource());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Test if the channel between two connection ends is accessed by two different threads
+     *
+     * @param source the writer end
+     * @param target the reader end
+     * @return true if the channel crosses a partition boundary, or always with a work-stealing pool
+     */
+    default boolean isShared(Connection.End source, Connection.End target) {
+        if (backend().scheduler().isWorkStealing()) {
+            return true;
+        }
+        return partitionOf(source) != partitionOf(target);
+    }
+
+}
@@ -0,0 +1,188 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.utils.ThreadMapping;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalInt;
+
+/**
+ * Placement of the threads, instance states and channel buffers given by a thread mapping file. Every
+ * thread is pinned to its CPU set, and the state of an instance and the buffer of a channel are allocated
+ * on the NUMA node of the thread that executes the instance or reads the channel. The threads of a graph
+ * partitioning are pinned to one CPU each, in partition order.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface Placement {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    default boolean isEnabled() {
+        return backend().threadMapping().isPresent() || isGraphPartitioned();
+    }
+
+    default boolean isGraphPartitioned() {
+        return !backend().threadMapping().isPresent() && backend().partitioning().isGraphPartitioned();
+    }
+
+    default List<ThreadMapping.Thread> threads() {
+        return backend().threadMapping().map(ThreadMapping::getThreads).orElse(Collections.emptyList());
+    }
+
+    /**
+     * Test if some thread has a NUMA node, the states and buffers are then placed with mbind
+     */
+    default boolean isNumaAware() {
+        return isEnabled() && threads().stream().anyMatch(thread -> thread.node.isPresent());
+    }
+
+    /**
+     * Emit the feature macro and the headers of the affinity and memory policy calls, before any other
+     * include of the network file
+     */
+    default void includes() {
+        if (isEnabled()) {
+            emitter().emit("#define _GNU_SOURCE");
+            backend().preprocessor().preprocessor_system_include("sched");
+            backend().preprocessor().preprocessor_system_include("unistd");
+            backend().preprocessor().preprocessor_system_include("sys/syscall");
+        }
+    }
+
+    /**
+     * The attribute of the instance state declarations: every state has its own pages, so that it can be
+     * placed on the node of its thread
+     */
+    default String stateAttribute() {
+        return isNumaAware() ? " __attribute__((aligned(4096)))" : "";
+    }
+
+    /**
+     * Emit the system includes of the channel buffer allocation
+     */
+    default void bufferIncludes() {
+        if (isNumaAware()) {
+            backend().preprocessor().preprocessor_system_include("unistd");
+        }
+    }
+
+    /**
+     * Emit the allocation of a channel buffer. A buffer that is placed on a NUMA node is allocated on
+     * whole pages of its own, so that binding it does not move other allocations; it is not touched
+     * before {@link #bindChannel} binds it.
+     *
+     * @param indent    the indentation of the code
+     * @param buffer    the pointer variable assigned
+     * @param tokenType the token type
+     * @param size      the expression of the number of tokens
+     */
+    default void allocateBuffer(String indent, String buffer, String tokenType, String size) {
+        if (isNumaAware()) {
+            emitter().emit("%s{", indent);
+            emitter().emit("%s	size_t page = (size_t) sysconf(_SC_PAGESIZE);", indent);
+            emitter().emit("%s	void *memory = NULL;", indent);
+            emitter().emit("%s	if (posix_memalign(&memory, page, (sizeof(%s) * %s + page - 1) & ~(page - 1)) != 0) {", indent, tokenType, size);
+            emitter().emit("%s		memory = NULL;", indent);
+            emitter().emit("%s	}", indent);
+            emitter().emit("%s	%s = memory;", indent, buffer);
+            emitter().emit("%s}", indent);
+        } else {
+            emitter().emit("%s%s = malloc(sizeof(%s)*%s);", indent, buffer, tokenType, size);
+        }
+    }
+
+    /**
+     * Emit the pinning of the calling thread and the memory placement function
+     */
+    default void declarePlacement() {
+        if (!isEnabled()) {
+            return;
+        }
+        emitter().emit("// -- Placement");
+        emitter().emit("static void partition_pin(size_t partition) {");
+        emitter().increaseIndentation();
+        emitter().emit("cpu_set_t cpus;");
+        emitter().emit("CPU_ZERO(&cpus);");
+        if (isGraphPartitioned()) {
+            emitter().emit("long online = sysconf(_SC_NPROCESSORS_ONLN);");
+            emitter().emit("CPU_SET(partition %% (size_t) (online > 0 ? online : 1), &cpus);");
+        } else {
+            emitter().emit("switch (partition) {");
+            for (ThreadMapping.Thread thread : threads()) {
+                if (!thread.cpus.isEmpty()) {
+                    emitter().emit("case %d:", thread.index);
+                    thread.cpus.forEach(cpu -> emitter().emit("	CPU_SET(%d, &cpus);", cpu));
+                    emitter().emit("	break;");
+                }
+            }
+            emitter().emit("}");
+        }
+        emitter().emit("if (CPU_COUNT(&cpus) > 0 && sched_setaffinity(0, sizeof(cpus), &cpus) != 0) {");
+        emitter().emit("	perror(\"sched_setaffinity\");");
+        emitter().emit("}");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("");
+
+        if (isNumaAware()) {
+            // -- a preferred policy set before the first touch of the pages; it is only a hint, so the
+            // -- program still runs on a kernel or machine without NUMA support
+            emitter().emit("#define NUMA_MPOL_PREFERRED 1");
+            emitter().emit("");
+            emitter().emit("static void numa_bind(void *memory, size_t size, int node) {");
+            emitter().emit("	uintptr_t page = (uintptr_t) sysconf(_SC_PAGESIZE);");
+            emitter().emit("	uintptr_t start = (uintptr_t) memory & ~(page - 1);");
+            emitter().emit("	uintptr_t end = ((uintptr_t) memory + size + page - 1) & ~(page - 1);");
+            emitter().emit("	unsigned long nodemask = 1UL << node;");
+            emitter().emit("	syscall(SYS_mbind, (void *) start, end - start, NUMA_MPOL_PREFERRED, &nodemask, sizeof(nodemask) * 8, 0);");
+            emitter().emit("}");
+            emitter().emit("");
+        }
+    }
+
+    default OptionalInt nodeOf(int partition) {
+        return partition < threads().size() ? threads().get(partition).node : OptionalInt.empty();
+    }
+
+    /**
+     * Emit the placement of an instance state on the node of its thread
+     */
+    default void bindInstance(Instance instance) {
+        if (isNumaAware()) {
+            OptionalInt node = nodeOf(backend().partitioning().partitionOf(instance));
+            if (node.isPresent()) {
+                emitter().emit("numa_bind(&%s, sizeof(%s_state), %d);", instance.getInstanceName(), instance.getEntityName().getLast(), node.getAsInt());
+            }
+        }
+    }
+
+    /**
+     * Emit the placement of a channel buffer on the node of the thread of its reader
+     */
+    default void bindChannel(Connection.End target, String channel, String tokenType, int size) {
+        if (isNumaAware()) {
+            OptionalInt node = nodeOf(backend().partitioning().partitionOf(target));
+            if (node.isPresent()) {
+                emitter().emit("numa_bind(%s.buffer, %d * sizeof(%s), %d);", channel, size, tokenType, node.getAsInt());
+            }
+        }
+    }
+
+    default void pin(String partition) {
+        if (isEnabled()) {
+            emitter().emit("partition_pin(%s);", partition);
+        }
+    }
+
+}
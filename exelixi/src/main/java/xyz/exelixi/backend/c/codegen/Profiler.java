@@ -0,0 +1,239 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+import xyz.exelixi.utils.ChannelProfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instrumentation of the generated program: firings per transition, idle calls and execution time of
+ * every instance, and high-water mark and producer stalls of every channel. The hooks are only emitted
+ * when profiling is enabled, and are macros that expand to nothing unless EXELIXI_PROFILE is defined.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface Profiler {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    default boolean isEnabled() {
+        return backend().configuration().get(CBackendPhase.profile);
+    }
+
+    /**
+     * Emit the profiling macros, in fifo.h
+     */
+    default void profileCode() {
+        if (!isEnabled()) {
+            return;
+        }
+        emitter().emit("// PROFILING");
+        emitter().emit("#ifdef EXELIXI_PROFILE");
+        emitter().emit("#if defined(__x86_64__) || defined(__i386__)");
+        emitter().emit("#include <x86intrin.h>");
+        emitter().emit("#define PROFILE_UNIT \"cycles\"");
+        emitter().emit("static inline uint64_t profile_now(void) {");
+        emitter().emit("	return __rdtsc();");
+        emitter().emit("}");
+        emitter().emit("#else");
+        emitter().emit("#include <time.h>");
+        emitter().emit("#define PROFILE_UNIT \"ns\"");
+        emitter().emit("static inline uint64_t profile_now(void) {");
+        emitter().emit("	struct timespec now;");
+        emitter().emit("	clock_gettime(CLOCK_MONOTONIC, &now);");
+        emitter().emit("	return (uint64_t) now.tv_sec * 1000000000u + now.tv_nsec;");
+        emitter().emit("}");
+        emitter().emit("#endif");
+        emitter().emit("#define PROFILE_FIRING(self, transition) ((self)->profile_firings[transition]++)");
+        emitter().emit("#define PROFILE_RUN_BEGIN(self) uint64_t profile_start = profile_now()");
+        emitter().emit("#define PROFILE_RUN_END(self, progress) do { \\");
+        emitter().emit("	(self)->profile_calls++; \\");
+        emitter().emit("	(self)->profile_idle += !(progress); \\");
+        emitter().emit("	(self)->profile_time += profile_now() - profile_start; \\");
+        emitter().emit("} while (0)");
+        emitter().emit("#define PROFILE_HIGH_WATER(channel, occupancy) do { \\");
+        emitter().emit("	if ((occupancy) > (channel)->high_water) (channel)->high_water = (occupancy); \\");
+        emitter().emit("} while (0)");
+        emitter().emit("#define PROFILE_STALL(channel) ((channel)->stalls++)");
+        emitter().emit("#else");
+        emitter().emit("#define PROFILE_FIRING(self, transition) ((void) 0)");
+        emitter().emit("#define PROFILE_RUN_BEGIN(self) ((void) 0)");
+        emitter().emit("#define PROFILE_RUN_END(self, progress) ((void) 0)");
+        emitter().emit("#define PROFILE_HIGH_WATER(channel, occupancy) ((void) 0)");
+        emitter().emit("#define PROFILE_STALL(channel) ((void) 0)");
+        emitter().emit("#endif");
+        emitter().emit("");
+    }
+
+    /**
+     * Emit the channel structure fields of the high-water mark and of the number of failed space tests
+     */
+    default void channelFields() {
+        if (isEnabled()) {
+            emitter().emit("#ifdef EXELIXI_PROFILE");
+            emitter().emit("	size_t high_water;");
+            emitter().emit("	size_t stalls;");
+            emitter().emit("#endif");
+        }
+    }
+
+    default void initChannelFields(String indent, String channel) {
+        if (isEnabled()) {
+            emitter().emit("#ifdef EXELIXI_PROFILE");
+            emitter().emit("%s%s->high_water = 0;", indent, channel);
+            emitter().emit("%s%s->stalls = 0;", indent, channel);
+            emitter().emit("#endif");
+        }
+    }
+
+    default void highWater(String indent, String channel, String occupancy) {
+        if (isEnabled()) {
+            emitter().emit("%sPROFILE_HIGH_WATER(%s, %s);", indent, channel, occupancy);
+        }
+    }
+
+    default void stall(String indent, String channel) {
+        if (isEnabled()) {
+            emitter().emit("%sPROFILE_STALL(%s);", indent, channel);
+        }
+    }
+
+    /**
+     * Emit the actor state fields of the counters
+     */
+    default void stateFields(int transitions) {
+        if (isEnabled()) {
+            emitter().emit("#ifdef EXELIXI_PROFILE");
+            emitter().emit("uint64_t profile_firings[%d];", Math.max(1, transitions));
+            emitter().emit("uint64_t profile_calls;");
+            emitter().emit("uint64_t profile_idle;");
+            emitter().emit("uint64_t profile_time;");
+            emitter().emit("#endif");
+            emitter().emit("");
+        }
+    }
+
+    default void initStateFields() {
+        if (isEnabled()) {
+            emitter().emit("#ifdef EXELIXI_PROFILE");
+            emitter().emit("memset(self->profile_firings, 0, sizeof(self->profile_firings));");
+            emitter().emit("self->profile_calls = 0;");
+            emitter().emit("self->profile_idle = 0;");
+            emitter().emit("self->profile_time = 0;");
+            emitter().emit("#endif");
+            emitter().emit("");
+        }
+    }
+
+    default void firing(int transition) {
+        if (isEnabled()) {
+            emitter().emit("PROFILE_FIRING(self, %d);", transition);
+        }
+    }
+
+    default void runBegin() {
+        if (isEnabled()) {
+            emitter().emit("PROFILE_RUN_BEGIN(self);");
+        }
+    }
+
+    default void runEnd() {
+        if (isEnabled()) {
+            emitter().emit("PROFILE_RUN_END(self, progress);");
+        }
+    }
+
+    /**
+     * Emit the code that writes the JSON report, at the end of run(). The report is written to the file
+     * named by the EXELIXI_PROFILE_FILE environment variable, or to profile.json. The channel measures
+     * are also written in the CSV format read by the c-channel-profile setting, to the file named by the
+     * EXELIXI_CHANNEL_PROFILE_FILE environment variable, or to channels.csv.
+     *
+     * @param network         the network
+     * @param connectionNames the channel variable of each target end
+     * @param tgtToSrc        the source end of each target end
+     */
+    default void report(Network network, Map<Connection.End, String> connectionNames, Map<Connection.End, Connection.End> tgtToSrc) {
+        if (!isEnabled()) {
+            return;
+        }
+        emitter().emit("#ifdef EXELIXI_PROFILE");
+        emitter().emit("{");
+        emitter().increaseIndentation();
+        emitter().emit("const char *profile_path = getenv(\"EXELIXI_PROFILE_FILE\");");
+        emitter().emit("FILE *profile = fopen(profile_path != NULL ? profile_path : \"profile.json\", \"w\");");
+        emitter().emit("if (profile != NULL) {");
+        emitter().increaseIndentation();
+        emitter().emit("fprintf(profile, \"{\\n  \\\"unit\\\": \\\"%%s\\\",\\n  \\\"actors\\\": [\\n\", PROFILE_UNIT);");
+        List<Instance> instances = network.getInstances();
+        for (int i = 0; i < instances.size(); i++) {
+            String name = instances.get(i).getInstanceName();
+            emitter().emit("fprintf(profile, \"    { \\\"instance\\\": \\\"%s\\\", \\\"calls\\\": %%\" PRIu64 \", \\\"idle\\\": %%\" PRIu64 \", \\\"time\\\": %%\" PRIu64 \", \\\"firings\\\": [\", %1$s.profile_calls, %1$s.profile_idle, %1$s.profile_time);", name);
+            emitter().emit("for (size_t t = 0; t < sizeof(%s.profile_firings) / sizeof(uint64_t); t++) {", name);
+            emitter().emit("	fprintf(profile, t == 0 ? \"%%\" PRIu64 : \", %%\" PRIu64, %s.profile_firings[t]);", name);
+            emitter().emit("}");
+            emitter().emit("fprintf(profile, \"] }%s\\n\");", i + 1 < instances.size() ? "," : "");
+        }
+        emitter().emit("fprintf(profile, \"  ],\\n  \\\"channels\\\": [\\n\");");
+        List<Map.Entry<Connection.End, String>> channels = new ArrayList<>(connectionNames.entrySet());
+        for (int i = 0; i < channels.size(); i++) {
+            Connection.End target = channels.get(i).getKey();
+            Connection.End source = tgtToSrc.get(target);
+            String channel = channels.get(i).getValue();
+            emitter().emit("fprintf(profile, \"    { \\\"source\\\": \\\"%s\\\", \\\"target\\\": \\\"%s\\\", \\\"size\\\": %%zu, \\\"high_water\\\": %%zu, \\\"stalls\\\": %%zu }%s\\n\", %s.mask + 1, %4$s.high_water, %4$s.stalls);",
+                    endName(source), endName(target), i + 1 < channels.size() ? "," : "", channel);
+        }
+        emitter().emit("fprintf(profile, \"  ]\\n}\\n\");");
+        emitter().emit("fclose(profile);");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("const char *channel_profile_path = getenv(\"EXELIXI_CHANNEL_PROFILE_FILE\");");
+        emitter().emit("FILE *channel_profile = fopen(channel_profile_path != NULL ? channel_profile_path : \"channels.csv\", \"w\");");
+        emitter().emit("if (channel_profile != NULL) {");
+        emitter().increaseIndentation();
+        emitter().emit("fprintf(channel_profile, \"%s\\n\");", ChannelProfile.HEADER);
+        for (Map.Entry<Connection.End, String> entry : channels) {
+            emitter().emit("fprintf(channel_profile, \"%s,%s,%%zu,%%zu,%%zu\\n\", %s.mask + 1, %3$s.high_water, %3$s.stalls);",
+                    endName(tgtToSrc.get(entry.getKey())), endName(entry.getKey()), entry.getValue());
+        }
+        emitter().emit("fclose(channel_profile);");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().decreaseIndentation();
+        emitter().emit("}");
+        emitter().emit("#endif");
+        emitter().emit("");
+    }
+
+    default String endName(Connection.End end) {
+        return end != null ? ChannelProfile.endName(end) : "";
+    }
+
+    /**
+     * Emit the CMake option that enables the hooks
+     */
+    default void cmakeOption() {
+        if (isEnabled()) {
+            emitter().emit("# -- Profiling");
+            emitter().emit("option(EXELIXI_PROFILE \"Profile the actors and channels\" ON)");
+            emitter().emit("if (EXELIXI_PROFILE)");
+            emitter().emit("    add_definitions(-DEXELIXI_PROFILE)");
+            emitter().emit("endif()");
+            emitter().emit("");
+        }
+    }
+
+}
@@ -0,0 +1,379 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data-driven scheduling of the network actors. Every actor, input port and output port has a task, and
+ * only the tasks in the ready list are executed. A channel write makes the reader of the channel ready,
+ * and a channel consume makes the writer of the channel ready if it is waiting for space.
+ * <p>
+ * The work-stealing scheduler executes the tasks on a pool of workers. Each worker has a deque of ready
+ * tasks, pops its own tasks from the bottom and steals the tasks of the other workers from the top. The
+ * atomic state of a task guarantees that it is executed by one worker at a time: a task woken while it is
+ * running is marked as notified, and is executed again by the same worker.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface Scheduler {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    /**
+     * Test if the actors are tasks woken by the channel operations, executed by one thread or by a pool
+     */
+    default boolean isDataDriven() {
+        String scheduler = backend().configuration().get(CBackendPhase.scheduler);
+        return scheduler.equals(CBackendPhase.DATA_DRIVEN_SCHEDULER) || scheduler.equals(CBackendPhase.WORK_STEALING_SCHEDULER);
+    }
+
+    default boolean isWorkStealing() {
+        return backend().configuration().get(CBackendPhase.scheduler).equals(CBackendPhase.WORK_STEALING_SCHEDULER);
+    }
+
+    default int workers() {
+        return Math.max(1, backend().configuration().get(CBackendPhase.threads));
+    }
+
+    /**
+     * Emit the task type and the ready list operations used by the channels, in fifo.h
+     */
+    default void taskCode() {
+        if (!isDataDriven()) {
+            return;
+        }
+        if (isWorkStealing()) {
+            workStealingTaskCode();
+            return;
+        }
+        emitter().emit("// TASK");
+        emitter().emit("typedef struct actor_task {");
+        emitter().emit("	_Bool (*run)(void *instance);");
+        emitter().emit("	void *instance;");
+        emitter().emit("	struct actor_task *next;");
+        emitter().emit("	_Bool ready;");
+        emitter().emit("	_Bool blocked_on_space;");
+        emitter().emit("} actor_task;");
+        emitter().emit("");
+        emitter().emit("extern actor_task *ready_head;");
+        emitter().emit("extern actor_task *ready_tail;");
+        emitter().emit("");
+        emitter().emit("static inline void actor_task_wake(actor_task *task) {");
+        emitter().emit("	if (task != NULL && !task->ready) {");
+        emitter().emit("		task->ready = true;");
+        emitter().emit("		task->next = NULL;");
+        emitter().emit("		if (ready_tail != NULL) {");
+        emitter().emit("			ready_tail->next = task;");
+        emitter().emit("		} else {");
+        emitter().emit("			ready_head = task;");
+        emitter().emit("		}");
+        emitter().emit("		ready_tail = task;");
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    default void workStealingTaskCode() {
+        backend().preprocessor().preprocessor_system_include("stdatomic");
+        emitter().emit("");
+        emitter().emit("// TASK");
+        emitter().emit("#define TASK_IDLE 0");
+        emitter().emit("#define TASK_SCHEDULED 1");
+        emitter().emit("#define TASK_NOTIFIED 2");
+        emitter().emit("");
+        emitter().emit("typedef struct actor_task {");
+        emitter().emit("	_Bool (*run)(void *instance);");
+        emitter().emit("	void *instance;");
+        emitter().emit("	atomic_int scheduled;");
+        emitter().emit("	_Bool blocked_on_space;");
+        emitter().emit("} actor_task;");
+        emitter().emit("");
+        emitter().emit("void actor_task_push(actor_task *task);");
+        emitter().emit("");
+        emitter().emit("static inline void actor_task_wake(actor_task *task) {");
+        emitter().emit("	if (task == NULL) {");
+        emitter().emit("		return;");
+        emitter().emit("	}");
+        emitter().emit("	int state = atomic_load(&task->scheduled);");
+        emitter().emit("	while (state != TASK_NOTIFIED) {");
+        emitter().emit("		if (atomic_compare_exchange_weak(&task->scheduled, &state, state == TASK_IDLE ? TASK_SCHEDULED : TASK_NOTIFIED)) {");
+        emitter().emit("			if (state == TASK_IDLE) {");
+        emitter().emit("				actor_task_push(task);");
+        emitter().emit("			}");
+        emitter().emit("			return;");
+        emitter().emit("		}");
+        emitter().emit("	}");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    /**
+     * Emit the reader and writer task fields of a channel structure
+     */
+    default void channelFields() {
+        if (isDataDriven()) {
+            emitter().emit("	actor_task *reader;");
+            emitter().emit("	actor_task *writer;");
+        }
+    }
+
+    default void initChannelFields(String indent, String channel) {
+        if (isDataDriven()) {
+            emitter().emit("%s%s->reader = NULL;", indent, channel);
+            emitter().emit("%s%s->writer = NULL;", indent, channel);
+        }
+    }
+
+    default void wakeReader(String indent, String channel) {
+        if (isDataDriven()) {
+            emitter().emit("%sactor_task_wake(%s->reader);", indent, channel);
+        }
+    }
+
+    default void wakeWriter(String indent, String channel) {
+        if (isWorkStealing()) {
+            // -- the writer may be about to wait on another worker, its blocked_on_space flag can not be trusted
+            emitter().emit("%sactor_task_wake(%s->writer);", indent, channel);
+        } else if (isDataDriven()) {
+            emitter().emit("%sif (%s->writer != NULL && %1$s->writer->blocked_on_space) {", indent, channel);
+            emitter().emit("%s	actor_task_wake(%s->writer);", indent, channel);
+            emitter().emit("%s}", indent);
+        }
+    }
+
+    /**
+     * The name of the task that executes a connection end
+     *
+     * @param end the connection end
+     * @param network the network
+     * @return the task variable name
+     */
+    default String taskName(Connection.End end, Network network) {
+        if (end.getInstance().isPresent()) {
+            return end.getInstance().get() + "_task";
+        } else if (network.getInputPorts().stream().anyMatch(port -> port.getName().equals(end.getPort()))) {
+            return end.getPort() + "_input_task";
+        } else {
+            return end.getPort() + "_output_task";
+        }
+    }
+
+    /**
+     * Emit the ready list, the tasks and their run functions
+     *
+     * @param network the network
+     */
+    default void declareTasks(Network network) {
+        emitter().emit("// -- Tasks");
+        if (isWorkStealing()) {
+            declareWorkers(network);
+        } else {
+            emitter().emit("actor_task *ready_head = NULL;");
+            emitter().emit("actor_task *ready_tail = NULL;");
+            emitter().emit("");
+        }
+        for (Instance instance : network.getInstances()) {
+            emitter().emit("static actor_task %s_task;", instance.getInstanceName());
+            emitter().emit("static _Bool %s_task_run(void *instance) {", instance.getInstanceName());
+            emitter().emit("	return %s;", backend().batching().runCall(instance));
+            emitter().emit("}");
+            emitter().emit("");
+        }
+        network.getInputPorts().forEach(port -> {
+            String type = backend().code().type(backend().types().declaredPortType(port));
+            emitter().emit("static actor_task %s_input_task;", port.getName());
+            emitter().emit("static _Bool %s_input_task_run(void *instance) {", port.getName());
+            emitter().emit("	return input_actor_run_%s((input_actor_%1$s *) instance);", type);
+            emitter().emit("}");
+            emitter().emit("");
+        });
+        network.getOutputPorts().forEach(port -> {
+            String type = backend().code().type(backend().types().declaredPortType(port));
+            emitter().emit("static actor_task %s_output_task;", port.getName());
+            emitter().emit("static _Bool %s_output_task_run(void *instance) {", port.getName());
+            emitter().emit("	return output_actor_run_%s((output_actor_%1$s *) instance);", type);
+            emitter().emit("}");
+            emitter().emit("");
+        });
+    }
+
+    /**
+     * Emit the initialization of the tasks, connect them to the channels and make them all ready. An
+     * input port is always considered to wait for space, as it only stops when its channels are full or
+     * when its file has been read.
+     *
+     * @param network         the network
+     * @param connectionNames the channel variable of each target end
+     * @param tgtToSrc        the source end of each target end
+     */
+    default void initTasks(Network network, Map<Connection.End, String> connectionNames, Map<Connection.End, Connection.End> tgtToSrc) {
+        List<String> tasks = new ArrayList<>();
+        if (isWorkStealing()) {
+            emitter().emit("for (size_t w = 0; w < TASK_WORKERS; w++) {");
+            emitter().emit("	pthread_mutex_init(&task_deques[w].lock, NULL);");
+            emitter().emit("}");
+        }
+        for (Instance instance : network.getInstances()) {
+            String name = instance.getInstanceName();
+            initTask(name + "_task", name + "_task_run", "&" + name, false);
+            emitter().emit("%s.task = &%1$s_task;", name);
+            tasks.add(name + "_task");
+        }
+        network.getInputPorts().forEach(port -> {
+            initTask(port.getName() + "_input_task", port.getName() + "_input_task_run", port.getName() + "_input_actor", true);
+            tasks.add(port.getName() + "_input_task");
+        });
+        network.getOutputPorts().forEach(port -> {
+            initTask(port.getName() + "_output_task", port.getName() + "_output_task_run", port.getName() + "_output_actor", false);
+            tasks.add(port.getName() + "_output_task");
+        });
+        connectionNames.forEach((target, channel) -> {
+            emitter().emit("%s.reader = &%s;", channel, taskName(target, network));
+            Connection.End source = tgtToSrc.get(target);
+            if (source != null) {
+                emitter().emit("%s.writer = &%s;", channel, taskName(source, network));
+            }
+        });
+        tasks.forEach(task -> emitter().emit("actor_task_wake(&%s);", task));
+        emitter().emit("");
+    }
+
+    default void initTask(String task, String run, String instance, boolean blockedOnSpace) {
+        if (isWorkStealing()) {
+            emitter().emit("%s.run = %s;", task, run);
+            emitter().emit("%s.instance = %s;", task, instance);
+            emitter().emit("atomic_init(&%s.scheduled, TASK_IDLE);", task);
+            emitter().emit("%s.blocked_on_space = %s;", task, blockedOnSpace);
+        } else {
+            emitter().emit("%s = (actor_task) { %s, %s, NULL, false, %s };", task, run, instance, blockedOnSpace);
+        }
+    }
+
+    /**
+     * Emit the deques of the workers, the push and steal operations and the worker loop. A worker stops
+     * when no task is scheduled or running anymore: the number of active tasks is incremented when an idle
+     * task is woken and decremented when a task becomes idle, so a running task always wakes its successors
+     * before it is counted out.
+     *
+     * @param network the network
+     */
+    default void declareWorkers(Network network) {
+        int tasks = Math.max(1, network.getInstances().size() + network.getInputPorts().size() + network.getOutputPorts().size());
+        emitter().emit("#define TASK_WORKERS %d", workers());
+        emitter().emit("#define TASK_CAPACITY %d", tasks);
+        emitter().emit("");
+        emitter().emit("typedef struct {");
+        emitter().emit("	pthread_mutex_t lock;");
+        emitter().emit("	size_t top;");
+        emitter().emit("	size_t bottom;");
+        emitter().emit("	actor_task *tasks[TASK_CAPACITY];");
+        emitter().emit("} task_deque;");
+        emitter().emit("");
+        emitter().emit("static task_deque task_deques[TASK_WORKERS];");
+        emitter().emit("static atomic_size_t tasks_active;");
+        emitter().emit("static _Thread_local size_t worker_index;");
+        emitter().emit("");
+        // -- a task is in at most one deque at a time, as it is only pushed when it leaves the idle state
+        emitter().emit("void actor_task_push(actor_task *task) {");
+        emitter().emit("	atomic_fetch_add(&tasks_active, 1);");
+        emitter().emit("	task_deque *deque = &task_deques[worker_index];");
+        emitter().emit("	pthread_mutex_lock(&deque->lock);");
+        emitter().emit("	deque->tasks[deque->bottom++ %% TASK_CAPACITY] = task;");
+        emitter().emit("	pthread_mutex_unlock(&deque->lock);");
+        emitter().emit("}");
+        emitter().emit("");
+        emitter().emit("static actor_task *actor_task_pop(task_deque *deque) {");
+        emitter().emit("	actor_task *task = NULL;");
+        emitter().emit("	pthread_mutex_lock(&deque->lock);");
+        emitter().emit("	if (deque->bottom != deque->top) {");
+        emitter().emit("		task = deque->tasks[--deque->bottom %% TASK_CAPACITY];");
+        emitter().emit("	}");
+        emitter().emit("	pthread_mutex_unlock(&deque->lock);");
+        emitter().emit("	return task;");
+        emitter().emit("}");
+        emitter().emit("");
+        emitter().emit("static actor_task *actor_task_steal(task_deque *deque) {");
+        emitter().emit("	actor_task *task = NULL;");
+        emitter().emit("	if (pthread_mutex_trylock(&deque->lock) == 0) {");
+        emitter().emit("		if (deque->bottom != deque->top) {");
+        emitter().emit("			task = deque->tasks[deque->top++ %% TASK_CAPACITY];");
+        emitter().emit("		}");
+        emitter().emit("		pthread_mutex_unlock(&deque->lock);");
+        emitter().emit("	}");
+        emitter().emit("	return task;");
+        emitter().emit("}");
+        emitter().emit("");
+        emitter().emit("static void *task_worker(void *arg) {");
+        emitter().emit("	worker_index = (size_t) arg;");
+        emitter().emit("	while (!interrupted) {");
+        emitter().emit("		actor_task *task = actor_task_pop(&task_deques[worker_index]);");
+        emitter().emit("		for (size_t i = 1; task == NULL && i < TASK_WORKERS; i++) {");
+        emitter().emit("			task = actor_task_steal(&task_deques[(worker_index + i) %% TASK_WORKERS]);");
+        emitter().emit("		}");
+        emitter().emit("		if (task == NULL) {");
+        emitter().emit("			if (atomic_load(&tasks_active) == 0) {");
+        emitter().emit("				break;");
+        emitter().emit("			}");
+        emitter().emit("			sched_yield();");
+        emitter().emit("			continue;");
+        emitter().emit("		}");
+        emitter().emit("		int state;");
+        emitter().emit("		do {");
+        emitter().emit("			atomic_store(&task->scheduled, TASK_SCHEDULED);");
+        emitter().emit("			task->run(task->instance);");
+        emitter().emit("			state = TASK_SCHEDULED;");
+        emitter().emit("		} while (!atomic_compare_exchange_strong(&task->scheduled, &state, TASK_IDLE) && !interrupted);");
+        emitter().emit("		atomic_fetch_sub(&tasks_active, 1);");
+        emitter().emit("	}");
+        emitter().emit("	return NULL;");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+    /**
+     * Emit the scheduling loop: a task runs until its controller waits, and is made ready again by the
+     * channel operations of its neighbours.
+     */
+    default void schedule() {
+        if (isWorkStealing()) {
+            emitter().emit("pthread_t threads[TASK_WORKERS];");
+            emitter().emit("for (size_t t = 1; t < TASK_WORKERS; t++) {");
+            emitter().emit("	pthread_create(&threads[t], NULL, task_worker, (void *) t);");
+            emitter().emit("}");
+            emitter().emit("task_worker((void *) 0);");
+            emitter().emit("for (size_t t = 1; t < TASK_WORKERS; t++) {");
+            emitter().emit("	pthread_join(threads[t], NULL);");
+            emitter().emit("}");
+            emitter().emit("for (size_t w = 0; w < TASK_WORKERS; w++) {");
+            emitter().emit("	pthread_mutex_destroy(&task_deques[w].lock);");
+            emitter().emit("}");
+            emitter().emit("");
+            return;
+        }
+        emitter().emit("while (ready_head != NULL && !interrupted) {");
+        emitter().emit("	actor_task *task = ready_head;");
+        emitter().emit("	ready_head = task->next;");
+        emitter().emit("	if (ready_head == NULL) {");
+        emitter().emit("		ready_tail = NULL;");
+        emitter().emit("	}");
+        emitter().emit("	task->ready = false;");
+        emitter().emit("	task->run(task->instance);");
+        emitter().emit("}");
+        emitter().emit("");
+    }
+
+}
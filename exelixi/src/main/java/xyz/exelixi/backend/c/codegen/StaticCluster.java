@@ -0,0 +1,104 @@
+package xyz.exelixi.backend.c.codegen;
+
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A connected set of static rate instances executed by one statically scheduled function
+ *
+ * @author Endri Bezati
+ */
+public class StaticCluster {
+
+    /**
+     * One firing of a static instance: the scopes initialized by the controller on its way to the
+     * transition, the transition, and the number of tokens consumed and produced on each port.
+     */
+    public static class Phase {
+        public final List<Integer> scopes;
+        public final int transition;
+        public final Map<String, Integer> inputRates;
+        public final Map<String, Integer> outputRates;
+
+        public Phase(List<Integer> scopes, int transition, Map<String, Integer> inputRates, Map<String, Integer> outputRates) {
+            this.scopes = scopes;
+            this.transition = transition;
+            this.inputRates = inputRates;
+            this.outputRates = outputRates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Phase phase = (Phase) o;
+            return transition == phase.transition && scopes.equals(phase.scopes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scopes, transition);
+        }
+    }
+
+    /**
+     * A run of identical consecutive firings of an instance in the static schedule
+     */
+    public static class Firing {
+        public final Instance instance;
+        public final Phase phase;
+        public final int count;
+
+        public Firing(Instance instance, Phase phase, int count) {
+            this.instance = instance;
+            this.phase = phase;
+            this.count = count;
+        }
+    }
+
+    /**
+     * A channel between the cluster and the rest of the network, with the number of tokens transferred in
+     * one iteration of the schedule. For an output, index is the position of the channel in the channel
+     * vector of the writer.
+     */
+    public static class Boundary {
+        public final Connection.End source;
+        public final Connection.End target;
+        public final int index;
+        public final int tokens;
+
+        public Boundary(Connection.End source, Connection.End target, int index, int tokens) {
+            this.source = source;
+            this.target = target;
+            this.index = index;
+            this.tokens = tokens;
+        }
+    }
+
+    public final int id;
+    public final List<Instance> instances;
+    public final List<Firing> schedule = new ArrayList<>();
+    public final List<Boundary> inputs = new ArrayList<>();
+    public final List<Boundary> outputs = new ArrayList<>();
+
+    /**
+     * Largest number of tokens stored in each internal channel, by target end, during one iteration
+     */
+    public final Map<Connection.End, Integer> internalSizes = new HashMap<>();
+
+    public StaticCluster(int id, List<Instance> instances) {
+        this.id = id;
+        this.instances = instances;
+    }
+
+    public String functionName() {
+        return "cluster_" + id + "_run";
+    }
+
+}
@@ -0,0 +1,463 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.entity.Entity;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Condition;
+import se.lth.cs.tycho.ir.entity.am.PortCondition;
+import se.lth.cs.tycho.ir.entity.am.Transition;
+import se.lth.cs.tycho.ir.entity.am.ctrl.*;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+import xyz.exelixi.utils.BufferSizes;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.multij.BindingKind.LAZY;
+
+/**
+ * Static rate analysis of the network. An instance is static when its controller, assuming that every
+ * port condition holds, fires a fixed cyclic sequence of transitions without testing any predicate, and
+ * waits whenever a port condition does not hold (SDF for one transition per cycle, CSDF otherwise).
+ * Connected static instances form a cluster, for which the repetition vector and a sequential schedule
+ * are computed at compile time. The cluster is executed by a single function that tests the channels
+ * crossing the cluster boundary once per iteration, and fires the transitions in schedule order.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface StaticClusters {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    /**
+     * Upper bound on the length of a static cycle and on the number of firings of a schedule
+     */
+    int MAX_FIRINGS = 4096;
+
+    default boolean isEnabled() {
+        return backend().configuration().get(CBackendPhase.staticClusters) && !backend().scheduler().isDataDriven();
+    }
+
+    default Network network() {
+        return backend().task().getNetwork();
+    }
+
+    default Entity entity(Instance instance) {
+        return backend().globalNames().entityDecl(instance.getEntityName(), true).getEntity();
+    }
+
+    default Optional<List<StaticCluster.Phase>> cycle(Entity entity) {
+        return Optional.empty();
+    }
+
+    /**
+     * The cycle of phases of a static actor machine, or empty if the actor machine is dynamic
+     */
+    default Optional<List<StaticCluster.Phase>> cycle(ActorMachine actorMachine) {
+        List<? extends State> stateList = actorMachine.controller().getStateList();
+        if (stateList.isEmpty()) {
+            return Optional.empty();
+        }
+        List<StaticCluster.Phase> phases = new ArrayList<>();
+        Map<State, Integer> execTargets = new HashMap<>();
+        Map<String, Integer> tested = new HashMap<>();
+        List<Integer> scopes = new ArrayList<>();
+        State state = stateList.get(0);
+        execTargets.put(state, 0);
+        for (int steps = 0; steps < MAX_FIRINGS * 16; steps++) {
+            Instruction instruction = state.getInstructions().get(0);
+            backend().scopes().init(actorMachine, instruction).stream().forEach(scope -> scopes.add(scope));
+            if (instruction.getKind() == InstructionKind.TEST) {
+                Test test = (Test) instruction;
+                Condition condition = actorMachine.getConditions().get(test.condition());
+                if (!(condition instanceof PortCondition) || !waitsWithoutFiring(actorMachine, test.targetFalse(), new HashSet<>())) {
+                    return Optional.empty();
+                }
+                PortCondition portCondition = (PortCondition) condition;
+                tested.merge(portCondition.getPortName().getName(), portCondition.N(), Math::max);
+                state = test.targetTrue();
+            } else if (instruction.getKind() == InstructionKind.EXEC) {
+                Exec exec = (Exec) instruction;
+                Transition transition = actorMachine.getTransitions().get(exec.transition());
+                Map<String, Integer> inputRates = rates(transition.getInputRates());
+                Map<String, Integer> outputRates = rates(transition.getOutputRates());
+                for (Map.Entry<String, Integer> test : tested.entrySet()) {
+                    int rate = inputRates.getOrDefault(test.getKey(), outputRates.getOrDefault(test.getKey(), 0));
+                    if (test.getValue() > rate) {
+                        return Optional.empty();
+                    }
+                }
+                phases.add(new StaticCluster.Phase(new ArrayList<>(scopes), exec.transition(), inputRates, outputRates));
+                scopes.clear();
+                tested.clear();
+                state = exec.target();
+                if (execTargets.containsKey(state)) {
+                    return periodic(phases, execTargets.get(state));
+                }
+                if (phases.size() > MAX_FIRINGS) {
+                    return Optional.empty();
+                }
+                execTargets.put(state, phases.size());
+            } else {
+                return Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * The firing sequence is prefix + cycle*. It is periodic from the first firing when the prefix is
+     * equal to the end of the cycle, in which case the period starts with the prefix.
+     */
+    default Optional<List<StaticCluster.Phase>> periodic(List<StaticCluster.Phase> phases, int cycleStart) {
+        List<StaticCluster.Phase> prefix = phases.subList(0, cycleStart);
+        List<StaticCluster.Phase> cycle = phases.subList(cycleStart, phases.size());
+        if (prefix.size() > cycle.size() || !prefix.equals(cycle.subList(cycle.size() - prefix.size(), cycle.size()))) {
+            return Optional.empty();
+        }
+        List<StaticCluster.Phase> result = new ArrayList<>(prefix);
+        result.addAll(cycle.subList(0, cycle.size() - prefix.size()));
+        return Optional.of(result);
+    }
+
+    /**
+     * Test that a controller that failed a port condition only tests other port conditions and waits
+     */
+    default boolean waitsWithoutFiring(ActorMachine actorMachine, State state, Set<State> visited) {
+        if (!visited.add(state)) {
+            return true;
+        }
+        Instruction instruction = state.getInstructions().get(0);
+        if (instruction.getKind() == InstructionKind.WAIT) {
+            return true;
+        } else if (instruction.getKind() == InstructionKind.TEST) {
+            Test test = (Test) instruction;
+            return actorMachine.getConditions().get(test.condition()) instanceof PortCondition
+                    && waitsWithoutFiring(actorMachine, test.targetTrue(), visited)
+                    && waitsWithoutFiring(actorMachine, test.targetFalse(), visited);
+        } else {
+            return false;
+        }
+    }
+
+    default Map<String, Integer> rates(Map<Port, Integer> rates) {
+        Map<String, Integer> result = new HashMap<>();
+        rates.forEach((port, rate) -> result.merge(port.getName(), rate, Integer::sum));
+        return result;
+    }
+
+    default int rate(List<StaticCluster.Phase> cycle, String port, boolean input) {
+        return cycle.stream().mapToInt(phase -> (input ? phase.inputRates : phase.outputRates).getOrDefault(port, 0)).sum();
+    }
+
+    /**
+     * The static clusters of the network. A cluster only contains instances of the same partition.
+     */
+    @Binding(LAZY)
+    default List<StaticCluster> clusters() {
+        List<StaticCluster> clusters = new ArrayList<>();
+        if (!isEnabled()) {
+            return clusters;
+        }
+
+        Map<String, List<StaticCluster.Phase>> cycles = new HashMap<>();
+        for (Instance instance : network().getInstances()) {
+            cycle(entity(instance)).ifPresent(cycle -> cycles.put(instance.getInstanceName(), cycle));
+        }
+
+        // -- connected components of static instances
+        Map<String, String> component = new HashMap<>();
+        cycles.keySet().forEach(name -> component.put(name, name));
+        for (Connection connection : network().getConnections()) {
+            Optional<String> source = connection.getSource().getInstance();
+            Optional<String> target = connection.getTarget().getInstance();
+            if (source.isPresent() && target.isPresent() && cycles.containsKey(source.get()) && cycles.containsKey(target.get())
+                    && backend().partitioning().partitionOf(source.get()) == backend().partitioning().partitionOf(target.get())) {
+                String a = find(component, source.get());
+                String b = find(component, target.get());
+                if (!a.equals(b)) {
+                    component.put(a, b);
+                }
+            }
+        }
+        Map<String, List<Instance>> members = new LinkedHashMap<>();
+        for (Instance instance : network().getInstances()) {
+            if (cycles.containsKey(instance.getInstanceName())) {
+                members.computeIfAbsent(find(component, instance.getInstanceName()), k -> new ArrayList<>()).add(instance);
+            }
+        }
+
+        for (List<Instance> instances : members.values()) {
+            if (instances.size() > 1) {
+                schedule(new StaticCluster(clusters.size(), instances), cycles).ifPresent(clusters::add);
+            }
+        }
+        return clusters;
+    }
+
+    default String find(Map<String, String> component, String name) {
+        String root = name;
+        while (!component.get(root).equals(root)) {
+            root = component.get(root);
+        }
+        return root;
+    }
+
+    /**
+     * Compute the repetition vector and a sequential schedule of a cluster, or empty if the rates of the
+     * cluster are inconsistent or if the schedule deadlocks.
+     */
+    default Optional<StaticCluster> schedule(StaticCluster cluster, Map<String, List<StaticCluster.Phase>> cycles) {
+        Set<String> names = cluster.instances.stream().map(Instance::getInstanceName).collect(Collectors.toSet());
+        List<Connection> internal = network().getConnections().stream()
+                .filter(c -> c.getSource().getInstance().filter(names::contains).isPresent() && c.getTarget().getInstance().filter(names::contains).isPresent())
+                .collect(Collectors.toList());
+
+        // -- repetition vector, as fractions of the repetitions of the first instance
+        Map<String, BigInteger[]> repetitions = new HashMap<>();
+        repetitions.put(cluster.instances.get(0).getInstanceName(), new BigInteger[]{BigInteger.ONE, BigInteger.ONE});
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Connection connection : internal) {
+                String source = connection.getSource().getInstance().get();
+                String target = connection.getTarget().getInstance().get();
+                BigInteger produced = BigInteger.valueOf(rate(cycles.get(source), connection.getSource().getPort(), false));
+                BigInteger consumed = BigInteger.valueOf(rate(cycles.get(target), connection.getTarget().getPort(), true));
+                if (produced.signum() == 0 && consumed.signum() == 0) {
+                    continue;
+                } else if (produced.signum() == 0 || consumed.signum() == 0) {
+                    return Optional.empty();
+                }
+                BigInteger[] qs = repetitions.get(source);
+                BigInteger[] qt = repetitions.get(target);
+                if (qs != null && qt == null) {
+                    repetitions.put(target, reduce(qs[0].multiply(produced), qs[1].multiply(consumed)));
+                    changed = true;
+                } else if (qs == null && qt != null) {
+                    repetitions.put(source, reduce(qt[0].multiply(consumed), qt[1].multiply(produced)));
+                    changed = true;
+                } else if (qs != null && !qs[0].multiply(produced).multiply(qt[1]).equals(qt[0].multiply(consumed).multiply(qs[1]))) {
+                    return Optional.empty();
+                }
+            }
+        }
+        if (repetitions.size() != names.size()) {
+            return Optional.empty();
+        }
+        BigInteger lcm = BigInteger.ONE;
+        for (BigInteger[] q : repetitions.values()) {
+            lcm = lcm.divide(lcm.gcd(q[1])).multiply(q[1]);
+        }
+        Map<String, Integer> firings = new HashMap<>();
+        BigInteger gcd = BigInteger.ZERO;
+        for (BigInteger[] q : repetitions.values()) {
+            gcd = gcd.gcd(q[0].multiply(lcm).divide(q[1]));
+        }
+        long total = 0;
+        for (Map.Entry<String, BigInteger[]> q : repetitions.entrySet()) {
+            BigInteger n = q.getValue()[0].multiply(lcm).divide(q.getValue()[1]).divide(gcd).multiply(BigInteger.valueOf(cycles.get(q.getKey()).size()));
+            if (n.bitLength() > 31) {
+                return Optional.empty();
+            }
+            total += n.intValue();
+            firings.put(q.getKey(), n.intValue());
+        }
+        if (total > MAX_FIRINGS) {
+            return Optional.empty();
+        }
+
+        // -- an unconnected input port never receives tokens, the instance must stay dynamic
+        Set<Connection.End> connectedTargets = network().getConnections().stream().map(Connection::getTarget).collect(Collectors.toSet());
+        for (Instance instance : cluster.instances) {
+            for (PortDecl port : entity(instance).getInputPorts()) {
+                Connection.End end = new Connection.End(Optional.of(instance.getInstanceName()), port.getName());
+                if (!connectedTargets.contains(end) && rate(cycles.get(instance.getInstanceName()), port.getName(), true) > 0) {
+                    return Optional.empty();
+                }
+            }
+        }
+
+        // -- sequential schedule: every instance fires as long as its internal inputs have enough tokens
+        Map<Connection.End, List<Connection.End>> readers = new HashMap<>();
+        for (Connection connection : internal) {
+            readers.computeIfAbsent(connection.getSource(), k -> new ArrayList<>()).add(connection.getTarget());
+        }
+        Set<Connection.End> internalTargets = internal.stream().map(Connection::getTarget).collect(Collectors.toSet());
+        Map<Connection.End, Integer> tokens = new HashMap<>();
+        Map<String, Integer> fired = new HashMap<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Instance instance : cluster.instances) {
+                String name = instance.getInstanceName();
+                List<StaticCluster.Phase> cycle = cycles.get(name);
+                while (fired.getOrDefault(name, 0) < firings.get(name)) {
+                    StaticCluster.Phase phase = cycle.get(fired.getOrDefault(name, 0) % cycle.size());
+                    boolean enabled = phase.inputRates.entrySet().stream().allMatch(rate -> {
+                        Connection.End end = new Connection.End(Optional.of(name), rate.getKey());
+                        return !internalTargets.contains(end) || tokens.getOrDefault(end, 0) >= rate.getValue();
+                    });
+                    if (!enabled) {
+                        break;
+                    }
+                    phase.inputRates.forEach((port, rate) -> tokens.computeIfPresent(new Connection.End(Optional.of(name), port), (end, n) -> n - rate));
+                    phase.outputRates.forEach((port, rate) -> {
+                        for (Connection.End target : readers.getOrDefault(new Connection.End(Optional.of(name), port), Collections.emptyList())) {
+                            int n = tokens.merge(target, rate, Integer::sum);
+                            cluster.internalSizes.merge(target, n, Math::max);
+                        }
+                    });
+                    fired.merge(name, 1, Integer::sum);
+                    addFiring(cluster, instance, phase);
+                    progress = true;
+                }
+            }
+        }
+        if (!fired.equals(firings)) {
+            return Optional.empty();
+        }
+
+        // -- channels crossing the cluster boundary
+        Map<Connection.End, Integer> readerIndex = new HashMap<>();
+        for (Connection connection : network().getConnections()) {
+            Connection.End source = connection.getSource();
+            Connection.End target = connection.getTarget();
+            int index = readerIndex.merge(source, 1, Integer::sum) - 1;
+            boolean sourceInside = source.getInstance().filter(names::contains).isPresent();
+            boolean targetInside = target.getInstance().filter(names::contains).isPresent();
+            if (targetInside && !sourceInside) {
+                String name = target.getInstance().get();
+                int n = firings.get(name) / cycles.get(name).size() * rate(cycles.get(name), target.getPort(), true);
+                cluster.inputs.add(new StaticCluster.Boundary(source, target, index, n));
+            } else if (sourceInside && !targetInside) {
+                String name = source.getInstance().get();
+                int n = firings.get(name) / cycles.get(name).size() * rate(cycles.get(name), source.getPort(), false);
+                cluster.outputs.add(new StaticCluster.Boundary(source, target, index, n));
+            }
+        }
+        return Optional.of(cluster);
+    }
+
+    default BigInteger[] reduce(BigInteger numerator, BigInteger denominator) {
+        BigInteger gcd = numerator.gcd(denominator);
+        return new BigInteger[]{numerator.divide(gcd), denominator.divide(gcd)};
+    }
+
+    default void addFiring(StaticCluster cluster, Instance instance, StaticCluster.Phase phase) {
+        List<StaticCluster.Firing> schedule = cluster.schedule;
+        if (!schedule.isEmpty()) {
+            StaticCluster.Firing last = schedule.get(schedule.size() - 1);
+            if (last.instance == instance && last.phase.equals(phase)) {
+                schedule.set(schedule.size() - 1, new StaticCluster.Firing(instance, phase, last.count + 1));
+                return;
+            }
+        }
+        schedule.add(new StaticCluster.Firing(instance, phase, 1));
+    }
+
+    default Optional<StaticCluster> clusterOf(Instance instance) {
+        return clusters().stream().filter(cluster -> cluster.instances.contains(instance)).findFirst();
+    }
+
+    /**
+     * The size of the channel of a target end: channels inside a cluster hold exactly the tokens of the
+     * static schedule, and channels crossing the boundary hold at least the tokens of one iteration.
+     */
+    default int channelSize(Connection.End target, int size) {
+        for (StaticCluster cluster : clusters()) {
+            if (cluster.internalSizes.containsKey(target)) {
+                return BufferSizes.nextPowerOfTwo(cluster.internalSizes.get(target));
+            }
+            for (StaticCluster.Boundary boundary : cluster.inputs) {
+                if (boundary.target.equals(target)) {
+                    size = Math.max(size, BufferSizes.nextPowerOfTwo(boundary.tokens));
+                }
+            }
+            for (StaticCluster.Boundary boundary : cluster.outputs) {
+                if (boundary.target.equals(target)) {
+                    size = Math.max(size, BufferSizes.nextPowerOfTwo(boundary.tokens));
+                }
+            }
+        }
+        return size;
+    }
+
+    default String portType(Connection.End end, boolean input) {
+        Instance instance = network().getInstances().stream().filter(i -> i.getInstanceName().equals(end.getInstance().get())).findFirst().get();
+        Entity entity = entity(instance);
+        PortDecl port = (input ? entity.getInputPorts() : entity.getOutputPorts()).stream().filter(p -> p.getName().equals(end.getPort())).findFirst().get();
+        return backend().code().type(backend().types().declaredPortType(port));
+    }
+
+    default void declareClusters() {
+        for (StaticCluster cluster : clusters()) {
+            emitter().emit("// -- Static cluster %d: %s", cluster.id, cluster.instances.stream().map(Instance::getInstanceName).collect(Collectors.joining(", ")));
+            emitter().emit("static _Bool %s(void) {", cluster.functionName());
+            emitter().increaseIndentation();
+
+            List<String> tests = new ArrayList<>();
+            for (StaticCluster.Boundary input : cluster.inputs) {
+                if (input.tokens > 0) {
+                    tests.add(String.format("channel_has_data_%s(%s.%s_channel, %d)", portType(input.target, true), input.target.getInstance().get(), input.target.getPort(), input.tokens));
+                }
+            }
+            for (StaticCluster.Boundary output : cluster.outputs) {
+                if (output.tokens > 0) {
+                    tests.add(String.format("channel_has_space_%s(&%s.%s_channels[%d], 1, %d)", portType(output.source, false), output.source.getInstance().get(), output.source.getPort(), output.index, output.tokens));
+                }
+            }
+
+            if (tests.isEmpty()) {
+                // -- a closed cluster runs one iteration per call
+                emitIteration(cluster);
+                emitter().emit("return true;");
+            } else {
+                emitter().emit("_Bool progress = false;");
+                emitter().emit("while (%s) {", String.join(" && ", tests));
+                emitter().increaseIndentation();
+                emitIteration(cluster);
+                emitter().emit("progress = true;");
+                emitter().decreaseIndentation();
+                emitter().emit("}");
+                emitter().emit("return progress;");
+            }
+
+            emitter().decreaseIndentation();
+            emitter().emit("}");
+            emitter().emit("");
+        }
+    }
+
+    default void emitIteration(StaticCluster cluster) {
+        for (StaticCluster.Firing firing : cluster.schedule) {
+            if (firing.count > 1) {
+                emitter().emit("for (int i = 0; i < %d; i++) {", firing.count);
+                emitter().increaseIndentation();
+            }
+            String entityName = firing.instance.getEntityName().getLast().toString();
+            for (int scope : firing.phase.scopes) {
+                emitter().emit("%s_init_scope_%d(&%s);", entityName, scope, firing.instance.getInstanceName());
+            }
+            emitter().emit("%s_transition_%d(&%s);", entityName, firing.phase.transition, firing.instance.getInstanceName());
+            if (firing.count > 1) {
+                emitter().decreaseIndentation();
+                emitter().emit("}");
+            }
+        }
+    }
+
+}
@@ -143,7 +143,11 @@ public interface Structure {
         emitter().emit("void %s_init_actor(%s) {", name, String.join(", ", parameters));
         emitter().increaseIndentation();
         emitter().emit("self->program_counter = 0;");
+        if (backend().scheduler().isDataDriven()) {
+            emitter().emit("self->task = NULL;");
+        }
         emitter().emit("");
+        backend().profiler().initStateFields();
 
         emitter().emit("// parameters");
         actorMachine.getValueParameters().forEach(d -> {
@@ -211,6 +215,7 @@ public interface Structure {
         for (Transition transition : actorMachine.getTransitions()) {
             emitter().emit("void %s_transition_%d(%s_state *self) {", name, i, name);
             emitter().increaseIndentation();
+            backend().profiler().firing(i);
             transition.getBody().forEach(code()::execute);
             emitter().decreaseIndentation();
             emitter().emit("}");
@@ -254,7 +259,7 @@ public interface Structure {
         if (condition.isInputCondition()) {
             return String.format("channel_has_data_%s(self->%s_channel, %d)", code().type(types().portType(condition.getPortName())), condition.getPortName().getName(), condition.N());
         } else {
-            return String.format("channel_has_space_%s(self->%s_channels, self->%2$s_count, %d)", code().type(types().portType(condition.getPortName())), condition.getPortName().getName(), condition.N());
+            return String.format("channel_has_space_%s(self->%s_channels, %s, %d)", code().type(types().portType(condition.getPortName())), condition.getPortName().getName(), backend().channelSpecialization().count(condition.getPortName()), condition.N());
         }
     }
 
@@ -301,8 +306,20 @@ public interface Structure {
         emitter().emit("typedef struct {");
         emitter().increaseIndentation();
 
-        emitter().emit("int program_counter;");
+        if (backend().controllers().isComputedGoto()) {
+            emitter().emit("#ifdef EXELIXI_COMPUTED_GOTO");
+            emitter().emit("void *program_counter;");
+            emitter().emit("#else");
+            emitter().emit("int program_counter;");
+            emitter().emit("#endif");
+        } else {
+            emitter().emit("int program_counter;");
+        }
+        if (backend().scheduler().isDataDriven()) {
+            emitter().emit("actor_task *task;");
+        }
         emitter().emit("");
+        backend().profiler().stateFields(actorMachine.getTransitions().size());
 
         emitter().emit("// parameters");
         for (VarDecl param : actorMachine.getValueParameters()) {
@@ -331,8 +348,9 @@ public interface Structure {
             emitter().emit("// scope %d", i);
             backend().callables().declareEnvironmentForCallablesInScope(scope);
             for (VarDecl var : scope.getDeclarations()) {
-                String decl = code().declaration(types().declaredType(var), backend().variables().declarationName(var));
-                emitter().emit("%s;", decl);
+                Type type = types().declaredType(var);
+                String decl = code().declaration(type, backend().variables().declarationName(var));
+                emitter().emit("%s%s;", decl, backend().vectorization().alignment(type));
             }
             emitter().emit("");
             i++;
@@ -0,0 +1,108 @@
+package xyz.exelixi.backend.c.codegen;
+
+import org.multij.Binding;
+import org.multij.Module;
+import se.lth.cs.tycho.types.ListType;
+import se.lth.cs.tycho.types.Type;
+import xyz.exelixi.backend.c.CBackendCore;
+import xyz.exelixi.backend.c.CBackendPhase;
+
+/**
+ * Vectorizable code for the repeated input and output patterns. The tokens are copied between aligned
+ * contiguous arrays through restrict-qualified pointers, in loops that the C compiler can vectorize, and
+ * that are marked with an OpenMP simd directive when explicit vectorization is enabled.
+ *
+ * @author Endri Bezati
+ */
+@Module
+public interface Vectorization {
+    @Binding
+    CBackendCore backend();
+
+    default Emitter emitter() {
+        return backend().emitter();
+    }
+
+    default boolean isExplicit() {
+        return backend().configuration().get(CBackendPhase.simd);
+    }
+
+    /**
+     * Emit the alignment and loop macros, in fifo.h
+     */
+    default void simdCode() {
+        emitter().emit("// VECTORIZATION");
+        emitter().emit("#define SIMD_ALIGNMENT 32");
+        emitter().emit("#if defined(__GNUC__) || defined(__clang__)");
+        emitter().emit("#define SIMD_ALIGNED __attribute__((aligned(SIMD_ALIGNMENT)))");
+        emitter().emit("#else");
+        emitter().emit("#define SIMD_ALIGNED");
+        emitter().emit("#endif");
+        emitter().emit("#ifdef EXELIXI_SIMD");
+        emitter().emit("#define SIMD_LOOP _Pragma(\"omp simd\")");
+        emitter().emit("#else");
+        emitter().emit("#define SIMD_LOOP");
+        emitter().emit("#endif");
+        emitter().emit("");
+    }
+
+    /**
+     * The number of tokens of the aligned scratch buffers of the repeated patterns, that are kept on the
+     * stack: a longer or run-time repeat count is converted in chunks of this size
+     */
+    default int scratchTokens() {
+        return 256;
+    }
+
+    /**
+     * The alignment attribute of a variable declaration
+     *
+     * @param type the type of the variable
+     * @return the attribute for the lists of known size, or else an empty string
+     */
+    default String alignment(Type type) {
+        if (type instanceof ListType && ((ListType) type).getSize().isPresent()) {
+            return " SIMD_ALIGNED";
+        }
+        return "";
+    }
+
+    /**
+     * Emit a vectorizable element-wise copy between two arrays of different element types
+     *
+     * @param targetType the element type of the target array
+     * @param target     the target array
+     * @param sourceType the element type of the source array
+     * @param source     the source array
+     * @param count      the number of elements
+     */
+    default void copy(String targetType, String target, String sourceType, String source, String count) {
+        String dst = backend().variables().generateTemp();
+        String src = backend().variables().generateTemp();
+        String index = backend().variables().generateTemp();
+        emitter().emit("%s *restrict %s = %s;", targetType, dst, target);
+        emitter().emit("const %s *restrict %s = %s;", sourceType, src, source);
+        emitter().emit("SIMD_LOOP");
+        emitter().emit("for (size_t %1$s = 0; %1$s < %2$s; %1$s++) {", index, count);
+        emitter().emit("	%s[%s] = %s[%2$s];", dst, index, src);
+        emitter().emit("}");
+    }
+
+    /**
+     * Emit the CMake option that enables the simd directives
+     */
+    default void cmakeOption() {
+        if (isExplicit()) {
+            emitter().emit("# -- Vectorization");
+            emitter().emit("option(EXELIXI_SIMD \"Vectorize the repeated token copies with OpenMP simd directives\" ON)");
+            emitter().emit("if (EXELIXI_SIMD)");
+            emitter().emit("    add_definitions(-DEXELIXI_SIMD)");
+            emitter().emit("    if (CMAKE_C_COMPILER_ID MATCHES \"GNU|Clang\")");
+            emitter().emit("        set(CMAKE_C_FLAGS \"${CMAKE_C_FLAGS} -fopenmp-simd\")");
+            emitter().emit("    endif()");
+            emitter().emit("endif()");
+            emitter().emit("");
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package xyz.exelixi.backend.c.phases;
+
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.comp.Context;
+import se.lth.cs.tycho.comp.SourceUnit;
+import se.lth.cs.tycho.ir.ToolAttribute;
+import se.lth.cs.tycho.ir.ToolValueAttribute;
+import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
+import se.lth.cs.tycho.ir.entity.Entity;
+import se.lth.cs.tycho.ir.expr.ExprLiteral;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import se.lth.cs.tycho.phases.Phase;
+import se.lth.cs.tycho.reporting.CompilationException;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.OnOffSetting;
+import se.lth.cs.tycho.settings.Setting;
+import xyz.exelixi.utils.IntegerSetting;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Fuse the linear chains of single-input/single-output instances. The instances of a chain are given the
+ * same composition attribute, so that the composition phases merge them into one actor machine and turn
+ * the channels of the chain into internal buffers.
+ *
+ * @author Endri Bezati
+ */
+public class ActorFusionPhase implements Phase {
+
+    public static final String COMPOSITION = "composition";
+
+    /**
+     * Actor fusion
+     */
+    public static final Setting<Boolean> fusion = new OnOffSetting() {
+        @Override public String getKey() { return "c-fusion"; }
+        @Override public String getDescription() { return "Fuse the chains of single-input/single-output instances into one actor machine"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return false; }
+    };
+
+    /**
+     * Maximum length of a fused chain
+     */
+    public static final Setting<Integer> fusionLength = new IntegerSetting() {
+        @Override public String getKey() { return "c-fusion-length"; }
+        @Override public String getDescription() { return "Maximum number of instances fused into one actor machine"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 4; }
+    };
+
+    @Override
+    public String getDescription() {
+        return "Fuse chains of single-input/single-output instances";
+    }
+
+    @Override
+    public List<Setting<?>> getPhaseSettings() {
+        return Arrays.asList(fusion, fusionLength);
+    }
+
+    @Override
+    public CompilationTask execute(CompilationTask task, Context context) throws CompilationException {
+        if (!context.getConfiguration().get(fusion)) {
+            return task;
+        }
+        Network network = task.getNetwork();
+        int maxLength = Math.max(2, context.getConfiguration().get(fusionLength));
+
+        // -- the successor of each candidate instance whose output feeds exactly one candidate
+        Set<String> candidates = network.getInstances().stream()
+                .filter(instance -> isCandidate(task, instance))
+                .map(Instance::getInstanceName)
+                .collect(Collectors.toSet());
+        Map<Connection.End, List<Connection>> outgoing = network.getConnections().stream()
+                .collect(Collectors.groupingBy(Connection::getSource));
+        Map<String, String> next = new HashMap<>();
+        Map<String, String> previous = new HashMap<>();
+        for (List<Connection> connections : outgoing.values()) {
+            if (connections.size() == 1) {
+                Connection connection = connections.get(0);
+                Optional<String> source = connection.getSource().getInstance();
+                Optional<String> target = connection.getTarget().getInstance();
+                if (source.isPresent() && target.isPresent() && !source.equals(target)
+                        && candidates.contains(source.get()) && candidates.contains(target.get())) {
+                    next.put(source.get(), target.get());
+                    previous.put(target.get(), source.get());
+                }
+            }
+        }
+
+        // -- chains start at an instance without predecessor, so that rings are never fused
+        Map<String, String> composition = new HashMap<>();
+        for (Instance instance : network.getInstances()) {
+            String name = instance.getInstanceName();
+            if (next.containsKey(name) && !previous.containsKey(name)) {
+                List<String> chain = new ArrayList<>();
+                for (String member = name; member != null; member = next.get(member)) {
+                    chain.add(member);
+                }
+                for (int start = 0; start + 1 < chain.size(); start += maxLength) {
+                    List<String> segment = chain.subList(start, Math.min(chain.size(), start + maxLength));
+                    if (segment.size() > 1) {
+                        segment.forEach(member -> composition.put(member, "fused_" + segment.get(0)));
+                    }
+                }
+            }
+        }
+        if (composition.isEmpty()) {
+            return task;
+        }
+
+        List<Instance> instances = network.getInstances().stream()
+                .map(instance -> {
+                    String name = composition.get(instance.getInstanceName());
+                    if (name == null) {
+                        return instance;
+                    }
+                    List<ToolAttribute> attributes = new ArrayList<>(instance.getAttributes());
+                    attributes.add(new ToolValueAttribute(COMPOSITION, new ExprLiteral(ExprLiteral.Kind.String, "\"" + name + "\"")));
+                    return instance.withAttributes(attributes);
+                })
+                .collect(Collectors.toList());
+        return task.withNetwork(network.withInstances(instances));
+    }
+
+    /**
+     * An instance can be fused if its entity has one input and one output port, and if it is not already
+     * part of a composition.
+     */
+    private boolean isCandidate(CompilationTask task, Instance instance) {
+        if (instance.getAttributes().stream().anyMatch(attribute -> attribute.getName().equals(COMPOSITION))) {
+            return false;
+        }
+        Entity entity = task.getSourceUnits().stream()
+                .map(SourceUnit::getTree)
+                .filter(ns -> ns.getQID().equals(instance.getEntityName().getButLast()))
+                .flatMap(ns -> ns.getEntityDecls().stream())
+                .filter(decl -> decl.getName().equals(instance.getEntityName().getLast().toString()))
+                .map(GlobalEntityDecl::getEntity)
+                .findFirst().orElse(null);
+        return entity != null && entity.getInputPorts().size() == 1 && entity.getOutputPorts().size() == 1;
+    }
+
+}
@@ -0,0 +1,233 @@
+package xyz.exelixi.backend.c.phases;
+
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.comp.Context;
+import se.lth.cs.tycho.comp.SourceUnit;
+import se.lth.cs.tycho.ir.IRNode;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.ToolAttribute;
+import se.lth.cs.tycho.ir.ToolValueAttribute;
+import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
+import se.lth.cs.tycho.ir.entity.Entity;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Transition;
+import se.lth.cs.tycho.ir.expr.ExprLiteral;
+import se.lth.cs.tycho.ir.network.Connection;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.network.Network;
+import se.lth.cs.tycho.ir.stmt.StmtForeach;
+import se.lth.cs.tycho.ir.stmt.StmtWhile;
+import se.lth.cs.tycho.phases.Phase;
+import se.lth.cs.tycho.reporting.CompilationException;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.Setting;
+import se.lth.cs.tycho.settings.StringSetting;
+import xyz.exelixi.backend.c.CBackendPhase;
+import xyz.exelixi.utils.GraphPartitioner;
+import xyz.exelixi.utils.IntegerSetting;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Partition the network instances among the threads of the generated program. The network is seen as a
+ * graph whose vertices are the instances, weighted by their execution cost, and whose edges are the
+ * connections, weighted by their traffic. The graph is partitioned in balanced parts of minimal edge cut,
+ * and every instance is given a partition attribute, so that each partition is executed by its own pinned
+ * thread.
+ *
+ * @author Endri Bezati
+ */
+public class GraphPartitioningPhase implements Phase {
+
+    public static final String PARTITION = "partition";
+
+    /**
+     * Cost factor of the statements in a loop
+     */
+    private static final int LOOP_FACTOR = 8;
+
+    /**
+     * Number of partitions
+     */
+    public static final Setting<Integer> partitions = new IntegerSetting() {
+        @Override public String getKey() { return "c-partitions"; }
+        @Override public String getDescription() { return "Number of balanced partitions of the network, each executed by its own pinned thread (0 disables the partitioning)"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 0; }
+    };
+
+    /**
+     * Tolerated load imbalance
+     */
+    public static final Setting<Integer> partitionImbalance = new IntegerSetting() {
+        @Override public String getKey() { return "c-partition-imbalance"; }
+        @Override public String getDescription() { return "Load of the heaviest partition allowed above the average load, in percent"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 5; }
+    };
+
+    /**
+     * Profile of a previous execution
+     */
+    public static final Setting<String> partitionProfile = new StringSetting() {
+        @Override public String getKey() { return "c-partition-profile"; }
+        @Override public String getDescription() { return "JSON profile written by a program compiled with c-profile, whose instance execution times replace the static cost estimates"; }
+        @Override public String defaultValue(Configuration configuration) { return ""; }
+    };
+
+    private static final Pattern PROFILE_TIME = Pattern.compile("\"instance\":\\s*\"([^\"]*)\".*\"time\":\\s*(\\d+)");
+
+    @Override
+    public String getDescription() {
+        return "Partition the network instances among the threads";
+    }
+
+    @Override
+    public List<Setting<?>> getPhaseSettings() {
+        return Arrays.asList(partitions, partitionImbalance, partitionProfile);
+    }
+
+    @Override
+    public CompilationTask execute(CompilationTask task, Context context) throws CompilationException {
+        int parts = context.getConfiguration().get(partitions);
+        if (parts <= 1) {
+            return task;
+        }
+        if (!context.getConfiguration().get(CBackendPhase.scheduler).equals(CBackendPhase.ROUND_ROBIN_SCHEDULER)) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "The partitioning requires the " + CBackendPhase.ROUND_ROBIN_SCHEDULER + " scheduler"));
+            return task;
+        }
+        if (!context.getConfiguration().get(CBackendPhase.mapping).isEmpty()) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "The partitioning can not be used with a thread mapping"));
+            return task;
+        }
+
+        Network network = task.getNetwork();
+        List<Instance> instances = network.getInstances();
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < instances.size(); i++) {
+            index.put(instances.get(i).getInstanceName(), i);
+        }
+
+        // -- the vertex weights: the profiled execution times, or the static estimates
+        double[] costs = new double[instances.size()];
+        String profilePath = context.getConfiguration().get(partitionProfile);
+        if (!profilePath.isEmpty()) {
+            Map<String, Long> times;
+            try {
+                times = readProfile(profilePath);
+            } catch (IOException e) {
+                context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Can not read the partition profile: " + e.getMessage()));
+                return task;
+            }
+            double mean = times.values().stream().mapToLong(Long::longValue).average().orElse(1);
+            for (int i = 0; i < instances.size(); i++) {
+                Long time = times.get(instances.get(i).getInstanceName());
+                costs[i] = Math.max(1, time != null ? time : mean);
+            }
+        } else {
+            for (int i = 0; i < instances.size(); i++) {
+                costs[i] = staticCost(entity(task, instances.get(i)));
+            }
+        }
+
+        // -- the edge weights: the tokens produced by a firing of the source port
+        GraphPartitioner partitioner = new GraphPartitioner(costs);
+        for (Connection connection : network.getConnections()) {
+            Optional<String> source = connection.getSource().getInstance();
+            Optional<String> target = connection.getTarget().getInstance();
+            if (source.isPresent() && target.isPresent()) {
+                Instance instance = instances.get(index.get(source.get()));
+                int rate = outputRate(entity(task, instance), connection.getSource().getPort());
+                partitioner.addEdge(index.get(source.get()), index.get(target.get()), rate);
+            }
+        }
+        int[] partition = partitioner.partition(parts, context.getConfiguration().get(partitionImbalance) / 100.0);
+
+        // -- partitions are numbered in order of their first instance, so that empty partitions are dropped
+        Map<Integer, Integer> numbers = new HashMap<>();
+        for (int p : partition) {
+            numbers.putIfAbsent(p, numbers.size());
+        }
+        List<Instance> partitioned = new ArrayList<>();
+        for (int i = 0; i < instances.size(); i++) {
+            Instance instance = instances.get(i);
+            List<ToolAttribute> attributes = new ArrayList<>(instance.getAttributes());
+            attributes.removeIf(attribute -> attribute.getName().equals(PARTITION));
+            attributes.add(new ToolValueAttribute(PARTITION, new ExprLiteral(ExprLiteral.Kind.Integer, Integer.toString(numbers.get(partition[i])))));
+            partitioned.add(instance.withAttributes(attributes));
+        }
+        return task.withNetwork(network.withInstances(partitioned));
+    }
+
+    /**
+     * Read the execution time of every instance from a JSON profile
+     */
+    private Map<String, Long> readProfile(String path) throws IOException {
+        Map<String, Long> times = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            Matcher matcher = PROFILE_TIME.matcher(line);
+            if (matcher.find()) {
+                times.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+            }
+        }
+        return times;
+    }
+
+    private Entity entity(CompilationTask task, Instance instance) {
+        return task.getSourceUnits().stream()
+                .map(SourceUnit::getTree)
+                .filter(ns -> ns.getQID().equals(instance.getEntityName().getButLast()))
+                .flatMap(ns -> ns.getEntityDecls().stream())
+                .filter(decl -> decl.getName().equals(instance.getEntityName().getLast().toString()))
+                .map(GlobalEntityDecl::getEntity)
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * The static cost of an actor machine: the mean size of its transition bodies, where the statements in
+     * loops count several times
+     */
+    private double staticCost(Entity entity) {
+        if (!(entity instanceof ActorMachine) || ((ActorMachine) entity).getTransitions().isEmpty()) {
+            return 1;
+        }
+        List<Transition> transitions = ((ActorMachine) entity).getTransitions();
+        double total = 0;
+        for (Transition transition : transitions) {
+            total += 1 + transition.getBody().stream().mapToLong(this::size).sum();
+        }
+        return total / transitions.size();
+    }
+
+    private long size(IRNode node) {
+        long[] size = { 1 };
+        node.forEachChild(child -> size[0] += size(child));
+        if (node instanceof StmtWhile || node instanceof StmtForeach) {
+            size[0] *= LOOP_FACTOR;
+        }
+        return size[0];
+    }
+
+    /**
+     * The largest number of tokens written to a port by one transition, at least one
+     */
+    private int outputRate(Entity entity, String port) {
+        int rate = 1;
+        if (entity instanceof ActorMachine) {
+            for (Transition transition : ((ActorMachine) entity).getTransitions()) {
+                for (Map.Entry<Port, Integer> entry : transition.getOutputRates().entrySet()) {
+                    if (entry.getKey().getName().equals(port)) {
+                        rate = Math.max(rate, entry.getValue());
+                    }
+                }
+            }
+        }
+        return rate;
+    }
+
+}
@@ -26,7 +26,7 @@ public class BasicNetworkSimulator implements Simulator{
 	private int defaultStackSize;
 	private int defaultChannelSize;
 	Network net;
-	private Simulator[] simList;
+	Simulator[] simList;
 	int nextNodeToRun;
 
 	private void warning(String msg) {
@@ -99,6 +99,7 @@ public class BasicNetworkSimulator implements Simulator{
 			int srcPortIndex;
 			int dstNodeIndex = -1;
 			int dstPortIndex;
+			PortDecl srcPort;
 			
 			//---- find the source node and port
 			Identifier srcId = con.getSrcNodeId();
@@ -107,10 +108,12 @@ public class BasicNetworkSimulator implements Simulator{
 				assert srcNodeIndex >= 0;
 				srcPortIndex = findPort(con.getSrcPort().getName(), nodeList.get(srcNodeIndex).getContent().getOutputPorts());
 				assert srcPortIndex>=0;
+				srcPort = nodeList.get(srcNodeIndex).getContent().getOutputPorts().get(srcPortIndex);
 			} else {
 				// connect to an external port
 				srcPortIndex = findPort(con.getSrcPort().getName(), net.getInputPorts());
 				assert srcPortIndex>=0;
+				srcPort = net.getInputPorts().get(srcPortIndex);
 			}
 			
 			//---- find the sink node and port
@@ -133,14 +136,14 @@ public class BasicNetworkSimulator implements Simulator{
 					// internal -> internal
 					assert internalSinkPortChannel[dstNodeIndex][dstPortIndex]==null;   // assert that this is the only connection writing to this port
 					if(internalSourcePortChannel[srcNodeIndex][srcPortIndex]==null){
-						internalSourcePortChannel[srcNodeIndex][srcPortIndex] = createChannel(con);
+						internalSourcePortChannel[srcNodeIndex][srcPortIndex] = createChannel(con, srcPort);
 					}
 					internalSinkPortChannel[dstNodeIndex][dstPortIndex] = internalSourcePortChannel[srcNodeIndex][srcPortIndex];
 				} else {
 					// internal -> external
 					assert internalSourcePortChannel[srcNodeIndex][srcPortIndex]==null;
 					if(externalSinkPortChannel[dstPortIndex]==null){  // the wrapping network has not connected to the port. This gives a warning in the wrapper so ignore it here
-						externalSinkPortChannel[dstPortIndex] = createChannel(con);
+						externalSinkPortChannel[dstPortIndex] = createChannel(con, srcPort);
 					}
 					internalSourcePortChannel[srcNodeIndex][srcPortIndex] = externalSinkPortChannel[dstPortIndex];
 				}
@@ -150,7 +153,7 @@ public class BasicNetworkSimulator implements Simulator{
 					// external -> internal
 					assert internalSinkPortChannel[dstNodeIndex][dstPortIndex] == null;   // assert that this is the only connection writing to this port
 					if(externalSourcePortChannel[srcPortIndex]==null){      // the wrapping network has not connected to the port. This gives a warning in the wrapper so ignore it here
-						externalSourcePortChannel[srcPortIndex] = createChannel(con);
+						externalSourcePortChannel[srcPortIndex] = createChannel(con, srcPort);
 					}
 					internalSinkPortChannel[dstNodeIndex][dstPortIndex] = externalSourcePortChannel[srcPortIndex];
 				} else {
@@ -178,10 +181,28 @@ public class BasicNetworkSimulator implements Simulator{
 		}
 	}
 
-	private Channel createChannel(Connection con) {
+	/**
+	 * Create the channel of a connection. Integer and boolean tokens are stored in a {@link LongChannel}
+	 * and real tokens in a {@link DoubleChannel}, other tokens in a {@link BasicChannel}.
+	 * @param con
+	 * @param srcPort the declaration of the port that writes to the channel
+	 * @return
+	 */
+	private Channel createChannel(Connection con, PortDecl srcPort) {
 		int size = defaultChannelSize;
 		//TODO check for channel size among the tool attributes
-		return new BasicChannel(size);
+		return newChannel(size, srcPort);
+	}
+
+	/**
+	 * Create a channel. The channels are created by the constructor, so an overriding method can not use
+	 * the fields of a subclass.
+	 * @param size
+	 * @param srcPort the declaration of the port that writes to the channel, or null if it is unknown
+	 * @return
+	 */
+	protected Channel newChannel(int size, PortDecl srcPort) {
+		return Channels.create(Channels.kindOf(srcPort != null ? srcPort.getType() : null), size);
 	}
 
 	private void instantiateNodes(Channel[][] internalSourcePortChannel, Channel[][] intrnalSinkPortChannel){
@@ -200,7 +221,7 @@ public class BasicNetworkSimulator implements Simulator{
 					if(c==null){
 						Node n = net.getNodes().get(nodeIndex);
 						warning("unconnected port. Node " + n.getName() + ", port: " + n.getContent().getOutputPorts().get(portIndex));
-						internalSourcePortChannel[nodeIndex][portIndex] = new BasicChannel(defaultChannelSize);
+						internalSourcePortChannel[nodeIndex][portIndex] = newChannel(defaultChannelSize, n.getContent().getOutputPorts().get(portIndex));
 					}
 					channelInputEnds[portIndex] = internalSourcePortChannel[nodeIndex][portIndex].getInputEnd();
 				}
@@ -211,7 +232,7 @@ public class BasicNetworkSimulator implements Simulator{
 					if(c==null){
 						Node n = net.getNodes().get(nodeIndex);
 						warning("unconnected port. Node " + n.getName() + ", port: " + n.getContent().getInputPorts().get(portIndex));
-						intrnalSinkPortChannel[nodeIndex][portIndex] = new BasicChannel(defaultChannelSize);
+						intrnalSinkPortChannel[nodeIndex][portIndex] = newChannel(defaultChannelSize, null);
 					}
 					channelOutputEnds[portIndex] = intrnalSinkPortChannel[nodeIndex][portIndex].createOutputEnd();
 				}
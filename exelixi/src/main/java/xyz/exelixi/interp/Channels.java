@@ -0,0 +1,79 @@
+package xyz.exelixi.interp;
+
+import se.lth.cs.tycho.ir.type.TypeExpr;
+import se.lth.cs.tycho.types.BoolType;
+import se.lth.cs.tycho.types.IntType;
+import se.lth.cs.tycho.types.RealType;
+import se.lth.cs.tycho.types.Type;
+import xyz.exelixi.interp.closure.ClosureCompiler;
+import xyz.exelixi.interp.closure.ExprNode.Kind;
+
+/**
+ * The channel of a token type: integer and boolean tokens are stored in a {@link LongChannel}, real
+ * tokens in a {@link DoubleChannel} and other tokens in a {@link BasicChannel}, or in their concurrent
+ * variants when the writer and a reader run on different threads.
+ */
+public final class Channels {
+
+	private Channels() {
+	}
+
+	/**
+	 * Create the channel of a kind of tokens
+	 * @param kind
+	 * @param size the number of tokens
+	 * @return
+	 */
+	public static Channel create(Kind kind, int size) {
+		switch (kind) {
+		case LONG:
+			return new LongChannel(size);
+		case DOUBLE:
+			return new DoubleChannel(size);
+		default:
+			return new BasicChannel(size);
+		}
+	}
+
+	/**
+	 * Create the channel of a kind of tokens whose writer and readers may run on different threads
+	 * @param kind
+	 * @param size the number of tokens
+	 * @return
+	 */
+	public static Channel createConcurrent(Kind kind, int size) {
+		switch (kind) {
+		case LONG:
+			return new ConcurrentLongChannel(size);
+		case DOUBLE:
+			return new ConcurrentDoubleChannel(size);
+		default:
+			return new ConcurrentChannel(size);
+		}
+	}
+
+	/**
+	 * The kind of the tokens of a type
+	 * @param type the type given by the type analysis
+	 * @return
+	 */
+	public static Kind kindOf(Type type) {
+		if (type instanceof IntType || type instanceof BoolType) {
+			return Kind.LONG;
+		} else if (type instanceof RealType) {
+			return Kind.DOUBLE;
+		} else {
+			return Kind.VALUE;
+		}
+	}
+
+	/**
+	 * The kind of the tokens of a declared type
+	 * @param type the declared type, or null if it is not declared
+	 * @return
+	 */
+	public static Kind kindOf(TypeExpr type) {
+		return ClosureCompiler.kindOf(type, Kind.VALUE);
+	}
+
+}
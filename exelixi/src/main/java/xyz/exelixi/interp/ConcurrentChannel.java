@@ -0,0 +1,112 @@
+package xyz.exelixi.interp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.exelixi.interp.values.BasicRef;
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+
+/**
+ * A channel whose writer and readers may run on different threads. Every reader has its own single-producer
+ * single-consumer ring: the write index is only advanced by the writer and the read index only by the
+ * reader, and each index is published with a release store after the tokens it covers.
+ */
+public class ConcurrentChannel implements Channel {
+
+	private final In inputEnd;
+	private Out[] outputEnds;
+	private final int size;
+
+	public ConcurrentChannel(int size) {
+		this.size = size;
+		inputEnd = new In();
+		outputEnds = new Out[0];
+	}
+
+	@Override
+	public In getInputEnd() {
+		return inputEnd;
+	}
+
+	/**
+	 * Readers must be created before the simulation starts
+	 */
+	@Override
+	public Out createOutputEnd() {
+		outputEnds = Arrays.copyOf(outputEnds, outputEnds.length + 1);
+		Out out = new Out();
+		outputEnds[outputEnds.length - 1] = out;
+		return out;
+	}
+
+	private class In implements Channel.InputEnd {
+
+		@Override
+		public void write(RefView r) {
+			assert space(1);
+			for (Out out : outputEnds) {
+				long write = out.write.get();
+				r.assignTo(out.buffer[(int) (write % size)]);
+				out.write.lazySet(write + 1);
+			}
+		}
+
+		@Override
+		public boolean space(int n) {
+			for (Out out : outputEnds) {
+				long write = out.write.get();
+				if (size - (write - out.readCache) < n) {
+					out.readCache = out.read.get();
+					if (size - (write - out.readCache) < n) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+	}
+
+	private class Out implements Channel.OutputEnd {
+		private final Ref[] buffer;
+		private final AtomicLong write = new AtomicLong();
+		private final AtomicLong read = new AtomicLong();
+		// -- the last read index seen by the writer, and the last write index seen by the reader
+		private long readCache;
+		private long writeCache;
+
+		private Out() {
+			buffer = new BasicRef[size];
+			for (int i = 0; i < size; i++) {
+				buffer[i] = new BasicRef();
+			}
+		}
+
+		@Override
+		public void peek(int i, Ref r) {
+			assert i >= 0;
+			assert tokens(i + 1);
+			buffer[(int) ((read.get() + i) % size)].assignTo(r);
+		}
+
+		@Override
+		public void remove(int n) {
+			assert n > 0;
+			assert tokens(n);
+			read.lazySet(read.get() + n);
+		}
+
+		@Override
+		public boolean tokens(int n) {
+			long available = writeCache - read.get();
+			if (available >= n) {
+				return true;
+			}
+			writeCache = write.get();
+			return writeCache - read.get() >= n;
+		}
+
+	}
+
+}
@@ -0,0 +1,113 @@
+package xyz.exelixi.interp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+
+/**
+ * A {@link ConcurrentChannel} of integer and boolean tokens, stored in a long ring per reader and accessed
+ * without a reference through the ends of a {@link LongChannel}.
+ */
+public class ConcurrentLongChannel implements Channel {
+
+	private final In inputEnd;
+	private Out[] outputEnds;
+	private final int size;
+
+	public ConcurrentLongChannel(int size) {
+		this.size = size;
+		inputEnd = new In();
+		outputEnds = new Out[0];
+	}
+
+	@Override
+	public In getInputEnd() {
+		return inputEnd;
+	}
+
+	/**
+	 * Readers must be created before the simulation starts
+	 */
+	@Override
+	public Out createOutputEnd() {
+		outputEnds = Arrays.copyOf(outputEnds, outputEnds.length + 1);
+		Out out = new Out();
+		outputEnds[outputEnds.length - 1] = out;
+		return out;
+	}
+
+	private class In implements LongChannel.LongInputEnd {
+
+		@Override
+		public void write(RefView r) {
+			writeLong(r.getLong());
+		}
+
+		@Override
+		public void writeLong(long v) {
+			assert space(1);
+			for (Out out : outputEnds) {
+				long write = out.write.get();
+				out.buffer[(int) (write % size)] = v;
+				out.write.lazySet(write + 1);
+			}
+		}
+
+		@Override
+		public boolean space(int n) {
+			for (Out out : outputEnds) {
+				long write = out.write.get();
+				if (size - (write - out.readCache) < n) {
+					out.readCache = out.read.get();
+					if (size - (write - out.readCache) < n) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+	}
+
+	private class Out implements LongChannel.LongOutputEnd {
+		private final long[] buffer = new long[size];
+		private final AtomicLong write = new AtomicLong();
+		private final AtomicLong read = new AtomicLong();
+		// -- the last read index seen by the writer, and the last write index seen by the reader
+		private long readCache;
+		private long writeCache;
+
+		@Override
+		public void peek(int i, Ref r) {
+			r.setLong(peekLong(i));
+		}
+
+		@Override
+		public long peekLong(int i) {
+			assert i >= 0;
+			assert tokens(i + 1);
+			return buffer[(int) ((read.get() + i) % size)];
+		}
+
+		@Override
+		public void remove(int n) {
+			assert n > 0;
+			assert tokens(n);
+			read.lazySet(read.get() + n);
+		}
+
+		@Override
+		public boolean tokens(int n) {
+			long available = writeCache - read.get();
+			if (available >= n) {
+				return true;
+			}
+			writeCache = write.get();
+			return writeCache - read.get() >= n;
+		}
+
+	}
+
+}
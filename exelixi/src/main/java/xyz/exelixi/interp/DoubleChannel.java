@@ -0,0 +1,189 @@
+package xyz.exelixi.interp;
+
+import java.util.Arrays;
+
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+import xyz.exelixi.interp.values.Value;
+
+/**
+ * A channel of real tokens. The tokens are stored once in a double ring buffer shared by all
+ * readers, each reader having its own head.
+ */
+public class DoubleChannel implements Channel {
+
+	private final In inputEnd;
+	private Out[] outputEnds;
+	private final double[] buffer;
+	private final int size;
+	private int tail;
+
+	public DoubleChannel(int size) {
+		this.size = size;
+		buffer = new double[size];
+		inputEnd = new In();
+		outputEnds = new Out[0];
+	}
+
+	@Override
+	public In getInputEnd() {
+		return inputEnd;
+	}
+
+	@Override
+	public Out createOutputEnd() {
+		outputEnds = Arrays.copyOf(outputEnds, outputEnds.length + 1);
+		Out out = new Out();
+		outputEnds[outputEnds.length - 1] = out;
+		return out;
+	}
+
+	/**
+	 * The input end of a DoubleChannel, written without a reference.
+	 */
+	public interface DoubleInputEnd extends Channel.InputEnd {
+		public void writeDouble(double v);
+	}
+
+	/**
+	 * An output end of a DoubleChannel, read without a reference.
+	 */
+	public interface DoubleOutputEnd extends Channel.OutputEnd {
+		public double peekDouble(int i);
+	}
+
+	private class In implements DoubleInputEnd {
+		private final Conversion conversion = new Conversion();
+
+		@Override
+		public void write(RefView r) {
+			// -- integer literals are evaluated to long references
+			r.assignTo(conversion);
+			writeDouble(conversion.value);
+		}
+
+		@Override
+		public void writeDouble(double v) {
+			assert space(1);
+			buffer[tail] = v;
+			if (++tail == size) {
+				tail = 0;
+			}
+			for (Out out : outputEnds) {
+				out.length += 1;
+			}
+		}
+
+		@Override
+		public boolean space(int n) {
+			for (Out out : outputEnds) {
+				if (size - out.length < n) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	private class Out implements DoubleOutputEnd {
+		private int head;
+		private int length;
+
+		private Out() {
+			// a reader attached to a channel in use starts with the next token written
+			head = tail;
+		}
+
+		@Override
+		public void peek(int i, Ref r) {
+			r.setDouble(peekDouble(i));
+		}
+
+		@Override
+		public double peekDouble(int i) {
+			assert i < length;
+			assert i >= 0;
+			int index = head + i;
+			if (index >= size) {
+				index -= size;
+			}
+			return buffer[index];
+		}
+
+		@Override
+		public void remove(int n) {
+			assert n > 0;
+			assert n <= length;
+			head += n;
+			if (head >= size) {
+				head -= size;
+			}
+			length -= n;
+		}
+
+		@Override
+		public boolean tokens(int n) {
+			return n <= length;
+		}
+
+	}
+
+	/**
+	 * The reference a token is assigned to, that converts an integer to a real
+	 */
+	static final class Conversion implements Ref {
+		double value;
+
+		@Override
+		public void setLong(long v) {
+			value = v;
+		}
+
+		@Override
+		public void setDouble(double v) {
+			value = v;
+		}
+
+		@Override
+		public void setValue(Value v) {
+			throw new IllegalStateException("Wrong type");
+		}
+
+		@Override
+		public void setString(String v) {
+			throw new IllegalStateException("Wrong type");
+		}
+
+		@Override
+		public void clear() {
+			throw new IllegalStateException("Wrong type");
+		}
+
+		@Override
+		public Value getValue() {
+			throw new IllegalStateException("Wrong type");
+		}
+
+		@Override
+		public long getLong() {
+			throw new IllegalStateException("Wrong type");
+		}
+
+		@Override
+		public double getDouble() {
+			return value;
+		}
+
+		@Override
+		public String getString() {
+			throw new IllegalStateException("Wrong type");
+		}
+
+		@Override
+		public void assignTo(Ref r) {
+			r.setDouble(value);
+		}
+	}
+
+}
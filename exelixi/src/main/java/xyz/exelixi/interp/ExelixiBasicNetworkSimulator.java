@@ -3,34 +3,75 @@ package xyz.exelixi.interp;
 import se.lth.cs.tycho.comp.CompilationTask;
 import se.lth.cs.tycho.comp.SourceUnit;
 import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.network.Connection;
 import se.lth.cs.tycho.ir.network.Instance;
 import se.lth.cs.tycho.ir.network.Network;
 import se.lth.cs.tycho.ir.util.ImmutableList;
+import se.lth.cs.tycho.phases.attributes.Types;
+import xyz.exelixi.interp.closure.ClosureActorMachineSimulator;
+import xyz.exelixi.interp.closure.ClosureCompiler;
+import xyz.exelixi.interp.exception.CALRuntimeException;
+import xyz.exelixi.interp.jit.BytecodeCompiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 /**
+ * A network simulator of the elaborated network. Every instance is simulated by an actor machine
+ * simulator, and every network port by a simulator that reads or writes the tokens of a binary file.
+ * The simulators are stepped in turn until none of them can make progress.
+ *
  * @author Endri Bezati.
  */
-public class ExelixiBasicNetworkSimulator implements Simulator {
+public class ExelixiBasicNetworkSimulator implements Simulator, Closeable {
 
     private int defaultStackSize;
     private int defaultChannelSize;
+    private final int workers;
     Network network;
     private Simulator[] simList;
+    private String[] names;
+    private long[] progress;
+    private final List<FileSourceSimulator> sources = new ArrayList<>();
+    private final List<FileSinkSimulator> sinks = new ArrayList<>();
     int nextInstanceToRun;
 
-
-    public ExelixiBasicNetworkSimulator(CompilationTask task, Network network, int defaultChannelSize, int defaultStackSize) {
+    /**
+     * Create the simulator of a network
+     *
+     * @param task               the compilation task
+     * @param core               the interpreter backend of the task
+     * @param network            the network
+     * @param portFiles          the file of every network port
+     * @param defaultChannelSize the number of tokens of a channel
+     * @param defaultStackSize   the stack size of an actor machine interpreter
+     * @param jit                run the classes generated by the {@link BytecodeCompiler}, or the closures of the {@link ClosureCompiler} if an actor machine can not be compiled
+     * @param workers            the number of threads of a {@link ParallelNetworkSimulator}, or 1 to step the simulators in turn
+     * @throws IOException if a port file can not be opened
+     */
+    public ExelixiBasicNetworkSimulator(CompilationTask task, ExelixiInterpreterCore core, Network network, Map<String, Path> portFiles, int defaultChannelSize, int defaultStackSize, boolean jit, int workers) throws IOException {
+        Types types = core.types();
         this.network = network;
         this.defaultChannelSize = defaultChannelSize;
         this.defaultStackSize = defaultStackSize;
+        this.workers = workers;
         ImmutableList<Instance> instanceList = network.getInstances();
         int nbrInstances = instanceList.size();
-        simList = new Simulator[nbrInstances];
-
-        Channel[][] internalNodeSinkPortChannel = new Channel[nbrInstances][];            //[nbrInstances][portIndex]
-        Channel[][] internalNodeSourcePortChannel = new Channel[nbrInstances][];
+        int nbrPorts = network.getInputPorts().size() + network.getOutputPorts().size();
+        simList = new Simulator[nbrInstances + nbrPorts];
+        names = new String[nbrInstances + nbrPorts];
+        progress = new long[nbrInstances + nbrPorts];
 
-        int i = 0;
+        List<GlobalEntityDecl> entityDecls = new ArrayList<>();
         for (Instance instance : instanceList) {
             GlobalEntityDecl entityDecl = task.getSourceUnits().stream()
                     .map(SourceUnit::getTree)
@@ -38,22 +79,243 @@ public class ExelixiBasicNetworkSimulator implements Simulator {
                     .flatMap(ns -> ns.getEntityDecls().stream())
                     .filter(decl -> decl.getName().equals(instance.getEntityName().getLast().toString()))
                     .findFirst().get();
+            if (!(entityDecl.getEntity() instanceof ActorMachine)) {
+                throw new UnsupportedOperationException("Network instances must be actor machines in the simulator. " + instance.getInstanceName() + " is instance of class " + entityDecl.getEntity().getClass().getCanonicalName());
+            }
+            entityDecls.add(entityDecl);
+        }
+
+        // -- one channel per source port, shared by all its readers, concurrent if one of them is in another partition
+        Map<Connection.End, List<Connection.End>> targets = new LinkedHashMap<>();
+        for (Connection connection : network.getConnections()) {
+            targets.computeIfAbsent(connection.getSource(), end -> new ArrayList<>()).add(connection.getTarget());
+        }
+        Map<Connection.End, Channel> channels = new HashMap<>();
+        Map<Connection.End, Channel.OutputEnd> readers = new HashMap<>();
+        for (Map.Entry<Connection.End, List<Connection.End>> entry : targets.entrySet()) {
+            Connection.End source = entry.getKey();
+            int writer = partition(source, instanceList);
+            boolean concurrent = entry.getValue().stream().anyMatch(target -> partition(target, instanceList) != writer);
+            Channel channel = createChannel(types, sourcePort(source, instanceList, entityDecls), concurrent);
+            channels.put(source, channel);
+            for (Connection.End target : entry.getValue()) {
+                if (readers.containsKey(target)) {
+                    throw new IllegalArgumentException("Several connections to " + target + ".");
+                }
+                readers.put(target, channel.createOutputEnd());
+            }
+        }
+
+        // -- the actor machine of every instance
+        for (int i = 0; i < nbrInstances; i++) {
+            Instance instance = instanceList.get(i);
+            Optional<String> instanceName = Optional.of(instance.getInstanceName());
+            ActorMachine actorMachine = (ActorMachine) entityDecls.get(i).getEntity();
+            Channel.InputEnd[] channelInputEnds = new Channel.InputEnd[actorMachine.getOutputPorts().size()];
+            for (int p = 0; p < channelInputEnds.length; p++) {
+                PortDecl port = actorMachine.getOutputPorts().get(p);
+                Channel channel = channels.get(new Connection.End(instanceName, port.getName()));
+                if (channel == null) {
+                    warning("unconnected port. Instance " + instance.getInstanceName() + ", port: " + port.getName());
+                    channel = createChannel(types, entityDecls.get(i).getEntity().getOutputPorts().get(p), false);
+                }
+                channelInputEnds[p] = channel.getInputEnd();
+            }
+            Channel.OutputEnd[] channelOutputEnds = new Channel.OutputEnd[actorMachine.getInputPorts().size()];
+            for (int p = 0; p < channelOutputEnds.length; p++) {
+                PortDecl port = actorMachine.getInputPorts().get(p);
+                Channel.OutputEnd reader = readers.get(new Connection.End(instanceName, port.getName()));
+                if (reader == null) {
+                    warning("unconnected port. Instance " + instance.getInstanceName() + ", port: " + port.getName());
+                    reader = createChannel(types, entityDecls.get(i).getEntity().getInputPorts().get(p), false).createOutputEnd();
+                }
+                channelOutputEnds[p] = reader;
+            }
+            Interpreter interp = new BasicInterpreter(defaultStackSize);
+            Simulator simulator = null;
+            if (jit) {
+                try {
+                    simulator = BytecodeCompiler.compile(actorMachine, instance, core.names(), channelOutputEnds, channelInputEnds);
+                } catch (UnsupportedOperationException e) {
+                    // -- the actor machines that can not be compiled run their closures
+                    warning(e.getMessage() + ". Instance " + instance.getInstanceName() + " runs its closures");
+                } catch (IllegalStateException | NumberFormatException | LinkageError e) {
+                    // -- and so do the ones whose class could not be generated, verified or instantiated
+                    warning("The class of instance " + instance.getInstanceName() + " could not be generated (" + e + "), it runs its closures");
+                }
+            }
+            if (simulator == null) {
+                simulator = new ClosureActorMachineSimulator(actorMachine, instance, task, core.names(), types, channelOutputEnds, channelInputEnds, interp);
+            }
+            simList[i] = simulator;
+            names[i] = instance.getInstanceName();
+        }
+
+        // -- the network ports
+        int index = nbrInstances;
+        for (PortDecl port : network.getInputPorts()) {
+            Connection.End end = new Connection.End(Optional.empty(), port.getName());
+            Channel channel = channels.computeIfAbsent(end, e -> createChannel(types, port, false));
+            FileSourceSimulator source = new FileSourceSimulator(port.getName(), portFile(portFiles, port), TokenFormat.of(types.declaredPortType(port)), channel.getInputEnd());
+            sources.add(source);
+            simList[index] = source;
+            names[index] = port.getName();
+            index++;
+        }
+        for (PortDecl port : network.getOutputPorts()) {
+            Connection.End end = new Connection.End(Optional.empty(), port.getName());
+            Channel.OutputEnd reader = readers.get(end);
+            if (reader == null) {
+                warning("unconnected network output port: " + port.getName());
+                reader = createChannel(types, port, false).createOutputEnd();
+            }
+            FileSinkSimulator sink = new FileSinkSimulator(port.getName(), portFile(portFiles, port), TokenFormat.of(types.declaredPortType(port)), reader);
+            sinks.add(sink);
+            simList[index] = sink;
+            names[index] = port.getName();
+            index++;
+        }
+    }
+
+    private void warning(String msg) {
+        System.err.println(msg);
+    }
+
+    private PortDecl sourcePort(Connection.End end, List<Instance> instances, List<GlobalEntityDecl> entityDecls) {
+        List<PortDecl> ports = network.getInputPorts();
+        if (end.getInstance().isPresent()) {
+            for (int i = 0; i < instances.size(); i++) {
+                if (instances.get(i).getInstanceName().equals(end.getInstance().get())) {
+                    ports = entityDecls.get(i).getEntity().getOutputPorts();
+                }
+            }
+        }
+        return ports.stream()
+                .filter(port -> port.getName().equals(end.getPort()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown port " + end + "."));
+    }
 
-            internalNodeSourcePortChannel[i] = new Channel[entityDecl.getEntity().getOutputPorts().size()];
-            internalNodeSinkPortChannel[i] = new Channel[entityDecl.getEntity().getInputPorts().size()];
-            i++;
+    private Path portFile(Map<String, Path> portFiles, PortDecl port) {
+        Path file = portFiles.get(port.getName());
+        if (file == null) {
+            throw new IllegalArgumentException("No file for the network port " + port.getName() + ".");
         }
+        return file;
+    }
 
+    /**
+     * The partition of the simulator of a connection end: the instances come first in the simulator list,
+     * then the network input ports and the network output ports
+     */
+    private int partition(Connection.End end, List<Instance> instances) {
+        int length = instances.size() + network.getInputPorts().size() + network.getOutputPorts().size();
+        int index = -1;
+        if (end.getInstance().isPresent()) {
+            for (int i = 0; i < instances.size(); i++) {
+                if (instances.get(i).getInstanceName().equals(end.getInstance().get())) {
+                    index = i;
+                }
+            }
+        } else {
+            for (int i = 0; i < network.getInputPorts().size(); i++) {
+                if (network.getInputPorts().get(i).getName().equals(end.getPort())) {
+                    index = instances.size() + i;
+                }
+            }
+            for (int i = 0; i < network.getOutputPorts().size(); i++) {
+                if (network.getOutputPorts().get(i).getName().equals(end.getPort())) {
+                    index = instances.size() + network.getInputPorts().size() + i;
+                }
+            }
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown port " + end + ".");
+        }
+        return ParallelNetworkSimulator.partitionOf(index, length, workers);
     }
 
+    /**
+     * Create the channel of a port
+     *
+     * @param concurrent true if the writer and a reader of the channel are stepped by different workers
+     */
+    private Channel createChannel(Types types, PortDecl port, boolean concurrent) {
+        if (concurrent) {
+            return Channels.createConcurrent(Channels.kindOf(types.declaredPortType(port)), defaultChannelSize);
+        }
+        return Channels.create(Channels.kindOf(types.declaredPortType(port)), defaultChannelSize);
+    }
 
     @Override
     public boolean step() {
-        return false;
+        int waits = 0;
+        boolean progress = false;
+        while (!progress && waits < simList.length) {
+            try {
+                progress = simList[nextInstanceToRun].step();
+            } catch (RuntimeException e) {
+                throw new CALRuntimeException("Simulation of " + names[nextInstanceToRun] + " failed: " + e, e);
+            }
+            if (progress) {
+                this.progress[nextInstanceToRun]++;
+            }
+            nextInstanceToRun = (nextInstanceToRun + 1) % simList.length;
+            waits++;
+        }
+        return progress;
+    }
+
+    /**
+     * Step the simulators until none of them can make progress, on the workers of a
+     * {@link ParallelNetworkSimulator} if there are several
+     *
+     * @return the number of steps that made progress
+     * @throws CALRuntimeException if a simulator fails, naming its instance or network port
+     */
+    public long run() {
+        if (workers > 1) {
+            new ParallelNetworkSimulator(simList, names, progress, workers).step();
+        } else {
+            while (step()) {
+            }
+        }
+        long steps = 0;
+        for (long p : progress) {
+            steps += p;
+        }
+        return steps;
+    }
+
+    /**
+     * Append the number of firings of every instance and the number of tokens of every network port
+     *
+     * @param sb the buffer
+     */
+    public void statisticsToString(StringBuffer sb) {
+        int nbrInstances = network.getInstances().size();
+        for (int i = 0; i < nbrInstances; i++) {
+            sb.append("  " + names[i] + " : " + progress[i] + " firings\n");
+        }
+        sources.forEach(source -> source.scopesToString(sb));
+        sinks.forEach(sink -> sink.scopesToString(sb));
     }
 
     @Override
     public void scopesToString(StringBuffer sb) {
+        for (int i = 0; i < simList.length; i++) {
+            sb.append("-- Instance: " + names[i] + "--\n");
+            simList[i].scopesToString(sb);
+        }
+    }
 
+    @Override
+    public void close() throws IOException {
+        for (FileSourceSimulator source : sources) {
+            source.close();
+        }
+        for (FileSinkSimulator sink : sinks) {
+            sink.close();
+        }
     }
 }
@@ -3,37 +3,147 @@ package xyz.exelixi.interp;
 import org.multij.MultiJ;
 import se.lth.cs.tycho.comp.CompilationTask;
 import se.lth.cs.tycho.comp.Context;
-import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.entity.PortDecl;
 import se.lth.cs.tycho.ir.network.Network;
 import se.lth.cs.tycho.phases.Phase;
 import se.lth.cs.tycho.reporting.CompilationException;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.OnOffSetting;
+import se.lth.cs.tycho.settings.Setting;
+import se.lth.cs.tycho.settings.StringSetting;
+import xyz.exelixi.interp.exception.CALRuntimeException;
+import xyz.exelixi.utils.IntegerSetting;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author Endri Bezati
  */
 public class ExelixiInterpreterPhase implements Phase {
+
+    /**
+     * Files of the network ports
+     */
+    public static final Setting<String> ports = new StringSetting() {
+        @Override public String getKey() { return "interp-ports"; }
+        @Override public String getDescription() { return "Binary token files of the network ports, as port=file separated by commas"; }
+        @Override public String defaultValue(Configuration configuration) { return ""; }
+    };
+
+    /**
+     * Channel size of the interpreter
+     */
+    public static final Setting<Integer> channelSize = new IntegerSetting() {
+        @Override public String getKey() { return "interp-channel-size"; }
+        @Override public String getDescription() { return "Number of tokens of a channel of the interpreter"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 512; }
+    };
+
+    /**
+     * Stack size of the interpreter
+     */
+    public static final Setting<Integer> stackSize = new IntegerSetting() {
+        @Override public String getKey() { return "interp-stack-size"; }
+        @Override public String getDescription() { return "Stack size of the interpreter of an actor machine"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 100; }
+    };
+
+    /**
+     * Number of threads of the interpreter
+     */
+    public static final Setting<Integer> workers = new IntegerSetting() {
+        @Override public String getKey() { return "interp-workers"; }
+        @Override public String getDescription() { return "Number of threads that step the instances, each thread stepping a contiguous part of the network; the channels between two parts are concurrent"; }
+        @Override public Integer defaultValue(Configuration configuration) { return 1; }
+    };
+
+    /**
+     * Bytecode generation of the actor machines
+     */
+    public static final Setting<Boolean> jit = new OnOffSetting() {
+        @Override public String getKey() { return "interp-jit"; }
+        @Override public String getDescription() { return "Generate a JVM class for every instance, with its scope variables as fields, and run its closures if it can not be compiled"; }
+        @Override public Boolean defaultValue(Configuration configuration) { return false; }
+    };
+
     @Override
     public String getDescription() {
         return "Exelixi Interpreter Phase";
     }
 
+    @Override
+    public List<Setting<?>> getPhaseSettings() {
+        return Arrays.asList(ports, channelSize, stackSize, jit, workers);
+    }
+
     @Override
     public CompilationTask execute(CompilationTask task, Context context) throws CompilationException {
         System.out.println("Exelixi Interpreter");
 
         ExelixiInterpreterCore core = openBackend(task, context);
 
-        // -- Channels
+        // -- Network ports
         Network network = task.getNetwork();
-        int defaultChannelSize = 512;
-        int defaultStackSize = 100;
+        Map<String, Path> portFiles = new HashMap<>();
+        for (String entry : context.getConfiguration().get(ports).split(",")) {
+            String[] portFile = entry.split("=", 2);
+            if (portFile.length == 2) {
+                portFiles.put(portFile[0].trim(), Paths.get(portFile[1].trim()));
+            }
+        }
+        boolean missing = false;
+        List<PortDecl> networkPorts = new ArrayList<>(network.getInputPorts());
+        networkPorts.addAll(network.getOutputPorts());
+        for (PortDecl port : networkPorts) {
+            if (!portFiles.containsKey(port.getName())) {
+                context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "No file is given for the network port " + port.getName() + " (interp-ports)"));
+                missing = true;
+            }
+        }
+        for (PortDecl port : networkPorts) {
+            try {
+                TokenFormat.of(core.types().declaredPortType(port));
+            } catch (UnsupportedOperationException e) {
+                context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Network port " + port.getName() + ": " + e.getMessage()));
+                missing = true;
+            }
+        }
+        if (missing) {
+            return task;
+        }
+
+        // -- Channels
+        int defaultChannelSize = Math.max(1, context.getConfiguration().get(channelSize));
+        int defaultStackSize = Math.max(1, context.getConfiguration().get(stackSize));
 
-        ExelixiBasicNetworkSimulator networkSimulator = new ExelixiBasicNetworkSimulator(task, network, defaultChannelSize, defaultStackSize);
+        try (ExelixiBasicNetworkSimulator networkSimulator = new ExelixiBasicNetworkSimulator(task, core, network, portFiles, defaultChannelSize, defaultStackSize, context.getConfiguration().get(jit), Math.max(1, context.getConfiguration().get(workers)))) {
+            long start = System.nanoTime();
+            long steps = networkSimulator.run();
+            long time = System.nanoTime() - start;
 
+            StringBuffer sb = new StringBuffer();
+            networkSimulator.statisticsToString(sb);
+            System.out.println("Network idle after " + steps + " steps in " + time / 1000000 + " ms");
+            System.out.print(sb);
+        } catch (IOException e) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "Can not access a network port file: " + e.getMessage()));
+        } catch (UnsupportedOperationException e) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, e.getMessage()));
+        } catch (CALRuntimeException e) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, e.getMessage()));
+        } catch (RuntimeException e) {
+            context.getReporter().report(new Diagnostic(Diagnostic.Kind.ERROR, "The network could not be simulated: " + e));
+        }
 
-        return null;
+        return task;
     }
 
     /**
@@ -0,0 +1,73 @@
+package xyz.exelixi.interp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import xyz.exelixi.interp.values.BasicRef;
+
+/**
+ * A network output port that writes the tokens of its channel to a binary file
+ *
+ * @author Endri Bezati
+ */
+public class FileSinkSimulator implements Simulator, Closeable {
+	private final String name;
+	private final OutputStream stream;
+	private final TokenFormat format;
+	private final Channel.OutputEnd channel;
+	private final ByteBuffer buffer;
+	private final BasicRef ref = new BasicRef();
+	private long tokens;
+
+	public FileSinkSimulator(String name, Path file, TokenFormat format, Channel.OutputEnd channel) throws IOException {
+		this.name = name;
+		this.stream = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+		this.format = format;
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(format.width()).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public boolean step() {
+		boolean progress = false;
+		try {
+			while (channel.tokens(1)) {
+				channel.peek(0, ref);
+				channel.remove(1);
+				buffer.clear();
+				format.encode(ref, buffer);
+				stream.write(buffer.array(), 0, buffer.position());
+				tokens++;
+				progress = true;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return progress;
+	}
+
+	/**
+	 * The number of tokens written to the file
+	 */
+	public long getTokens() {
+		return tokens;
+	}
+
+	@Override
+	public void scopesToString(StringBuffer sb) {
+		sb.append("  output " + name + " : " + tokens + " tokens\n");
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream.close();
+	}
+
+}
@@ -0,0 +1,86 @@
+package xyz.exelixi.interp;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import xyz.exelixi.interp.values.BasicRef;
+
+/**
+ * A network input port that writes the tokens of a binary file to its channel
+ *
+ * @author Endri Bezati
+ */
+public class FileSourceSimulator implements Simulator, Closeable {
+	private final String name;
+	private final InputStream stream;
+	private final TokenFormat format;
+	private final Channel.InputEnd channel;
+	private final byte[] token;
+	private final ByteBuffer buffer;
+	private final BasicRef ref = new BasicRef();
+	private boolean endOfFile;
+	private long tokens;
+
+	public FileSourceSimulator(String name, Path file, TokenFormat format, Channel.InputEnd channel) throws IOException {
+		this.name = name;
+		this.stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+		this.format = format;
+		this.channel = channel;
+		this.token = new byte[format.width()];
+		this.buffer = ByteBuffer.wrap(token).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public boolean step() {
+		boolean progress = false;
+		try {
+			while (!endOfFile && channel.space(1)) {
+				int read = 0;
+				while (read < token.length) {
+					int n = stream.read(token, read, token.length - read);
+					if (n < 0) {
+						endOfFile = true;
+						break;
+					}
+					read += n;
+				}
+				if (endOfFile) {
+					break;
+				}
+				buffer.clear();
+				format.decode(buffer, ref);
+				channel.write(ref);
+				tokens++;
+				progress = true;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return progress;
+	}
+
+	/**
+	 * The number of tokens read from the file
+	 */
+	public long getTokens() {
+		return tokens;
+	}
+
+	@Override
+	public void scopesToString(StringBuffer sb) {
+		sb.append("  input " + name + " : " + tokens + " tokens" + (endOfFile ? ", end of file" : "") + "\n");
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream.close();
+	}
+
+}
@@ -0,0 +1,128 @@
+package xyz.exelixi.interp;
+
+import java.util.Arrays;
+
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+
+/**
+ * A channel of integer and boolean tokens. The tokens are stored once in a long ring buffer shared by all
+ * readers, each reader having its own head.
+ */
+public class LongChannel implements Channel {
+
+	private final In inputEnd;
+	private Out[] outputEnds;
+	private final long[] buffer;
+	private final int size;
+	private int tail;
+
+	public LongChannel(int size) {
+		this.size = size;
+		buffer = new long[size];
+		inputEnd = new In();
+		outputEnds = new Out[0];
+	}
+
+	@Override
+	public In getInputEnd() {
+		return inputEnd;
+	}
+
+	@Override
+	public Out createOutputEnd() {
+		outputEnds = Arrays.copyOf(outputEnds, outputEnds.length + 1);
+		Out out = new Out();
+		outputEnds[outputEnds.length - 1] = out;
+		return out;
+	}
+
+	/**
+	 * The input end of a LongChannel, written without a reference.
+	 */
+	public interface LongInputEnd extends Channel.InputEnd {
+		public void writeLong(long v);
+	}
+
+	/**
+	 * An output end of a LongChannel, read without a reference.
+	 */
+	public interface LongOutputEnd extends Channel.OutputEnd {
+		public long peekLong(int i);
+	}
+
+	private class In implements LongInputEnd {
+
+		@Override
+		public void write(RefView r) {
+			writeLong(r.getLong());
+		}
+
+		@Override
+		public void writeLong(long v) {
+			assert space(1);
+			buffer[tail] = v;
+			if (++tail == size) {
+				tail = 0;
+			}
+			for (Out out : outputEnds) {
+				out.length += 1;
+			}
+		}
+
+		@Override
+		public boolean space(int n) {
+			for (Out out : outputEnds) {
+				if (size - out.length < n) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	private class Out implements LongOutputEnd {
+		private int head;
+		private int length;
+
+		private Out() {
+			// a reader attached to a channel in use starts with the next token written
+			head = tail;
+		}
+
+		@Override
+		public void peek(int i, Ref r) {
+			r.setLong(peekLong(i));
+		}
+
+		@Override
+		public long peekLong(int i) {
+			assert i < length;
+			assert i >= 0;
+			int index = head + i;
+			if (index >= size) {
+				index -= size;
+			}
+			return buffer[index];
+		}
+
+		@Override
+		public void remove(int n) {
+			assert n > 0;
+			assert n <= length;
+			head += n;
+			if (head >= size) {
+				head -= size;
+			}
+			length -= n;
+		}
+
+		@Override
+		public boolean tokens(int n) {
+			return n <= length;
+		}
+
+	}
+
+}
@@ -0,0 +1,177 @@
+package xyz.exelixi.interp;
+
+import xyz.exelixi.interp.exception.CALRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A network simulator that executes the simulators of a network on a pool of workers. The simulators are
+ * divided in contiguous partitions, one per worker, given by {@link #partitionOf(int, int, int)}, and every
+ * channel whose writer and a reader are in different partitions must be concurrent (see
+ * {@link Channels#createConcurrent}).
+ *
+ * The network is quiescent when no simulator can make progress: worker 0 takes a snapshot of the activity
+ * counter, which every worker increments after a sweep over its simulators that made progress, and waits
+ * until every other worker has completed a full sweep that started after the snapshot. If the counter has
+ * not changed and its own sweep made no progress either, the channels did not change during sweeps in
+ * which no simulator could fire.
+ *
+ * A worker that fails stops all the others, and the failure is thrown by {@link #step()}, as a
+ * {@link CALRuntimeException} that names the simulator.
+ */
+public class ParallelNetworkSimulator implements Simulator {
+	private final Simulator[] simList;
+	private final String[] names;
+	private final long[] progress;
+	private final int workers;
+
+	/**
+	 * @param simList the simulators of the instances and of the network ports
+	 * @param names the names of the simulators, for the failures
+	 * @param progress incremented for every step of a simulator that made progress
+	 * @param workers the number of workers
+	 */
+	public ParallelNetworkSimulator(Simulator[] simList, String[] names, long[] progress, int workers) {
+		this.simList = simList;
+		this.names = names;
+		this.progress = progress;
+		this.workers = Math.max(1, Math.min(workers, simList.length));
+	}
+
+	/**
+	 * Run the network until it is quiescent
+	 * @return true if some simulator has made progress
+	 */
+	@Override
+	public boolean step() {
+		if (simList.length == 0) {
+			return false;
+		}
+		AtomicLong activity = new AtomicLong();
+		AtomicLongArray sweeps = new AtomicLongArray(workers);
+		AtomicBoolean quiescent = new AtomicBoolean();
+		AtomicBoolean failed = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		ForkJoinPool pool = new ForkJoinPool(workers);
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int w = 0; w < workers; w++) {
+				int worker = w;
+				tasks.add(pool.submit(() -> {
+					try {
+						work(worker, activity, sweeps, quiescent, failed);
+					} catch (RuntimeException | Error e) {
+						failure.compareAndSet(null, e);
+						failed.set(true);
+						throw e;
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// -- the first failure of a worker, not the copy made by the pool
+			Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			failed.set(true);
+			pool.shutdown();
+		}
+		return activity.get() > 0;
+	}
+
+	private void work(int worker, AtomicLong activity, AtomicLongArray sweeps, AtomicBoolean quiescent, AtomicBoolean failed) {
+		int first = bound(worker, simList.length, workers);
+		int last = bound(worker + 1, simList.length, workers);
+		while (!quiescent.get() && !failed.get()) {
+			if (worker == 0 && !sweep(first, last, activity)) {
+				long snapshot = activity.get();
+				long[] started = new long[workers];
+				for (int w = 1; w < workers; w++) {
+					started[w] = sweeps.get(w);
+				}
+				// -- a sweep completed after two more increments has started after the snapshot
+				for (int w = 1; w < workers; w++) {
+					while (sweeps.get(w) < started[w] + 2 && activity.get() == snapshot && !failed.get()) {
+						Thread.yield();
+					}
+				}
+				if (!failed.get() && activity.get() == snapshot && !sweep(first, last, activity) && activity.get() == snapshot) {
+					quiescent.set(true);
+				}
+			} else if (worker != 0 && !sweep(first, last, activity)) {
+				Thread.yield();
+			}
+			sweeps.incrementAndGet(worker);
+		}
+	}
+
+	/**
+	 * The first simulator of a partition, or the number of simulators after the last one
+	 */
+	private static int bound(int worker, int length, int workers) {
+		return worker * length / workers;
+	}
+
+	/**
+	 * The partition a simulator is stepped in
+	 * @param index the index of the simulator
+	 * @param length the number of simulators
+	 * @param workers the number of workers requested
+	 * @return the worker of the simulator
+	 */
+	public static int partitionOf(int index, int length, int workers) {
+		workers = Math.max(1, Math.min(workers, length));
+		int worker = 0;
+		while (bound(worker + 1, length, workers) <= index) {
+			worker++;
+		}
+		return worker;
+	}
+
+	/**
+	 * Step every simulator of a partition until it waits
+	 * @return true if some simulator has made progress
+	 */
+	private boolean sweep(int first, int last, AtomicLong activity) {
+		boolean any = false;
+		for (int i = first; i < last; i++) {
+			try {
+				while (simList[i].step()) {
+					progress[i]++;
+					any = true;
+				}
+			} catch (RuntimeException e) {
+				throw new CALRuntimeException("Simulation of " + names[i] + " failed: " + e, e);
+			}
+		}
+		if (any) {
+			activity.incrementAndGet();
+		}
+		return any;
+	}
+
+	@Override
+	public void scopesToString(StringBuffer sb) {
+		for (Simulator simulator : simList) {
+			simulator.scopesToString(sb);
+		}
+	}
+
+}
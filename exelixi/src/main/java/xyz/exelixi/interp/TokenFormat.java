@@ -0,0 +1,104 @@
+package xyz.exelixi.interp;
+
+import java.nio.ByteBuffer;
+
+import se.lth.cs.tycho.types.BoolType;
+import se.lth.cs.tycho.types.IntType;
+import se.lth.cs.tycho.types.RealType;
+import se.lth.cs.tycho.types.Type;
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+
+/**
+ * The binary format of the tokens of a network port file. The tokens have the layout of the C types of
+ * the C backend, so that the files read and written by the interpreter and by a generated program are
+ * interchangeable.
+ *
+ * @author Endri Bezati
+ */
+public final class TokenFormat {
+	private final int width;
+	private final boolean signed;
+	private final boolean real;
+
+	private TokenFormat(int width, boolean signed, boolean real) {
+		this.width = width;
+		this.signed = signed;
+		this.real = real;
+	}
+
+	/**
+	 * The format of a token type
+	 * @param type the token type
+	 * @return the format
+	 * @throws UnsupportedOperationException if the tokens of the type can not be read from a file
+	 */
+	public static TokenFormat of(Type type) {
+		if (type instanceof IntType) {
+			IntType intType = (IntType) type;
+			int bits = 8;
+			while (intType.getSize().isPresent() && intType.getSize().getAsInt() > bits) {
+				bits = bits * 2;
+			}
+			return new TokenFormat(intType.getSize().isPresent() ? bits / 8 : 4, intType.isSigned(), false);
+		} else if (type instanceof RealType) {
+			return new TokenFormat(((RealType) type).getSize() / 8, true, true);
+		} else if (type instanceof BoolType) {
+			return new TokenFormat(1, false, false);
+		}
+		throw new UnsupportedOperationException("Tokens of type " + type + " can not be read from or written to a file.");
+	}
+
+	/**
+	 * The number of bytes of a token
+	 */
+	public int width() {
+		return width;
+	}
+
+	public void decode(ByteBuffer buffer, Ref ref) {
+		if (real) {
+			ref.setDouble(width == 4 ? buffer.getFloat() : buffer.getDouble());
+			return;
+		}
+		switch (width) {
+		case 1:
+			ref.setLong(signed ? buffer.get() : buffer.get() & 0xFFL);
+			break;
+		case 2:
+			ref.setLong(signed ? buffer.getShort() : buffer.getShort() & 0xFFFFL);
+			break;
+		case 4:
+			ref.setLong(signed ? buffer.getInt() : buffer.getInt() & 0xFFFFFFFFL);
+			break;
+		default:
+			ref.setLong(buffer.getLong());
+		}
+	}
+
+	public void encode(RefView ref, ByteBuffer buffer) {
+		if (real) {
+			if (width == 4) {
+				buffer.putFloat((float) ref.getDouble());
+			} else {
+				buffer.putDouble(ref.getDouble());
+			}
+			return;
+		}
+		long value = ref.getLong();
+		switch (width) {
+		case 1:
+			buffer.put((byte) value);
+			break;
+		case 2:
+			buffer.putShort((short) value);
+			break;
+		case 4:
+			buffer.putInt((int) value);
+			break;
+		default:
+			buffer.putLong(value);
+		}
+	}
+
+}
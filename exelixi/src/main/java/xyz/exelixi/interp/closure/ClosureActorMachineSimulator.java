@@ -0,0 +1,194 @@
+package xyz.exelixi.interp.closure;
+
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.ir.Parameter;
+import se.lth.cs.tycho.ir.decl.VarDecl;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Condition;
+import se.lth.cs.tycho.ir.entity.am.PortCondition;
+import se.lth.cs.tycho.ir.entity.am.PredicateCondition;
+import se.lth.cs.tycho.ir.entity.am.Scope;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Exec;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Instruction;
+import se.lth.cs.tycho.ir.entity.am.ctrl.State;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Test;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Wait;
+import se.lth.cs.tycho.ir.expr.Expression;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.phases.attributes.Names;
+import se.lth.cs.tycho.phases.attributes.Types;
+import xyz.exelixi.interp.Channel;
+import xyz.exelixi.interp.Interpreter;
+import xyz.exelixi.interp.Simulator;
+import xyz.exelixi.interp.values.BasicRef;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An actor machine simulator that executes the code compiled by the {@link ClosureCompiler}. The
+ * controller is the one of the actor machine, the transitions, conditions and scope initializations are
+ * compiled once when the simulator is created.
+ */
+public class ClosureActorMachineSimulator implements Simulator {
+
+	private final ActorMachine actorMachine;
+	private final BasicRef[][] scopes;
+	private final StmtNode[] scopeInits;
+	private final BitSet[] scopeRequired;       // for each scope, which other scopes its initialization reads
+	private final StmtNode[] transitions;
+	private final BitSet[] transRequired;       // for each transition, which scopes are required
+	private final BooleanSupplier[] conditions;
+	private final BitSet liveScopes;
+	private final BitSet persistentScopes;
+
+	private State state;
+	private long firings;
+
+	/**
+	 * @param actorMachine the actor machine, as given by the compilation task
+	 * @param instance the instance, that gives the value parameters
+	 * @param task the compilation task, that holds the global variables
+	 * @param names the name analysis of the compilation task
+	 * @param types the type analysis of the compilation task
+	 * @param inputs the channel ends of the input ports
+	 * @param outputs the channel ends of the output ports
+	 * @param interpreter the interpreter of the predefined functions without compiled node
+	 */
+	public ClosureActorMachineSimulator(ActorMachine actorMachine, Instance instance, CompilationTask task, Names names, Types types, Channel.OutputEnd[] inputs, Channel.InputEnd[] outputs, Interpreter interpreter) {
+		assert actorMachine.getInputPorts().size() == inputs.length;
+		assert actorMachine.getOutputPorts().size() == outputs.length;
+		this.actorMachine = actorMachine;
+		ClosureCompiler compiler = new ClosureCompiler(actorMachine, task, names, types, inputs, outputs, interpreter);
+		for (VarDecl par : actorMachine.getValueParameters()) {
+			Expression value = null;
+			for (Parameter<Expression, ?> assignment : instance.getValueParameters()) {
+				if (par.getName().equals(assignment.getName())) {
+					value = assignment.getValue();
+				}
+			}
+			if (value == null) {
+				throw new IllegalArgumentException("No value for the parameter " + par.getName() + " of " + instance.getInstanceName());
+			}
+			compiler.bindParameter(par, value);
+		}
+
+		List<Scope> scopeList = actorMachine.getScopes();
+		scopes = compiler.getScopes();
+		scopeInits = new StmtNode[scopeList.size()];
+		scopeRequired = new BitSet[scopeList.size()];
+		persistentScopes = new BitSet(scopeList.size());
+		for (int s = 0; s < scopeList.size(); s++) {
+			scopeRequired[s] = new BitSet(scopeList.size());
+			scopeInits[s] = compiler.compileScope(s, scopeRequired[s]);
+			if (scopeList.get(s).isPersistent()) {
+				persistentScopes.set(s);
+			}
+		}
+		liveScopes = new BitSet(scopeList.size());
+
+		transitions = new StmtNode[actorMachine.getTransitions().size()];
+		transRequired = new BitSet[transitions.length];
+		for (int t = 0; t < transitions.length; t++) {
+			transRequired[t] = new BitSet(scopeList.size());
+			transitions[t] = compiler.compileTransition(t, transRequired[t]);
+		}
+
+		conditions = new BooleanSupplier[actorMachine.getConditions().size()];
+		for (int c = 0; c < conditions.length; c++) {
+			conditions[c] = compileCondition(actorMachine.getConditions().get(c), compiler, inputs, outputs);
+		}
+
+		state = actorMachine.controller().getStateList().get(0);
+	}
+
+	private BooleanSupplier compileCondition(Condition condition, ClosureCompiler compiler, Channel.OutputEnd[] inputs, Channel.InputEnd[] outputs) {
+		if (condition instanceof PortCondition) {
+			PortCondition portCondition = (PortCondition) condition;
+			String port = portCondition.getPortName().getName();
+			int n = portCondition.N();
+			if (portCondition.isInputCondition()) {
+				Channel.OutputEnd channel = inputs[indexOf(actorMachine.getInputPorts(), port)];
+				return () -> channel.tokens(n);
+			} else {
+				Channel.InputEnd channel = outputs[indexOf(actorMachine.getOutputPorts(), port)];
+				return () -> channel.space(n);
+			}
+		}
+		BitSet required = new BitSet(scopes.length);
+		ExprNode predicate = compiler.compilePredicate(((PredicateCondition) condition).getExpression(), required);
+		return () -> {
+			initScopes(required);
+			return predicate.evaluateBoolean();
+		};
+	}
+
+	private static int indexOf(List<PortDecl> ports, String name) {
+		for (int i = 0; i < ports.size(); i++) {
+			if (ports.get(i).getName().equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown port " + name);
+	}
+
+	@Override
+	public boolean step() {
+		while (true) {
+			Instruction instruction = state.getInstructions().get(0);
+			switch (instruction.getKind()) {
+			case TEST:
+				Test test = (Test) instruction;
+				state = conditions[test.condition()].getAsBoolean() ? test.targetTrue() : test.targetFalse();
+				break;
+			case EXEC:
+				Exec exec = (Exec) instruction;
+				initScopes(transRequired[exec.transition()]);
+				transitions[exec.transition()].execute();
+				// -- the scopes that are not persistent are killed by a transition
+				liveScopes.and(persistentScopes);
+				firings++;
+				state = exec.target();
+				return true;
+			default:
+				state = ((Wait) instruction).target();
+				return false;
+			}
+		}
+	}
+
+	private void initScopes(BitSet required) {
+		for (int s = required.nextSetBit(0); s >= 0; s = required.nextSetBit(s + 1)) {
+			if (!liveScopes.get(s)) {
+				initScopes(scopeRequired[s]);
+				scopeInits[s].execute();
+				liveScopes.set(s);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of transitions executed
+	 */
+	public long getFirings() {
+		return firings;
+	}
+
+	@Override
+	public void scopesToString(StringBuffer sb) {
+		List<Scope> scopeList = actorMachine.getScopes();
+		for (int s = 0; s < scopeList.size(); s++) {
+			if (liveScopes.get(s)) {
+				sb.append("{\n");
+				List<VarDecl> declList = scopeList.get(s).getDeclarations();
+				for (int d = 0; d < declList.size(); d++) {
+					sb.append("  " + declList.get(d).getName() + " : " + scopes[s][d] + "\n");
+				}
+				sb.append("}\n");
+			}
+		}
+	}
+
+}
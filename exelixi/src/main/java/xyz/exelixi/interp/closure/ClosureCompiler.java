@@ -0,0 +1,893 @@
+package xyz.exelixi.interp.closure;
+
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.comp.SourceUnit;
+import se.lth.cs.tycho.ir.IRNode;
+import se.lth.cs.tycho.ir.NamespaceDecl;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.QID;
+import se.lth.cs.tycho.ir.Variable;
+import se.lth.cs.tycho.ir.decl.ClosureVarDecl;
+import se.lth.cs.tycho.ir.decl.GeneratorVarDecl;
+import se.lth.cs.tycho.ir.decl.GlobalVarDecl;
+import se.lth.cs.tycho.ir.decl.VarDecl;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Scope;
+import se.lth.cs.tycho.ir.expr.*;
+import se.lth.cs.tycho.ir.stmt.*;
+import se.lth.cs.tycho.ir.stmt.lvalue.LValue;
+import se.lth.cs.tycho.ir.stmt.lvalue.LValueIndexer;
+import se.lth.cs.tycho.ir.stmt.lvalue.LValueVariable;
+import se.lth.cs.tycho.ir.type.NominalTypeExpr;
+import se.lth.cs.tycho.ir.type.TypeExpr;
+import se.lth.cs.tycho.phases.attributes.Names;
+import se.lth.cs.tycho.phases.attributes.Types;
+import se.lth.cs.tycho.types.ListType;
+import se.lth.cs.tycho.types.RealType;
+import se.lth.cs.tycho.types.Type;
+import xyz.exelixi.interp.Channel;
+import xyz.exelixi.interp.Channels;
+import xyz.exelixi.interp.DoubleChannel;
+import xyz.exelixi.interp.Interpreter;
+import xyz.exelixi.interp.LongChannel;
+import xyz.exelixi.interp.TypeConverter;
+import xyz.exelixi.interp.closure.ExprNode.Kind;
+import xyz.exelixi.interp.values.BasicList;
+import xyz.exelixi.interp.values.BasicRef;
+import xyz.exelixi.interp.values.Function;
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+import xyz.exelixi.interp.values.predef.Predef;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compile the transitions, predicates and scope initializations of an actor machine into trees of
+ * closures, once, instead of visiting the IR at every firing. Every variable declaration is given its own
+ * memory cell and every port its channel end when it is compiled, so that the compiled code of an instance
+ * only reads and writes fields.
+ *
+ * The kind of a variable is taken from its declared type, or else from its initialization; integer and
+ * boolean expressions are evaluated as long without any reference.
+ *
+ * A global variable is evaluated once, when it is first read. A function or a procedure is compiled once,
+ * with a memory cell for each of its parameters and local variables, and its calls are bound to it when the
+ * callee is known; the variables captured by its closure are the variables of the actor machine.
+ */
+public class ClosureCompiler {
+
+	private final ActorMachine actorMachine;
+	private final CompilationTask task;
+	private final Names names;
+	private final Types types;
+	private final Interpreter interpreter;
+	private final Channel.OutputEnd[] inputs;
+	private final Channel.InputEnd[] outputs;
+	private final TypeConverter converter;
+
+	private final Map<VarDecl, Symbol> symbols = new IdentityHashMap<>();
+	private final Map<VarDecl, Integer> untyped = new IdentityHashMap<>();
+	private final Map<IRNode, Nodes.Callable> callables = new IdentityHashMap<>();
+	private final BasicRef[][] scopes;
+	private Map<String, VarDecl> globals;
+	private BitSet required;
+	private Nodes.Callable current;
+
+	private static final class Symbol {
+		final BasicRef ref;
+		final Kind kind;
+		final Kind elementKind;
+		final int scope;
+
+		Symbol(Kind kind, Kind elementKind, int scope) {
+			this.ref = new BasicRef();
+			this.kind = kind;
+			this.elementKind = elementKind;
+			this.scope = scope;
+		}
+	}
+
+	/**
+	 * @param actorMachine the actor machine, as given by the compilation task
+	 * @param task the compilation task, that holds the global variables
+	 * @param names the name analysis of the compilation task
+	 * @param types the type analysis of the compilation task
+	 * @param inputs the channel ends of the input ports
+	 * @param outputs the channel ends of the output ports
+	 * @param interpreter the interpreter of the predefined functions without compiled node
+	 */
+	public ClosureCompiler(ActorMachine actorMachine, CompilationTask task, Names names, Types types, Channel.OutputEnd[] inputs, Channel.InputEnd[] outputs, Interpreter interpreter) {
+		this.actorMachine = actorMachine;
+		this.task = task;
+		this.names = names;
+		this.types = types;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.interpreter = interpreter;
+		this.converter = TypeConverter.getInstance();
+		scopes = new BasicRef[actorMachine.getScopes().size()][];
+		for (int s = 0; s < scopes.length; s++) {
+			List<VarDecl> declarations = actorMachine.getScopes().get(s).getDeclarations();
+			scopes[s] = new BasicRef[declarations.size()];
+			for (int d = 0; d < declarations.size(); d++) {
+				VarDecl decl = declarations.get(d);
+				if (kindOf(decl.getType(), null) == null && decl.getValue() != null) {
+					// -- the kind is taken from the initialization once the parameters are bound
+					untyped.put(decl, s);
+				} else {
+					Symbol symbol = new Symbol(kindOf(decl.getType(), Kind.LONG), declaredElementKind(decl), s);
+					symbols.put(decl, symbol);
+					scopes[s][d] = symbol.ref;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bind a value parameter of the actor machine to a constant value
+	 * @param decl
+	 * @param value
+	 */
+	public void bindParameter(VarDecl decl, Expression value) {
+		required = new BitSet();
+		ExprNode node = compile(value);
+		Symbol symbol = new Symbol(node.getKind(), elementKind(node), -1);
+		node.evaluate(symbol.ref);
+		symbols.put(decl, symbol);
+	}
+
+	/**
+	 * The memory cells of the scope variables
+	 * @return scopes[scope][declaration]
+	 */
+	public BasicRef[][] getScopes() {
+		new ArrayList<>(untyped.keySet()).forEach(this::declaration);
+		return scopes;
+	}
+
+	/**
+	 * Compile the initialization of a scope
+	 * @param scope
+	 * @param required set to the other scopes read by the initialization
+	 * @return
+	 */
+	public StmtNode compileScope(int scope, BitSet required) {
+		this.required = required;
+		Scope s = actorMachine.getScopes().get(scope);
+		StmtNode[] inits = s.getDeclarations().stream()
+				.map(decl -> decl.getValue() != null ? assign(declaration(decl), compile(decl.getValue())) : allocate(decl, declaration(decl).ref))
+				.filter(init -> init != null)
+				.toArray(StmtNode[]::new);
+		required.clear(scope);
+		return sequence(inits);
+	}
+
+	/**
+	 * Compile the body of a transition
+	 * @param transition
+	 * @param required set to the scopes read or written by the body
+	 * @return
+	 */
+	public StmtNode compileTransition(int transition, BitSet required) {
+		this.required = required;
+		return compileAll(actorMachine.getTransitions().get(transition).getBody());
+	}
+
+	/**
+	 * Compile the expression of a predicate condition
+	 * @param expr
+	 * @param required set to the scopes read by the expression
+	 * @return
+	 */
+	public ExprNode compilePredicate(Expression expr, BitSet required) {
+		this.required = required;
+		return compile(expr);
+	}
+
+	// --- statements ----------------------------------------------------------
+
+	private StmtNode compileAll(List<Statement> statements) {
+		return sequence(statements.stream().map(this::compile).toArray(StmtNode[]::new));
+	}
+
+	private static StmtNode sequence(StmtNode[] statements) {
+		switch (statements.length) {
+		case 0:
+			return () -> {};
+		case 1:
+			return statements[0];
+		case 2:
+			StmtNode first = statements[0];
+			StmtNode second = statements[1];
+			return () -> {
+				first.execute();
+				second.execute();
+			};
+		default:
+			return () -> {
+				for (StmtNode s : statements) {
+					s.execute();
+				}
+			};
+		}
+	}
+
+	private StmtNode compile(Statement stmt) {
+		if (stmt instanceof StmtAssignment) {
+			return compile((StmtAssignment) stmt);
+		} else if (stmt instanceof StmtBlock) {
+			return compile((StmtBlock) stmt);
+		} else if (stmt instanceof StmtIf) {
+			return compile((StmtIf) stmt);
+		} else if (stmt instanceof StmtWhile) {
+			return compile((StmtWhile) stmt);
+		} else if (stmt instanceof StmtForeach) {
+			return compile((StmtForeach) stmt);
+		} else if (stmt instanceof StmtConsume) {
+			return compile((StmtConsume) stmt);
+		} else if (stmt instanceof StmtWrite) {
+			return compile((StmtWrite) stmt);
+		} else if (stmt instanceof StmtCall) {
+			return compile((StmtCall) stmt);
+		}
+		throw notImplemented(stmt.getClass().getSimpleName());
+	}
+
+	private StmtNode compile(StmtAssignment stmt) {
+		ExprNode value = compile(stmt.getExpression());
+		LValue lvalue = stmt.getLValue();
+		if (lvalue instanceof LValueVariable) {
+			return assign(symbol(((LValueVariable) lvalue).getVariable()), value);
+		}
+		Supplier<Ref> target = lvalue(lvalue);
+		return () -> value.evaluate(target.get());
+	}
+
+	private Supplier<Ref> lvalue(LValue lvalue) {
+		if (lvalue instanceof LValueVariable) {
+			BasicRef ref = symbol(((LValueVariable) lvalue).getVariable()).ref;
+			return () -> ref;
+		} else if (lvalue instanceof LValueIndexer) {
+			Supplier<Ref> structure = lvalue(((LValueIndexer) lvalue).getStructure());
+			ExprNode index = compile(((LValueIndexer) lvalue).getIndex());
+			return () -> converter.getList(structure.get()).getRef((int) index.evaluateLong());
+		}
+		throw notImplemented(lvalue.getClass().getSimpleName());
+	}
+
+	/**
+	 * The assignment of a value to a variable, without reference if the kinds agree
+	 */
+	private static StmtNode assign(Symbol symbol, ExprNode value) {
+		BasicRef ref = symbol.ref;
+		if (symbol.kind == Kind.LONG && value.getKind() == Kind.LONG) {
+			return () -> ref.setLong(value.evaluateLong());
+		} else if (symbol.kind == Kind.DOUBLE && value.getKind() != Kind.VALUE) {
+			return () -> ref.setDouble(value.evaluateDouble());
+		} else {
+			return () -> value.evaluate(ref);
+		}
+	}
+
+	private StmtNode compile(StmtBlock block) {
+		StmtNode[] declarations = block.getVarDecls().stream()
+				.map(this::declare)
+				.toArray(StmtNode[]::new);
+		StmtNode body = compileAll(block.getStatements());
+		if (declarations.length == 0) {
+			return body;
+		}
+		StmtNode init = sequence(declarations);
+		return () -> {
+			init.execute();
+			body.execute();
+		};
+	}
+
+	/**
+	 * Declare a local variable
+	 * @return the initialization of the variable
+	 */
+	private StmtNode declare(VarDecl decl) {
+		if (decl.getValue() == null) {
+			Symbol symbol = local(decl, kindOf(decl.getType(), Kind.LONG), declaredElementKind(decl));
+			StmtNode allocation = allocate(decl, symbol.ref);
+			return allocation != null ? allocation : () -> symbol.ref.clear();
+		}
+		ExprNode value = compile(decl.getValue());
+		Symbol symbol = local(decl, kindOf(decl.getType(), value.getKind()), elementKind(value));
+		return assign(symbol, value);
+	}
+
+	/**
+	 * A local variable, that is part of the frame of the function or procedure being compiled
+	 */
+	private Symbol local(VarDecl decl, Kind kind, Kind elementKind) {
+		Symbol symbol = new Symbol(kind, elementKind, -1);
+		symbols.put(decl, symbol);
+		if (current != null) {
+			current.frame.add(symbol.ref);
+		}
+		return symbol;
+	}
+
+	/**
+	 * The allocation of a variable of a list type with a size, with its elements set to zero
+	 * @return null if the declared type is not a list with a size
+	 */
+	private StmtNode allocate(VarDecl decl, BasicRef ref) {
+		Type type = types.declaredType(decl);
+		if (!(type instanceof ListType) || !((ListType) type).getSize().isPresent()) {
+			return null;
+		}
+		BasicRef zero = new BasicRef();
+		zero(type, zero);
+		// -- the copy of a list value copies its elements
+		return () -> zero.assignTo(ref);
+	}
+
+	private void zero(Type type, BasicRef ref) {
+		if (type instanceof ListType && ((ListType) type).getSize().isPresent()) {
+			BasicRef element = new BasicRef();
+			zero(((ListType) type).getElementType(), element);
+			BasicList.Builder builder = new BasicList.Builder();
+			for (int i = 0; i < ((ListType) type).getSize().getAsInt(); i++) {
+				builder.add(element);
+			}
+			converter.setList(ref, builder.build());
+		} else if (type instanceof RealType) {
+			ref.setDouble(0);
+		} else if (Channels.kindOf(type) == Kind.LONG) {
+			ref.setLong(0);
+		} else {
+			ref.clear();
+		}
+	}
+
+	private StmtNode compile(StmtIf stmt) {
+		ExprNode condition = compile(stmt.getCondition());
+		StmtNode thenBranch = compileAll(stmt.getThenBranch());
+		if (stmt.getElseBranch() == null) {
+			return () -> {
+				if (condition.evaluateBoolean()) {
+					thenBranch.execute();
+				}
+			};
+		}
+		StmtNode elseBranch = compileAll(stmt.getElseBranch());
+		return () -> {
+			if (condition.evaluateBoolean()) {
+				thenBranch.execute();
+			} else {
+				elseBranch.execute();
+			}
+		};
+	}
+
+	private StmtNode compile(StmtWhile stmt) {
+		ExprNode condition = compile(stmt.getCondition());
+		StmtNode body = compileAll(stmt.getBody());
+		return () -> {
+			while (condition.evaluateBoolean()) {
+				body.execute();
+			}
+		};
+	}
+
+	/**
+	 * A foreach statement over integer ranges, with a nested loop for each variable
+	 */
+	private StmtNode compile(StmtForeach stmt) {
+		Expression collection = stmt.getGenerator().getCollection();
+		if (!(collection instanceof ExprBinaryOp) || !((ExprBinaryOp) collection).getOperations().equals(Collections.singletonList(".."))) {
+			throw notImplemented("foreach over a collection that is not a range");
+		}
+		ExprNode from = compile(((ExprBinaryOp) collection).getOperands().get(0));
+		ExprNode to = compile(((ExprBinaryOp) collection).getOperands().get(1));
+		List<GeneratorVarDecl> varDecls = stmt.getGenerator().getVarDecls();
+		BasicRef[] refs = new BasicRef[varDecls.size()];
+		for (int i = 0; i < refs.length; i++) {
+			refs[i] = local(varDecls.get(i), Kind.LONG, null).ref;
+		}
+		StmtNode body = compileAll(stmt.getBody());
+		for (Expression filter : stmt.getFilters()) {
+			ExprNode condition = compile(filter);
+			StmtNode filtered = body;
+			body = () -> {
+				if (condition.evaluateBoolean()) {
+					filtered.execute();
+				}
+			};
+		}
+		for (int i = refs.length - 1; i >= 0; i--) {
+			BasicRef ref = refs[i];
+			StmtNode inner = body;
+			body = () -> {
+				long last = to.evaluateLong();
+				for (long v = from.evaluateLong(); v <= last; v++) {
+					ref.setLong(v);
+					inner.execute();
+				}
+			};
+		}
+		return body;
+	}
+
+	private StmtNode compile(StmtConsume stmt) {
+		Channel.OutputEnd channel = inputs[inputIndex(stmt.getPort())];
+		int n = stmt.getNumberOfTokens();
+		return () -> channel.remove(n);
+	}
+
+	private StmtNode compile(StmtWrite stmt) {
+		Channel.InputEnd channel = outputs[outputIndex(stmt.getPort())];
+		if (stmt.getRepeatExpression() == null) {
+			return sequence(stmt.getValues().stream().map(expr -> write(channel, compile(expr))).toArray(StmtNode[]::new));
+		} else if (stmt.getValues().size() == 1) {
+			ExprNode value = compile(stmt.getValues().get(0));
+			ExprNode repeat = compile(stmt.getRepeatExpression());
+			BasicRef list = new BasicRef();
+			BasicRef tmp = new BasicRef();
+			return () -> {
+				value.evaluate(list);
+				xyz.exelixi.interp.values.List l = converter.getList(list);
+				long n = repeat.evaluateLong();
+				for (int i = 0; i < n; i++) {
+					l.get(i, tmp);
+					channel.write(tmp);
+				}
+			};
+		}
+		throw notImplemented("repeated write of several values");
+	}
+
+	/**
+	 * The call of a procedure of the actor, or of a procedure value through the interpreter
+	 */
+	private StmtNode compile(StmtCall call) {
+		Nodes.Callable callee = callee(call.getProcedure());
+		if (callee == null) {
+			ExprNode procedure = compile(call.getProcedure());
+			ExprNode[] args = call.getArgs().stream().map(this::compile).toArray(ExprNode[]::new);
+			BasicRef value = new BasicRef();
+			BasicRef[] values = temporaries(args.length);
+			return () -> {
+				procedure.evaluate(value);
+				for (int i = 0; i < args.length; i++) {
+					args[i].evaluate(values[i]);
+				}
+				for (BasicRef v : values) {
+					interpreter.getStack().push(v);
+				}
+				converter.getProcedure(value).exec(interpreter);
+			};
+		}
+		BasicRef[] values = new BasicRef[call.getArgs().size()];
+		StmtNode arguments = arguments(callee, call.getArgs(), values);
+		return () -> {
+			arguments.execute();
+			BasicRef[] saved = callee.enter(values);
+			callee.statements.execute();
+			callee.leave(saved);
+		};
+	}
+
+	/**
+	 * The write of one token, without reference to an integer or real channel
+	 */
+	private static StmtNode write(Channel.InputEnd channel, ExprNode value) {
+		if (channel instanceof LongChannel.LongInputEnd && value.getKind() == Kind.LONG) {
+			LongChannel.LongInputEnd longChannel = (LongChannel.LongInputEnd) channel;
+			return () -> longChannel.writeLong(value.evaluateLong());
+		} else if (channel instanceof DoubleChannel.DoubleInputEnd && value.getKind() != Kind.VALUE) {
+			DoubleChannel.DoubleInputEnd doubleChannel = (DoubleChannel.DoubleInputEnd) channel;
+			return () -> doubleChannel.writeDouble(value.evaluateDouble());
+		}
+		BasicRef tmp = new BasicRef();
+		return () -> {
+			value.evaluate(tmp);
+			channel.write(tmp);
+		};
+	}
+
+	// --- expressions ---------------------------------------------------------
+
+	private ExprNode compile(Expression expr) {
+		if (expr instanceof ExprLiteral) {
+			return compile((ExprLiteral) expr);
+		} else if (expr instanceof ExprVariable) {
+			VarDecl decl = resolve(((ExprVariable) expr).getVariable());
+			if (decl instanceof ClosureVarDecl) {
+				return compile(decl.getValue());
+			}
+			Symbol symbol = symbol(((ExprVariable) expr).getVariable());
+			return new Nodes.Variable(symbol.ref, symbol.kind, symbol.elementKind);
+		} else if (expr instanceof ExprGlobalVariable) {
+			Symbol symbol = global(global(((ExprGlobalVariable) expr).getGlobalName()));
+			return new Nodes.Variable(symbol.ref, symbol.kind, symbol.elementKind);
+		} else if (expr instanceof ExprLambda || expr instanceof ExprProc) {
+			Nodes.Callable callable = callable(expr);
+			BasicRef value = new BasicRef();
+			value.setValue(callable);
+			return new Nodes.ValueConstant(value);
+		} else if (expr instanceof ExprBinaryOp) {
+			return compile((ExprBinaryOp) expr);
+		} else if (expr instanceof ExprUnaryOp) {
+			ExprUnaryOp unary = (ExprUnaryOp) expr;
+			ExprNode node = Nodes.unary(unary.getOperation(), compile(unary.getOperand()));
+			if (node == null) {
+				throw notImplemented("operator " + unary.getOperation());
+			}
+			return node;
+		} else if (expr instanceof ExprIf) {
+			return compile((ExprIf) expr);
+		} else if (expr instanceof ExprLet) {
+			return compile((ExprLet) expr);
+		} else if (expr instanceof ExprList) {
+			ExprNode[] elements = ((ExprList) expr).getElements().stream().map(this::compile).toArray(ExprNode[]::new);
+			return new Nodes.ListValue(elements, elements.length > 0 ? elements[0].getKind() : null);
+		} else if (expr instanceof ExprIndexer) {
+			ExprNode structure = compile(((ExprIndexer) expr).getStructure());
+			ExprNode index = compile(((ExprIndexer) expr).getIndex());
+			Kind kind = elementKind(structure);
+			return new Nodes.Indexer(kind != null ? kind : Kind.LONG, structure, index);
+		} else if (expr instanceof ExprInput) {
+			return compile((ExprInput) expr);
+		} else if (expr instanceof ExprApplication) {
+			return compile((ExprApplication) expr);
+		}
+		throw notImplemented(expr.getClass().getSimpleName());
+	}
+
+	private ExprNode compile(ExprLiteral literal) {
+		switch (literal.getKind()) {
+		case Integer:
+			String text = literal.getText();
+			if (text.startsWith("0x") || text.startsWith("0X")) {
+				return new Nodes.LongConstant(Long.parseLong(text.substring(2), 16));
+			}
+			return new Nodes.LongConstant(Long.parseLong(text));
+		case Real:
+			return new Nodes.DoubleConstant(Double.parseDouble(literal.getText()));
+		case True:
+			return new Nodes.LongConstant(1);
+		case False:
+			return new Nodes.LongConstant(0);
+		case String:
+			BasicRef value = new BasicRef();
+			value.setString(literal.getText());
+			return new Nodes.ValueConstant(value);
+		default:
+			throw notImplemented("literal " + literal.getText());
+		}
+	}
+
+	private ExprNode compile(ExprBinaryOp expr) {
+		// -- a chain of operators is evaluated from the left
+		ExprNode result = compile(expr.getOperands().get(0));
+		for (int i = 0; i < expr.getOperations().size(); i++) {
+			String operation = expr.getOperations().get(i);
+			ExprNode node = Nodes.binary(operation, result, compile(expr.getOperands().get(i + 1)));
+			if (node == null) {
+				throw notImplemented("operator " + operation);
+			}
+			result = node;
+		}
+		return result;
+	}
+
+	private ExprNode compile(ExprIf expr) {
+		ExprNode condition = compile(expr.getCondition());
+		ExprNode thenExpr = compile(expr.getThenExpr());
+		ExprNode elseExpr = compile(expr.getElseExpr());
+		Kind kind;
+		if (thenExpr.getKind() == elseExpr.getKind()) {
+			kind = thenExpr.getKind();
+		} else if (thenExpr.getKind() != Kind.VALUE && elseExpr.getKind() != Kind.VALUE) {
+			kind = Kind.DOUBLE;
+		} else {
+			kind = Kind.VALUE;
+		}
+		return new Nodes.If(kind, condition, thenExpr, elseExpr);
+	}
+
+	private ExprNode compile(ExprLet let) {
+		StmtNode declarations = sequence(let.getVarDecls().stream().map(this::declare).toArray(StmtNode[]::new));
+		return new Nodes.Let(declarations, compile(let.getBody()));
+	}
+
+	private ExprNode compile(ExprInput input) {
+		Channel.OutputEnd channel = inputs[inputIndex(input.getPort())];
+		Kind kind = kindOf(actorMachine.getInputPorts().get(inputIndex(input.getPort())).getType(), Kind.LONG);
+		if (input.hasRepeat()) {
+			return new Nodes.RepeatInput(channel, input.getOffset(), input.getPatternLength(), input.getRepeat(), kind);
+		} else if (channel instanceof LongChannel.LongOutputEnd) {
+			return new Nodes.LongInput((LongChannel.LongOutputEnd) channel, input.getOffset());
+		} else if (channel instanceof DoubleChannel.DoubleOutputEnd) {
+			return new Nodes.DoubleInput((DoubleChannel.DoubleOutputEnd) channel, input.getOffset());
+		}
+		return new Nodes.Input(kind, channel, input.getOffset());
+	}
+
+	/**
+	 * The application of an operator function is compiled as the operator, a function of the actor is
+	 * called directly, and other functions are called through the interpreter stack
+	 */
+	private ExprNode compile(ExprApplication apply) {
+		Nodes.Callable callee = callee(apply.getFunction());
+		if (callee != null) {
+			BasicRef[] values = new BasicRef[apply.getArgs().size()];
+			return new Nodes.Apply(callee, arguments(callee, apply.getArgs(), values), values);
+		}
+		String name = null;
+		if (apply.getFunction() instanceof ExprVariable) {
+			name = ((ExprVariable) apply.getFunction()).getVariable().getName();
+		} else if (apply.getFunction() instanceof ExprLiteral && ((ExprLiteral) apply.getFunction()).getKind() == ExprLiteral.Kind.Function) {
+			name = ((ExprLiteral) apply.getFunction()).getText();
+		}
+		if (name == null || !Predef.predef().containsKey(name)) {
+			// -- a function value
+			ExprNode function = compile(apply.getFunction());
+			ExprNode[] args = apply.getArgs().stream().map(this::compile).toArray(ExprNode[]::new);
+			return new Nodes.Call(Kind.VALUE, function, args, interpreter);
+		}
+		ExprNode[] args = apply.getArgs().stream().map(this::compile).toArray(ExprNode[]::new);
+		String operation = name.substring(name.indexOf('.') + 1);
+		ExprNode node = null;
+		if (args.length == 2 && name.startsWith("$BinaryOperation.")) {
+			node = Nodes.binary(operation, args[0], args[1]);
+		} else if (args.length == 1) {
+			node = Nodes.unary(operation, args[0]);
+		}
+		if (node != null) {
+			return node;
+		}
+		RefView function = Predef.predef().get(name);
+		return new Nodes.Call(Kind.VALUE, (Function) function.getValue(), args, interpreter);
+	}
+
+	// --- functions and procedures --------------------------------------------
+
+	/**
+	 * The function or procedure of the actor that an expression denotes, if it is known when it is compiled
+	 * @return null if the callee is only known when it is evaluated
+	 */
+	private Nodes.Callable callee(Expression expr) {
+		Expression value = expr;
+		if (expr instanceof ExprVariable) {
+			VarDecl decl = resolve(((ExprVariable) expr).getVariable());
+			value = decl != null ? decl.getValue() : null;
+		} else if (expr instanceof ExprGlobalVariable) {
+			value = global(((ExprGlobalVariable) expr).getGlobalName()).getValue();
+		}
+		if (value instanceof ExprLambda || value instanceof ExprProc) {
+			return callable(value);
+		}
+		return null;
+	}
+
+	/**
+	 * Compile a function or a procedure once. The scopes read by its body are required by every use.
+	 */
+	private Nodes.Callable callable(Expression expr) {
+		Nodes.Callable callable = callables.get(expr);
+		if (callable != null) {
+			if (callable.body == null && callable.statements == null) {
+				// -- a call within its own body
+				callable.recursive = true;
+			}
+			required.or(callable.required);
+			return callable;
+		}
+		List<? extends VarDecl> parameters = expr instanceof ExprLambda ? ((ExprLambda) expr).getValueParameters() : ((ExprProc) expr).getValueParameters();
+		Kind kind = expr instanceof ExprLambda ? kindOf(((ExprLambda) expr).getReturnType(), null) : null;
+		callable = new Nodes.Callable(parameters.size(), kind);
+		callables.put(expr, callable);
+
+		BitSet outerRequired = required;
+		Nodes.Callable outer = current;
+		required = callable.required;
+		current = callable;
+		for (int i = 0; i < parameters.size(); i++) {
+			Symbol symbol = local(parameters.get(i), kindOf(parameters.get(i).getType(), Kind.LONG), declaredElementKind(parameters.get(i)));
+			callable.parameters[i] = symbol.ref;
+			callable.parameterKinds[i] = symbol.kind;
+		}
+		if (expr instanceof ExprLambda) {
+			ExprNode body = compile(((ExprLambda) expr).getBody());
+			if (callable.kind == null) {
+				callable.kind = body.getKind();
+			}
+			callable.body = body;
+		} else {
+			callable.statements = compileAll(((ExprProc) expr).getBody());
+		}
+		current = outer;
+		required = outerRequired;
+		required.or(callable.required);
+		return callable;
+	}
+
+	/**
+	 * The evaluation of the arguments of a call, with the kinds of the parameters of the callable. They are
+	 * evaluated before they are bound, as an argument can read a parameter.
+	 * @param values set to the cells of the evaluated arguments
+	 */
+	private StmtNode arguments(Nodes.Callable callable, List<Expression> args, BasicRef[] values) {
+		if (args.size() != callable.parameters.length) {
+			throw new IllegalArgumentException("Wrong number of arguments");
+		}
+		StmtNode[] evaluations = new StmtNode[args.size()];
+		for (int i = 0; i < evaluations.length; i++) {
+			Symbol tmp = new Symbol(callable.parameterKinds[i], null, -1);
+			evaluations[i] = assign(tmp, compile(args.get(i)));
+			values[i] = tmp.ref;
+		}
+		return sequence(evaluations);
+	}
+
+	private static BasicRef[] temporaries(int n) {
+		BasicRef[] refs = new BasicRef[n];
+		for (int i = 0; i < n; i++) {
+			refs[i] = new BasicRef();
+		}
+		return refs;
+	}
+
+	// --- global variables ----------------------------------------------------
+
+	/**
+	 * The declaration of a global variable of the compilation task
+	 */
+	private VarDecl global(QID name) {
+		if (globals == null) {
+			globals = new HashMap<>();
+			for (SourceUnit unit : task.getSourceUnits()) {
+				NamespaceDecl namespace = unit.getTree();
+				for (GlobalVarDecl decl : namespace.getVarDecls()) {
+					globals.put(Stream.concat(namespace.getQID().parts().stream(), Stream.of(decl.getName())).collect(Collectors.joining(".")), decl);
+				}
+			}
+		}
+		VarDecl decl = globals.get(name.parts().stream().collect(Collectors.joining(".")));
+		if (decl == null) {
+			throw notImplemented("access to the global variable " + name);
+		}
+		return decl;
+	}
+
+	/**
+	 * The memory cell of a global variable, evaluated once when it is first read
+	 */
+	private Symbol global(VarDecl decl) {
+		Symbol symbol = symbols.get(decl);
+		if (symbol == null) {
+			if (decl.getValue() == null) {
+				throw notImplemented("the external variable " + decl.getName());
+			}
+			BitSet outer = required;
+			required = new BitSet();
+			ExprNode value = compile(decl.getValue());
+			required = outer;
+			symbol = new Symbol(value.getKind(), elementKind(value), -1);
+			value.evaluate(symbol.ref);
+			symbols.put(decl, symbol);
+		}
+		return symbol;
+	}
+
+	// --- names, kinds and ports ----------------------------------------------
+
+	/**
+	 * The declaration of a variable, through the variables captured by the closures
+	 */
+	private VarDecl resolve(Variable var) {
+		VarDecl decl = names.declaration(var);
+		while (decl instanceof ClosureVarDecl && decl.getValue() instanceof ExprVariable) {
+			decl = names.declaration(((ExprVariable) decl.getValue()).getVariable());
+		}
+		return decl;
+	}
+
+	private Symbol symbol(Variable var) {
+		VarDecl decl = resolve(var);
+		if (decl instanceof GlobalVarDecl) {
+			return global(decl);
+		}
+		Symbol symbol = decl != null ? declaration(decl) : null;
+		if (symbol == null) {
+			throw notImplemented("access to the variable " + var.getName());
+		}
+		if (symbol.scope >= 0) {
+			required.set(symbol.scope);
+		}
+		return symbol;
+	}
+
+	/**
+	 * The symbol of a declaration. A scope variable without type gets the kind of its compiled initialization
+	 * when it is first used.
+	 */
+	private Symbol declaration(VarDecl decl) {
+		Symbol symbol = symbols.get(decl);
+		Integer scope = untyped.remove(decl);
+		if (symbol == null && scope != null) {
+			BitSet outer = required;
+			required = new BitSet();
+			Kind kind = compile(decl.getValue()).getKind();
+			required = outer;
+			symbol = new Symbol(kind, null, scope);
+			symbols.put(decl, symbol);
+			scopes[scope][actorMachine.getScopes().get(scope).getDeclarations().indexOf(decl)] = symbol.ref;
+		}
+		return symbol;
+	}
+
+	/**
+	 * The kind of the elements of a variable declared as a list
+	 */
+	private Kind declaredElementKind(VarDecl decl) {
+		Type type = types.declaredType(decl);
+		return type instanceof ListType ? Channels.kindOf(((ListType) type).getElementType()) : null;
+	}
+
+	private static Kind elementKind(ExprNode node) {
+		return node instanceof Nodes.Elements ? ((Nodes.Elements) node).getElementKind() : null;
+	}
+
+	/**
+	 * The kind of the values of a type
+	 * @param type the type, or null if it is not declared
+	 * @param otherwise the kind of an undeclared or unknown type
+	 * @return
+	 */
+	public static Kind kindOf(TypeExpr type, Kind otherwise) {
+		if (type instanceof NominalTypeExpr) {
+			switch (((NominalTypeExpr) type).getName()) {
+			case "int":
+			case "uint":
+			case "bool":
+				return Kind.LONG;
+			case "float":
+			case "double":
+			case "real":
+				return Kind.DOUBLE;
+			case "List":
+			case "String":
+				return Kind.VALUE;
+			}
+		}
+		return otherwise;
+	}
+
+	private int inputIndex(Port port) {
+		return indexOf(actorMachine.getInputPorts(), port);
+	}
+
+	private int outputIndex(Port port) {
+		return indexOf(actorMachine.getOutputPorts(), port);
+	}
+
+	private static int indexOf(List<PortDecl> ports, Port port) {
+		for (int i = 0; i < ports.size(); i++) {
+			if (ports.get(i).getName().equals(port.getName())) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown port " + port.getName());
+	}
+
+	private UnsupportedOperationException notImplemented(String msg) {
+		return new UnsupportedOperationException("Not supported by the closure compiler: " + msg);
+	}
+}
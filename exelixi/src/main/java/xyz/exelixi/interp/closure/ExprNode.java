@@ -0,0 +1,57 @@
+package xyz.exelixi.interp.closure;
+
+import xyz.exelixi.interp.values.Ref;
+
+/**
+ * A compiled expression. The kind of a node is fixed when it is compiled: integer and boolean nodes are
+ * evaluated as long, real nodes as double, and other nodes through a reference.
+ */
+public abstract class ExprNode {
+
+	public enum Kind {
+		LONG, DOUBLE, VALUE
+	}
+
+	private final Kind kind;
+
+	protected ExprNode(Kind kind) {
+		this.kind = kind;
+	}
+
+	public final Kind getKind() {
+		return kind;
+	}
+
+	public long evaluateLong() {
+		throw new IllegalStateException("Not an integer expression");
+	}
+
+	public double evaluateDouble() {
+		if (kind == Kind.LONG) {
+			return evaluateLong();
+		}
+		throw new IllegalStateException("Not a real expression");
+	}
+
+	public boolean evaluateBoolean() {
+		return evaluateLong() != 0;
+	}
+
+	/**
+	 * Evaluate the expression into a reference
+	 * @param result
+	 */
+	public void evaluate(Ref result) {
+		switch (kind) {
+		case LONG:
+			result.setLong(evaluateLong());
+			break;
+		case DOUBLE:
+			result.setDouble(evaluateDouble());
+			break;
+		default:
+			throw new IllegalStateException("Not a value expression");
+		}
+	}
+
+}
@@ -0,0 +1,695 @@
+package xyz.exelixi.interp.closure;
+
+import xyz.exelixi.interp.Channel;
+import xyz.exelixi.interp.DoubleChannel;
+import xyz.exelixi.interp.Interpreter;
+import xyz.exelixi.interp.LongChannel;
+import xyz.exelixi.interp.Stack;
+import xyz.exelixi.interp.TypeConverter;
+import xyz.exelixi.interp.closure.ExprNode.Kind;
+import xyz.exelixi.interp.values.BasicList;
+import xyz.exelixi.interp.values.BasicRef;
+import xyz.exelixi.interp.values.Function;
+import xyz.exelixi.interp.values.Procedure;
+import xyz.exelixi.interp.values.Ref;
+import xyz.exelixi.interp.values.RefView;
+import xyz.exelixi.interp.values.Value;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The expression nodes of the closure compiler. An operator is compiled to a node class of its own for
+ * each operand kind, so that evaluating an integer expression is a chain of long returning calls.
+ */
+final class Nodes {
+
+	private Nodes() {
+	}
+
+	/**
+	 * A node of list value, that knows the kind of its elements
+	 */
+	interface Elements {
+		public Kind getElementKind();
+	}
+
+	// --- constants and variables -------------------------------------------
+
+	static final class LongConstant extends ExprNode {
+		private final long value;
+
+		LongConstant(long value) {
+			super(Kind.LONG);
+			this.value = value;
+		}
+
+		@Override
+		public long evaluateLong() {
+			return value;
+		}
+	}
+
+	static final class DoubleConstant extends ExprNode {
+		private final double value;
+
+		DoubleConstant(double value) {
+			super(Kind.DOUBLE);
+			this.value = value;
+		}
+
+		@Override
+		public double evaluateDouble() {
+			return value;
+		}
+	}
+
+	static final class ValueConstant extends ExprNode {
+		private final RefView value;
+
+		ValueConstant(RefView value) {
+			super(Kind.VALUE);
+			this.value = value;
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			value.assignTo(result);
+		}
+	}
+
+	/**
+	 * A variable, bound to its memory cell when it is compiled
+	 */
+	static final class Variable extends ExprNode implements Elements {
+		private final BasicRef ref;
+		private final Kind elementKind;
+
+		Variable(BasicRef ref, Kind kind, Kind elementKind) {
+			super(kind);
+			this.ref = ref;
+			this.elementKind = elementKind;
+		}
+
+		@Override
+		public long evaluateLong() {
+			return ref.getLong();
+		}
+
+		@Override
+		public double evaluateDouble() {
+			return getKind() == Kind.DOUBLE ? ref.getDouble() : ref.getLong();
+		}
+
+		@Override
+		public boolean evaluateBoolean() {
+			return ref.getLong() != 0;
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			ref.assignTo(result);
+		}
+
+		@Override
+		public Kind getElementKind() {
+			return elementKind;
+		}
+	}
+
+	/**
+	 * A node whose value is loaded into a reference, used where the kind of the value is only known
+	 * when it is evaluated
+	 */
+	static abstract class Loaded extends ExprNode {
+		protected final BasicRef tmp = new BasicRef();
+
+		Loaded(Kind kind) {
+			super(kind);
+		}
+
+		protected abstract void load();
+
+		@Override
+		public long evaluateLong() {
+			load();
+			return tmp.getLong();
+		}
+
+		@Override
+		public double evaluateDouble() {
+			load();
+			return getKind() == Kind.DOUBLE ? tmp.getDouble() : tmp.getLong();
+		}
+
+		@Override
+		public boolean evaluateBoolean() {
+			return evaluateLong() != 0;
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			load();
+			tmp.assignTo(result);
+		}
+	}
+
+	// --- operators -----------------------------------------------------------
+
+	static abstract class LongBinary extends ExprNode {
+		protected final ExprNode left;
+		protected final ExprNode right;
+
+		LongBinary(ExprNode left, ExprNode right) {
+			super(Kind.LONG);
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	static abstract class DoubleBinary extends ExprNode {
+		protected final ExprNode left;
+		protected final ExprNode right;
+
+		DoubleBinary(ExprNode left, ExprNode right) {
+			super(Kind.DOUBLE);
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	/**
+	 * A boolean operator, evaluated as boolean and stored as 0 or 1
+	 */
+	static abstract class Comparison extends ExprNode {
+		protected final ExprNode left;
+		protected final ExprNode right;
+
+		Comparison(ExprNode left, ExprNode right) {
+			super(Kind.LONG);
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public abstract boolean evaluateBoolean();
+
+		@Override
+		public long evaluateLong() {
+			return evaluateBoolean() ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Create the node of a binary operator
+	 * @param op the operator, as in the source or in the predefined function names
+	 * @param l
+	 * @param r
+	 * @return
+	 */
+	static ExprNode binary(String op, ExprNode l, ExprNode r) {
+		boolean real = l.getKind() == Kind.DOUBLE || r.getKind() == Kind.DOUBLE;
+		switch (op) {
+		case "+":
+			return real
+					? new DoubleBinary(l, r) { public double evaluateDouble() { return left.evaluateDouble() + right.evaluateDouble(); } }
+					: new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() + right.evaluateLong(); } };
+		case "-":
+			return real
+					? new DoubleBinary(l, r) { public double evaluateDouble() { return left.evaluateDouble() - right.evaluateDouble(); } }
+					: new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() - right.evaluateLong(); } };
+		case "*":
+			return real
+					? new DoubleBinary(l, r) { public double evaluateDouble() { return left.evaluateDouble() * right.evaluateDouble(); } }
+					: new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() * right.evaluateLong(); } };
+		case "/":
+		case "div":
+			return real
+					? new DoubleBinary(l, r) { public double evaluateDouble() { return left.evaluateDouble() / right.evaluateDouble(); } }
+					: new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() / right.evaluateLong(); } };
+		case "mod":
+		case "Mod":
+		case "%":
+			return new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() % right.evaluateLong(); } };
+		case "<<":
+		case "lshift":
+			return new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() << right.evaluateLong(); } };
+		case ">>":
+		case "rshift":
+			return new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() >> right.evaluateLong(); } };
+		case "&":
+		case "bitand":
+			return new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() & right.evaluateLong(); } };
+		case "|":
+		case "bitor":
+			return new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() | right.evaluateLong(); } };
+		case "^":
+		case "bitxor":
+			return new LongBinary(l, r) { public long evaluateLong() { return left.evaluateLong() ^ right.evaluateLong(); } };
+		case "<":
+			return real
+					? new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateDouble() < right.evaluateDouble(); } }
+					: new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateLong() < right.evaluateLong(); } };
+		case "<=":
+			return real
+					? new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateDouble() <= right.evaluateDouble(); } }
+					: new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateLong() <= right.evaluateLong(); } };
+		case ">":
+			return real
+					? new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateDouble() > right.evaluateDouble(); } }
+					: new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateLong() > right.evaluateLong(); } };
+		case ">=":
+			return real
+					? new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateDouble() >= right.evaluateDouble(); } }
+					: new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateLong() >= right.evaluateLong(); } };
+		case "=":
+		case "==":
+			return real
+					? new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateDouble() == right.evaluateDouble(); } }
+					: new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateLong() == right.evaluateLong(); } };
+		case "!=":
+			return real
+					? new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateDouble() != right.evaluateDouble(); } }
+					: new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateLong() != right.evaluateLong(); } };
+		case "and":
+		case "&&":
+			return new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateBoolean() && right.evaluateBoolean(); } };
+		case "or":
+		case "||":
+			return new Comparison(l, r) { public boolean evaluateBoolean() { return left.evaluateBoolean() || right.evaluateBoolean(); } };
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Create the node of a unary operator
+	 * @param op
+	 * @param e
+	 * @return
+	 */
+	static ExprNode unary(String op, ExprNode e) {
+		switch (op) {
+		case "-":
+			return e.getKind() == Kind.DOUBLE
+					? new DoubleBinary(e, null) { public double evaluateDouble() { return -left.evaluateDouble(); } }
+					: new LongBinary(e, null) { public long evaluateLong() { return -left.evaluateLong(); } };
+		case "~":
+			return new LongBinary(e, null) { public long evaluateLong() { return ~left.evaluateLong(); } };
+		case "not":
+		case "!":
+			return new Comparison(e, null) { public boolean evaluateBoolean() { return !left.evaluateBoolean(); } };
+		default:
+			return null;
+		}
+	}
+
+	// --- control ---------------------------------------------------------------
+
+	static final class If extends ExprNode {
+		private final ExprNode condition;
+		private final ExprNode thenExpr;
+		private final ExprNode elseExpr;
+
+		If(Kind kind, ExprNode condition, ExprNode thenExpr, ExprNode elseExpr) {
+			super(kind);
+			this.condition = condition;
+			this.thenExpr = thenExpr;
+			this.elseExpr = elseExpr;
+		}
+
+		@Override
+		public long evaluateLong() {
+			return condition.evaluateBoolean() ? thenExpr.evaluateLong() : elseExpr.evaluateLong();
+		}
+
+		@Override
+		public double evaluateDouble() {
+			return condition.evaluateBoolean() ? thenExpr.evaluateDouble() : elseExpr.evaluateDouble();
+		}
+
+		@Override
+		public boolean evaluateBoolean() {
+			return condition.evaluateBoolean() ? thenExpr.evaluateBoolean() : elseExpr.evaluateBoolean();
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			(condition.evaluateBoolean() ? thenExpr : elseExpr).evaluate(result);
+		}
+	}
+
+	/**
+	 * A let expression: the declarations are initialized before the body is evaluated
+	 */
+	static final class Let extends ExprNode implements Elements {
+		private final StmtNode declarations;
+		private final ExprNode body;
+
+		Let(StmtNode declarations, ExprNode body) {
+			super(body.getKind());
+			this.declarations = declarations;
+			this.body = body;
+		}
+
+		@Override
+		public long evaluateLong() {
+			declarations.execute();
+			return body.evaluateLong();
+		}
+
+		@Override
+		public double evaluateDouble() {
+			declarations.execute();
+			return body.evaluateDouble();
+		}
+
+		@Override
+		public boolean evaluateBoolean() {
+			declarations.execute();
+			return body.evaluateBoolean();
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			declarations.execute();
+			body.evaluate(result);
+		}
+
+		@Override
+		public Kind getElementKind() {
+			return body instanceof Elements ? ((Elements) body).getElementKind() : null;
+		}
+	}
+
+	// --- lists -----------------------------------------------------------------
+
+	static final class ListValue extends ExprNode implements Elements {
+		private final ExprNode[] elements;
+		private final Kind elementKind;
+		private final BasicRef tmp = new BasicRef();
+
+		ListValue(ExprNode[] elements, Kind elementKind) {
+			super(Kind.VALUE);
+			this.elements = elements;
+			this.elementKind = elementKind;
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			BasicList.Builder builder = new BasicList.Builder();
+			for (ExprNode element : elements) {
+				element.evaluate(tmp);
+				builder.add(tmp);
+			}
+			TypeConverter.getInstance().setList(result, builder.build());
+		}
+
+		@Override
+		public Kind getElementKind() {
+			return elementKind;
+		}
+	}
+
+	static final class Indexer extends Loaded {
+		private final ExprNode structure;
+		private final ExprNode index;
+		private final BasicRef list = new BasicRef();
+
+		Indexer(Kind kind, ExprNode structure, ExprNode index) {
+			super(kind);
+			this.structure = structure;
+			this.index = index;
+		}
+
+		@Override
+		protected void load() {
+			structure.evaluate(list);
+			TypeConverter.getInstance().getList(list).get((int) index.evaluateLong(), tmp);
+		}
+	}
+
+	// --- channels --------------------------------------------------------------
+
+	static final class LongInput extends ExprNode {
+		private final LongChannel.LongOutputEnd channel;
+		private final int offset;
+
+		LongInput(LongChannel.LongOutputEnd channel, int offset) {
+			super(Kind.LONG);
+			this.channel = channel;
+			this.offset = offset;
+		}
+
+		@Override
+		public long evaluateLong() {
+			return channel.peekLong(offset);
+		}
+	}
+
+	static final class DoubleInput extends ExprNode {
+		private final DoubleChannel.DoubleOutputEnd channel;
+		private final int offset;
+
+		DoubleInput(DoubleChannel.DoubleOutputEnd channel, int offset) {
+			super(Kind.DOUBLE);
+			this.channel = channel;
+			this.offset = offset;
+		}
+
+		@Override
+		public double evaluateDouble() {
+			return channel.peekDouble(offset);
+		}
+	}
+
+	static final class Input extends Loaded {
+		private final Channel.OutputEnd channel;
+		private final int offset;
+
+		Input(Kind kind, Channel.OutputEnd channel, int offset) {
+			super(kind);
+			this.channel = channel;
+			this.offset = offset;
+		}
+
+		@Override
+		protected void load() {
+			channel.peek(offset, tmp);
+		}
+	}
+
+	/**
+	 * A repeated input pattern, that reads a list of tokens
+	 */
+	static final class RepeatInput extends ExprNode implements Elements {
+		private final Channel.OutputEnd channel;
+		private final int first;
+		private final int delta;
+		private final int last;
+		private final Kind elementKind;
+		private final BasicRef tmp = new BasicRef();
+
+		RepeatInput(Channel.OutputEnd channel, int first, int delta, int repeat, Kind elementKind) {
+			super(Kind.VALUE);
+			this.channel = channel;
+			this.first = first;
+			this.delta = delta;
+			this.last = first + delta * repeat;
+			this.elementKind = elementKind;
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			BasicList.Builder builder = new BasicList.Builder();
+			for (int i = first; i < last; i += delta) {
+				channel.peek(i, tmp);
+				builder.add(tmp);
+			}
+			TypeConverter.getInstance().setList(result, builder.build());
+		}
+
+		@Override
+		public Kind getElementKind() {
+			return elementKind;
+		}
+	}
+
+	// --- functions -------------------------------------------------------------
+
+	/**
+	 * A function or a procedure of the actor, compiled once. Its parameters and local variables have a
+	 * memory cell each, the frame, that is saved around the calls of a recursive callable.
+	 */
+	static final class Callable implements Function, Procedure {
+		final BasicRef[] parameters;
+		final Kind[] parameterKinds;
+		final List<BasicRef> frame = new ArrayList<>();
+		final BitSet required = new BitSet();
+		Kind kind;
+		ExprNode body;
+		StmtNode statements;
+		boolean recursive;
+
+		Callable(int parameters, Kind kind) {
+			this.parameters = new BasicRef[parameters];
+			this.parameterKinds = new Kind[parameters];
+			this.kind = kind;
+		}
+
+		/**
+		 * Bind the parameters to the evaluated arguments
+		 * @return the saved frame of the active call, or null
+		 */
+		BasicRef[] enter(BasicRef[] values) {
+			BasicRef[] saved = null;
+			if (recursive) {
+				saved = new BasicRef[frame.size()];
+				for (int i = 0; i < saved.length; i++) {
+					saved[i] = new BasicRef();
+					frame.get(i).assignTo(saved[i]);
+				}
+			}
+			for (int i = 0; i < values.length; i++) {
+				values[i].assignTo(parameters[i]);
+			}
+			return saved;
+		}
+
+		void leave(BasicRef[] saved) {
+			if (saved != null) {
+				for (int i = 0; i < saved.length; i++) {
+					saved[i].assignTo(frame.get(i));
+				}
+			}
+		}
+
+		/**
+		 * A call through the interpreter stack, from a predefined function or a call of a function value
+		 */
+		private BasicRef[] pop(Interpreter interpreter) {
+			BasicRef[] values = new BasicRef[parameters.length];
+			Stack stack = interpreter.getStack();
+			for (int i = values.length - 1; i >= 0; i--) {
+				values[i] = new BasicRef();
+				stack.pop().assignTo(values[i]);
+			}
+			return values;
+		}
+
+		@Override
+		public RefView apply(Interpreter interpreter) {
+			BasicRef[] saved = enter(pop(interpreter));
+			BasicRef result = new BasicRef();
+			body.evaluate(result);
+			leave(saved);
+			return result;
+		}
+
+		@Override
+		public void exec(Interpreter interpreter) {
+			BasicRef[] saved = enter(pop(interpreter));
+			statements.execute();
+			leave(saved);
+		}
+
+		@Override
+		public Value copy() {
+			return this;
+		}
+	}
+
+	/**
+	 * The call of a function of the actor, bound when it is compiled
+	 */
+	static final class Apply extends ExprNode {
+		private final Callable callable;
+		private final StmtNode arguments;
+		private final BasicRef[] values;
+
+		Apply(Callable callable, StmtNode arguments, BasicRef[] values) {
+			super(callable.kind != null ? callable.kind : Kind.LONG);
+			this.callable = callable;
+			this.arguments = arguments;
+			this.values = values;
+		}
+
+		@Override
+		public long evaluateLong() {
+			arguments.execute();
+			BasicRef[] saved = callable.enter(values);
+			long result = callable.body.evaluateLong();
+			callable.leave(saved);
+			return result;
+		}
+
+		@Override
+		public double evaluateDouble() {
+			arguments.execute();
+			BasicRef[] saved = callable.enter(values);
+			double result = callable.body.evaluateDouble();
+			callable.leave(saved);
+			return result;
+		}
+
+		@Override
+		public void evaluate(Ref result) {
+			arguments.execute();
+			BasicRef[] saved = callable.enter(values);
+			callable.body.evaluate(result);
+			callable.leave(saved);
+		}
+	}
+
+	/**
+	 * The application of a predefined function or of a function value, whose arguments are passed on the
+	 * interpreter stack
+	 */
+	static final class Call extends Loaded {
+		private final Function function;
+		private final ExprNode functionValue;
+		private final BasicRef value = new BasicRef();
+		private final ExprNode[] args;
+		private final BasicRef[] values;
+		private final Interpreter interpreter;
+
+		Call(Kind kind, Function function, ExprNode[] args, Interpreter interpreter) {
+			this(kind, function, null, args, interpreter);
+		}
+
+		Call(Kind kind, ExprNode functionValue, ExprNode[] args, Interpreter interpreter) {
+			this(kind, null, functionValue, args, interpreter);
+		}
+
+		private Call(Kind kind, Function function, ExprNode functionValue, ExprNode[] args, Interpreter interpreter) {
+			super(kind);
+			this.function = function;
+			this.functionValue = functionValue;
+			this.args = args;
+			this.interpreter = interpreter;
+			this.values = new BasicRef[args.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = new BasicRef();
+			}
+		}
+
+		@Override
+		protected void load() {
+			Function f = function;
+			if (f == null) {
+				functionValue.evaluate(value);
+				f = TypeConverter.getInstance().getFunction(value);
+			}
+			for (int i = 0; i < args.length; i++) {
+				args[i].evaluate(values[i]);
+			}
+			Stack stack = interpreter.getStack();
+			for (BasicRef value : values) {
+				stack.push(value);
+			}
+			f.apply(interpreter).assignTo(tmp);
+		}
+	}
+
+}
@@ -0,0 +1,9 @@
+package xyz.exelixi.interp.closure;
+
+/**
+ * A compiled statement.
+ */
+@FunctionalInterface
+public interface StmtNode {
+	public void execute();
+}
@@ -5,6 +5,10 @@ public class CALRuntimeException extends RuntimeException{
 		super(msg);
 	}
 
+	public CALRuntimeException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
+
 	private static final long serialVersionUID = 1L;
 
 }
@@ -0,0 +1,1169 @@
+package xyz.exelixi.interp.jit;
+
+import se.lth.cs.tycho.ir.IRNode;
+import se.lth.cs.tycho.ir.Parameter;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.Variable;
+import se.lth.cs.tycho.ir.decl.GeneratorVarDecl;
+import se.lth.cs.tycho.ir.decl.VarDecl;
+import se.lth.cs.tycho.ir.entity.PortDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Condition;
+import se.lth.cs.tycho.ir.entity.am.PortCondition;
+import se.lth.cs.tycho.ir.entity.am.PredicateCondition;
+import se.lth.cs.tycho.ir.entity.am.Scope;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Exec;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Instruction;
+import se.lth.cs.tycho.ir.entity.am.ctrl.State;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Test;
+import se.lth.cs.tycho.ir.entity.am.ctrl.Wait;
+import se.lth.cs.tycho.ir.expr.*;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.ir.stmt.*;
+import se.lth.cs.tycho.ir.stmt.lvalue.LValueVariable;
+import se.lth.cs.tycho.phases.attributes.Names;
+import xyz.exelixi.interp.Channel;
+import xyz.exelixi.interp.DoubleChannel;
+import xyz.exelixi.interp.LongChannel;
+import xyz.exelixi.interp.closure.ClosureCompiler;
+import xyz.exelixi.interp.closure.ExprNode.Kind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compile an actor machine into a JVM class, that the JIT compiler of the virtual machine compiles to
+ * native code as any other hot method. The controller is a table switch on the state in step(), every
+ * transition, predicate and scope initialization is a method, the scope variables are long or double
+ * fields, and the tokens are read and written through the long and double channel ends.
+ *
+ * Only the actor machines whose variables and tokens are all integers, booleans or reals are compiled;
+ * any other construct throws an UnsupportedOperationException, and the actor machine is left to the
+ * {@link ClosureCompiler}.
+ */
+public final class BytecodeCompiler {
+
+	private static final String BASE = "xyz/exelixi/interp/jit/CompiledActorMachine";
+	private static final String PACKAGE = "xyz/exelixi/interp/jit/generated/";
+	private static final String INPUT_END = "xyz/exelixi/interp/Channel$InputEnd";
+	private static final String OUTPUT_END = "xyz/exelixi/interp/Channel$OutputEnd";
+	private static final String LONG_INPUT_END = "xyz/exelixi/interp/LongChannel$LongInputEnd";
+	private static final String LONG_OUTPUT_END = "xyz/exelixi/interp/LongChannel$LongOutputEnd";
+	private static final String DOUBLE_INPUT_END = "xyz/exelixi/interp/DoubleChannel$DoubleInputEnd";
+	private static final String DOUBLE_OUTPUT_END = "xyz/exelixi/interp/DoubleChannel$DoubleOutputEnd";
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private final ActorMachine actorMachine;
+	private final Names names;
+	private final ClassFile classFile;
+	private final String className;
+	private final Kind[] inputKinds;
+	private final Kind[] outputKinds;
+	private final Map<VarDecl, Symbol> symbols = new IdentityHashMap<>();
+	private final Map<VarDecl, int[]> untyped = new IdentityHashMap<>();
+	private Code code;
+
+	/**
+	 * A variable: a field of a scope, a local variable of the method being generated, or a constant
+	 */
+	private static final class Symbol {
+		final Kind kind;
+		final int scope;
+		final String field;
+		final int slot;
+		final Number constant;
+
+		Symbol(Kind kind, int scope, String field, int slot, Number constant) {
+			this.kind = kind;
+			this.scope = scope;
+			this.field = field;
+			this.slot = slot;
+			this.constant = constant;
+		}
+	}
+
+	/**
+	 * The field holding a scope variable
+	 * @param scope
+	 * @param declaration
+	 * @return
+	 */
+	static String fieldName(int scope, int declaration) {
+		return "s" + scope + "_" + declaration;
+	}
+
+	/**
+	 * Compile an actor machine and create an instance of the generated class
+	 * @param actorMachine the actor machine, as given by the compilation task
+	 * @param instance the instance, that gives the value parameters
+	 * @param names the name analysis of the compilation task
+	 * @param inputs the channel ends of the input ports
+	 * @param outputs the channel ends of the output ports
+	 * @return the simulator of the instance
+	 * @throws UnsupportedOperationException if the actor machine uses a construct that is not compiled
+	 * @throws IllegalStateException if the generated code is inconsistent or the class can not be instantiated
+	 * @throws LinkageError if the generated class is rejected by the verifier
+	 */
+	public static CompiledActorMachine compile(ActorMachine actorMachine, Instance instance, Names names, Channel.OutputEnd[] inputs, Channel.InputEnd[] outputs) {
+		assert actorMachine.getInputPorts().size() == inputs.length;
+		assert actorMachine.getOutputPorts().size() == outputs.length;
+		BytecodeCompiler compiler = new BytecodeCompiler(actorMachine, instance, names, inputs, outputs);
+		byte[] bytes = compiler.generate();
+		Class<?> generated = new JitClassLoader().define(compiler.className.replace('/', '.'), bytes);
+		try {
+			CompiledActorMachine simulator = (CompiledActorMachine) generated
+					.getConstructor(Channel.OutputEnd[].class, Channel.InputEnd[].class)
+					.newInstance(inputs, outputs);
+			simulator.setActorMachine(actorMachine);
+			return simulator;
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not instantiate " + compiler.className, e);
+		}
+	}
+
+	private BytecodeCompiler(ActorMachine actorMachine, Instance instance, Names names, Channel.OutputEnd[] inputs, Channel.InputEnd[] outputs) {
+		this.actorMachine = actorMachine;
+		this.names = names;
+		this.className = PACKAGE + instance.getInstanceName().replaceAll("[^A-Za-z0-9_]", "_") + "_" + classCounter.incrementAndGet();
+		this.classFile = new ClassFile(className, BASE);
+
+		inputKinds = new Kind[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			inputKinds[i] = inputs[i] instanceof LongChannel.LongOutputEnd ? Kind.LONG : inputs[i] instanceof DoubleChannel.DoubleOutputEnd ? Kind.DOUBLE : Kind.VALUE;
+		}
+		outputKinds = new Kind[outputs.length];
+		for (int i = 0; i < outputs.length; i++) {
+			outputKinds[i] = outputs[i] instanceof LongChannel.LongInputEnd ? Kind.LONG : outputs[i] instanceof DoubleChannel.DoubleInputEnd ? Kind.DOUBLE : Kind.VALUE;
+		}
+
+		for (VarDecl par : actorMachine.getValueParameters()) {
+			Expression value = null;
+			for (Parameter<Expression, ?> assignment : instance.getValueParameters()) {
+				if (par.getName().equals(assignment.getName())) {
+					value = assignment.getValue();
+				}
+			}
+			if (value == null) {
+				throw new IllegalArgumentException("No value for the parameter " + par.getName() + " of " + instance.getInstanceName());
+			}
+			bindParameter(par, value);
+		}
+
+		List<Scope> scopes = actorMachine.getScopes();
+		if (scopes.size() > Long.SIZE) {
+			throw notImplemented("more than " + Long.SIZE + " scopes");
+		}
+		for (int s = 0; s < scopes.size(); s++) {
+			List<VarDecl> declarations = scopes.get(s).getDeclarations();
+			for (int d = 0; d < declarations.size(); d++) {
+				VarDecl decl = declarations.get(d);
+				if (ClosureCompiler.kindOf(decl.getType(), null) == null && decl.getValue() != null) {
+					untyped.put(decl, new int[] { s, d });
+				} else {
+					define(decl, s, d, ClosureCompiler.kindOf(decl.getType(), Kind.LONG));
+				}
+			}
+		}
+
+		// -- a variable without type has the kind of its initialization, which may read variables of other scopes
+		code = new Code(classFile, 1);
+		new ArrayList<>(untyped.keySet()).forEach(this::declaration);
+		symbols.values().removeIf(symbol -> symbol.slot >= 0);
+		code = null;
+	}
+
+	private void define(VarDecl decl, int scope, int declaration, Kind kind) {
+		if (kind == Kind.VALUE) {
+			throw notImplemented("the variable " + decl.getName() + " of type " + decl.getType());
+		}
+		String field = fieldName(scope, declaration);
+		classFile.addField(ClassFile.ACC_PUBLIC, field, descriptor(kind));
+		symbols.put(decl, new Symbol(kind, scope, field, -1, null));
+	}
+
+	/**
+	 * The symbol of a declaration, defining a scope variable without type when it is first read
+	 */
+	private Symbol declaration(VarDecl decl) {
+		int[] position = untyped.remove(decl);
+		if (position != null) {
+			define(decl, position[0], position[1], kindOf(decl.getValue()));
+		}
+		return symbols.get(decl);
+	}
+
+	/**
+	 * A value parameter is a constant of the class, its value must be a literal
+	 */
+	private void bindParameter(VarDecl decl, Expression value) {
+		boolean negate = false;
+		if (value instanceof ExprUnaryOp && ((ExprUnaryOp) value).getOperation().equals("-")) {
+			negate = true;
+			value = ((ExprUnaryOp) value).getOperand();
+		}
+		if (!(value instanceof ExprLiteral)) {
+			throw notImplemented("the value of the parameter " + decl.getName());
+		}
+		ExprLiteral literal = (ExprLiteral) value;
+		Symbol symbol;
+		switch (literal.getKind()) {
+		case Integer:
+			long l = parseInteger(literal.getText());
+			symbol = new Symbol(Kind.LONG, -1, null, -1, negate ? -l : l);
+			break;
+		case Real:
+			double d = Double.parseDouble(literal.getText());
+			symbol = new Symbol(Kind.DOUBLE, -1, null, -1, negate ? -d : d);
+			break;
+		case True:
+		case False:
+			symbol = new Symbol(Kind.LONG, -1, null, -1, literal.getKind() == ExprLiteral.Kind.True ? 1L : 0L);
+			break;
+		default:
+			throw notImplemented("the value of the parameter " + decl.getName());
+		}
+		symbols.put(decl, symbol);
+	}
+
+	private static long parseInteger(String text) {
+		if (text.startsWith("0x") || text.startsWith("0X")) {
+			return Long.parseLong(text.substring(2), 16);
+		}
+		return Long.parseLong(text);
+	}
+
+	// --- class ---------------------------------------------------------------
+
+	private byte[] generate() {
+		generateConstructor();
+		generateRequire();
+		List<Scope> scopes = actorMachine.getScopes();
+		for (int s = 0; s < scopes.size(); s++) {
+			code = new Code(classFile, 1);
+			ensure(scopesRead(scopes.get(s).getDeclarations()) & ~(1L << s));
+			for (VarDecl decl : scopes.get(s).getDeclarations()) {
+				if (decl.getValue() != null) {
+					store(symbols.get(decl), decl.getValue());
+				}
+			}
+			code.op(Code.RETURN, 0);
+			classFile.addMethod(ClassFile.ACC_PUBLIC, "init" + s, "()V", code);
+		}
+		for (int t = 0; t < actorMachine.getTransitions().size(); t++) {
+			List<Statement> body = actorMachine.getTransitions().get(t).getBody();
+			code = new Code(classFile, 1);
+			ensure(scopesRead(body));
+			genAll(body);
+			code.op(Code.RETURN, 0);
+			classFile.addMethod(ClassFile.ACC_PUBLIC, "t" + t, "()V", code);
+		}
+		for (int c = 0; c < actorMachine.getConditions().size(); c++) {
+			Condition condition = actorMachine.getConditions().get(c);
+			if (condition instanceof PredicateCondition) {
+				Expression expr = ((PredicateCondition) condition).getExpression();
+				code = new Code(classFile, 1);
+				ensure(scopesRead(expr));
+				Code.Label isFalse = code.newLabel();
+				genCondition(expr, isFalse);
+				code.pushInt(1);
+				code.op(Code.IRETURN, -1);
+				code.place(isFalse);
+				code.pushInt(0);
+				code.op(Code.IRETURN, -1);
+				classFile.addMethod(ClassFile.ACC_PUBLIC, "c" + c, "()Z", code);
+			}
+		}
+		generateStep();
+		return classFile.toByteArray();
+	}
+
+	/**
+	 * The constructor stores the channel ends in fields of their most specific type
+	 */
+	private void generateConstructor() {
+		for (int i = 0; i < inputKinds.length; i++) {
+			classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "in" + i, "L" + inputType(i) + ";");
+		}
+		for (int i = 0; i < outputKinds.length; i++) {
+			classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "out" + i, "L" + outputType(i) + ";");
+		}
+		code = new Code(classFile, 3);
+		code.aload0();
+		code.invokeSpecial(BASE, "<init>", "()V");
+		for (int i = 0; i < inputKinds.length; i++) {
+			code.aload0();
+			code.aload(1);
+			code.pushInt(i);
+			code.op(Code.AALOAD, -1);
+			code.checkCast(inputType(i));
+			code.putField(className, "in" + i, "L" + inputType(i) + ";");
+		}
+		for (int i = 0; i < outputKinds.length; i++) {
+			code.aload0();
+			code.aload(2);
+			code.pushInt(i);
+			code.op(Code.AALOAD, -1);
+			code.checkCast(outputType(i));
+			code.putField(className, "out" + i, "L" + outputType(i) + ";");
+		}
+		code.op(Code.RETURN, 0);
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([L" + OUTPUT_END + ";[L" + INPUT_END + ";)V", code);
+	}
+
+	/**
+	 * require(mask) initializes the scopes of the mask that are not live, in the order of the scopes
+	 */
+	private void generateRequire() {
+		code = new Code(classFile, 3);
+		for (int s = 0; s < actorMachine.getScopes().size(); s++) {
+			long bit = 1L << s;
+			Code.Label next = code.newLabel();
+			code.lload(1);
+			code.pushLong(bit);
+			code.op(Code.LAND, -2);
+			code.pushLong(0);
+			code.op(Code.LCMP, -3);
+			code.jump(Code.IFEQ, next);
+			code.aload0();
+			code.getField(BASE, "live", "J");
+			code.pushLong(bit);
+			code.op(Code.LAND, -2);
+			code.pushLong(0);
+			code.op(Code.LCMP, -3);
+			code.jump(Code.IFNE, next);
+			code.aload0();
+			code.invokeVirtual(className, "init" + s, "()V");
+			code.aload0();
+			code.aload0();
+			code.getField(BASE, "live", "J");
+			code.pushLong(bit);
+			code.op(Code.LOR, -2);
+			code.putField(BASE, "live", "J");
+			code.place(next);
+		}
+		code.op(Code.RETURN, 0);
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "require", "(J)V", code);
+	}
+
+	/**
+	 * Call require(mask) if a scope of the mask is not live
+	 */
+	private void ensure(long mask) {
+		if (mask == 0) {
+			return;
+		}
+		Code.Label done = code.newLabel();
+		code.aload0();
+		code.getField(BASE, "live", "J");
+		code.pushLong(mask);
+		code.op(Code.LAND, -2);
+		code.pushLong(mask);
+		code.op(Code.LCMP, -3);
+		code.jump(Code.IFEQ, done);
+		code.aload0();
+		code.pushLong(mask);
+		code.invokeVirtual(className, "require", "(J)V");
+		code.place(done);
+	}
+
+	/**
+	 * step() runs the controller from the current state until a transition is executed or the
+	 * controller waits
+	 */
+	private void generateStep() {
+		List<State> stateList = actorMachine.controller().getStateList();
+		Map<State, Integer> stateIndex = new HashMap<>();
+		for (int i = 0; i < stateList.size(); i++) {
+			stateIndex.put(stateList.get(i), i);
+		}
+		long persistent = 0;
+		for (int s = 0; s < actorMachine.getScopes().size(); s++) {
+			if (actorMachine.getScopes().get(s).isPersistent()) {
+				persistent |= 1L << s;
+			}
+		}
+
+		code = new Code(classFile, 1);
+		Code.Label[] labels = new Code.Label[stateList.size()];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = code.newLabel();
+		}
+		code.aload0();
+		code.getField(BASE, "state", "I");
+		code.tableSwitch(labels, labels[0]);
+		for (int i = 0; i < labels.length; i++) {
+			code.place(labels[i]);
+			Instruction instruction = stateList.get(i).getInstructions().get(0);
+			switch (instruction.getKind()) {
+			case TEST:
+				Test test = (Test) instruction;
+				Condition condition = actorMachine.getConditions().get(test.condition());
+				if (condition instanceof PortCondition) {
+					PortCondition portCondition = (PortCondition) condition;
+					code.aload0();
+					if (portCondition.isInputCondition()) {
+						int port = indexOf(actorMachine.getInputPorts(), portCondition.getPortName().getName());
+						code.getField(className, "in" + port, "L" + inputType(port) + ";");
+						code.pushInt(portCondition.N());
+						code.invokeInterface(inputType(port), "tokens", "(I)Z");
+					} else {
+						int port = indexOf(actorMachine.getOutputPorts(), portCondition.getPortName().getName());
+						code.getField(className, "out" + port, "L" + outputType(port) + ";");
+						code.pushInt(portCondition.N());
+						code.invokeInterface(outputType(port), "space", "(I)Z");
+					}
+				} else {
+					code.aload0();
+					code.invokeVirtual(className, "c" + test.condition(), "()Z");
+				}
+				code.jump(Code.IFEQ, labels[stateIndex.get(test.targetFalse())]);
+				code.jump(Code.GOTO, labels[stateIndex.get(test.targetTrue())]);
+				break;
+			case EXEC:
+				Exec exec = (Exec) instruction;
+				code.aload0();
+				code.invokeVirtual(className, "t" + exec.transition(), "()V");
+				// -- the scopes that are not persistent are killed by a transition
+				code.aload0();
+				code.aload0();
+				code.getField(BASE, "live", "J");
+				code.pushLong(persistent);
+				code.op(Code.LAND, -2);
+				code.putField(BASE, "live", "J");
+				code.aload0();
+				code.aload0();
+				code.getField(BASE, "firings", "J");
+				code.pushLong(1);
+				code.op(Code.LADD, -2);
+				code.putField(BASE, "firings", "J");
+				setState(stateIndex.get(exec.target()));
+				code.pushInt(1);
+				code.op(Code.IRETURN, -1);
+				break;
+			default:
+				setState(stateIndex.get(((Wait) instruction).target()));
+				code.pushInt(0);
+				code.op(Code.IRETURN, -1);
+				break;
+			}
+		}
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "step", "()Z", code);
+	}
+
+	private void setState(int state) {
+		code.aload0();
+		code.pushInt(state);
+		code.putField(BASE, "state", "I");
+	}
+
+	// --- statements ----------------------------------------------------------
+
+	private void genAll(List<Statement> statements) {
+		for (Statement stmt : statements) {
+			gen(stmt);
+		}
+	}
+
+	private void gen(Statement stmt) {
+		if (stmt instanceof StmtAssignment) {
+			StmtAssignment assignment = (StmtAssignment) stmt;
+			if (!(assignment.getLValue() instanceof LValueVariable)) {
+				throw notImplemented("assignment to " + assignment.getLValue().getClass().getSimpleName());
+			}
+			store(symbol(((LValueVariable) assignment.getLValue()).getVariable()), assignment.getExpression());
+		} else if (stmt instanceof StmtBlock) {
+			StmtBlock block = (StmtBlock) stmt;
+			block.getVarDecls().forEach(this::declare);
+			genAll(block.getStatements());
+		} else if (stmt instanceof StmtIf) {
+			StmtIf stmtIf = (StmtIf) stmt;
+			Code.Label elseLabel = code.newLabel();
+			genCondition(stmtIf.getCondition(), elseLabel);
+			genAll(stmtIf.getThenBranch());
+			if (stmtIf.getElseBranch() == null) {
+				code.place(elseLabel);
+			} else {
+				Code.Label end = code.newLabel();
+				code.jump(Code.GOTO, end);
+				code.place(elseLabel);
+				genAll(stmtIf.getElseBranch());
+				code.place(end);
+			}
+		} else if (stmt instanceof StmtWhile) {
+			StmtWhile stmtWhile = (StmtWhile) stmt;
+			Code.Label head = code.newLabel();
+			Code.Label end = code.newLabel();
+			code.place(head);
+			genCondition(stmtWhile.getCondition(), end);
+			genAll(stmtWhile.getBody());
+			code.jump(Code.GOTO, head);
+			code.place(end);
+		} else if (stmt instanceof StmtForeach) {
+			gen((StmtForeach) stmt);
+		} else if (stmt instanceof StmtConsume) {
+			StmtConsume consume = (StmtConsume) stmt;
+			int port = inputIndex(consume.getPort());
+			code.aload0();
+			code.getField(className, "in" + port, "L" + inputType(port) + ";");
+			code.pushInt(consume.getNumberOfTokens());
+			code.invokeInterface(inputType(port), "remove", "(I)V");
+		} else if (stmt instanceof StmtWrite) {
+			StmtWrite write = (StmtWrite) stmt;
+			int port = outputIndex(write.getPort());
+			Kind kind = outputKinds[port];
+			if (write.getRepeatExpression() != null || kind == Kind.VALUE) {
+				throw notImplemented("write to the port " + write.getPort().getName());
+			}
+			for (Expression value : write.getValues()) {
+				code.aload0();
+				code.getField(className, "out" + port, "L" + outputType(port) + ";");
+				gen(value, kind);
+				code.invokeInterface(outputType(port), kind == Kind.LONG ? "writeLong" : "writeDouble", kind == Kind.LONG ? "(J)V" : "(D)V");
+			}
+		} else {
+			throw notImplemented(stmt.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * A foreach statement over an integer range, with a nested loop for each variable
+	 */
+	private void gen(StmtForeach stmt) {
+		Expression collection = stmt.getGenerator().getCollection();
+		if (!(collection instanceof ExprBinaryOp) || !((ExprBinaryOp) collection).getOperations().equals(Collections.singletonList(".."))) {
+			throw notImplemented("foreach over a collection that is not a range");
+		}
+		List<GeneratorVarDecl> varDecls = stmt.getGenerator().getVarDecls();
+		Symbol[] vars = new Symbol[varDecls.size()];
+		for (int i = 0; i < vars.length; i++) {
+			vars[i] = new Symbol(Kind.LONG, -1, null, code.newLocal(2), null);
+			symbols.put(varDecls.get(i), vars[i]);
+		}
+		loop(vars, 0, ((ExprBinaryOp) collection).getOperands(), stmt);
+	}
+
+	private void loop(Symbol[] vars, int i, List<Expression> range, StmtForeach stmt) {
+		int last = code.newLocal(2);
+		Code.Label head = code.newLabel();
+		Code.Label next = code.newLabel();
+		Code.Label end = code.newLabel();
+		gen(range.get(0), Kind.LONG);
+		code.lstore(vars[i].slot);
+		gen(range.get(1), Kind.LONG);
+		code.lstore(last);
+		code.place(head);
+		code.lload(vars[i].slot);
+		code.lload(last);
+		code.op(Code.LCMP, -3);
+		code.jump(Code.IFGT, end);
+		if (i + 1 < vars.length) {
+			loop(vars, i + 1, range, stmt);
+		} else {
+			for (Expression filter : stmt.getFilters()) {
+				genCondition(filter, next);
+			}
+			genAll(stmt.getBody());
+		}
+		code.place(next);
+		code.lload(vars[i].slot);
+		code.pushLong(1);
+		code.op(Code.LADD, -2);
+		code.lstore(vars[i].slot);
+		code.jump(Code.GOTO, head);
+		code.place(end);
+	}
+
+	/**
+	 * Declare and initialize a local variable of the method being generated
+	 */
+	private void declare(VarDecl decl) {
+		Kind kind = ClosureCompiler.kindOf(decl.getType(), decl.getValue() != null ? kindOf(decl.getValue()) : Kind.LONG);
+		if (kind == Kind.VALUE) {
+			throw notImplemented("the variable " + decl.getName());
+		}
+		Symbol symbol = new Symbol(kind, -1, null, code.newLocal(2), null);
+		symbols.put(decl, symbol);
+		if (decl.getValue() != null) {
+			store(symbol, decl.getValue());
+		} else if (kind == Kind.LONG) {
+			code.pushLong(0);
+			code.lstore(symbol.slot);
+		} else {
+			code.pushDouble(0);
+			code.dstore(symbol.slot);
+		}
+	}
+
+	private void store(Symbol symbol, Expression value) {
+		if (symbol.field == null && symbol.slot < 0) {
+			throw notImplemented("assignment to a parameter");
+		}
+		if (symbol.kind == Kind.LONG && kindOf(value) != Kind.LONG) {
+			throw notImplemented("assignment of a real to an integer variable");
+		}
+		if (symbol.field != null) {
+			code.aload0();
+			gen(value, symbol.kind);
+			code.putField(className, symbol.field, descriptor(symbol.kind));
+		} else {
+			gen(value, symbol.kind);
+			if (symbol.kind == Kind.LONG) {
+				code.lstore(symbol.slot);
+			} else {
+				code.dstore(symbol.slot);
+			}
+		}
+	}
+
+	// --- expressions ---------------------------------------------------------
+
+	/**
+	 * An expression, or a part of a chain of operators, as code that leaves its value on the stack or
+	 * branches on it
+	 */
+	private interface Operand {
+		Kind kind();
+
+		/**
+		 * Push the value, converted to a kind
+		 */
+		void gen(Kind kind);
+
+		/**
+		 * Branch to a label if the value is false, continue otherwise
+		 */
+		void genCondition(Code.Label isFalse);
+	}
+
+	private Kind kindOf(Expression expr) {
+		return operand(expr).kind();
+	}
+
+	private void gen(Expression expr, Kind kind) {
+		operand(expr).gen(kind);
+	}
+
+	private void genCondition(Expression expr, Code.Label isFalse) {
+		operand(expr).genCondition(isFalse);
+	}
+
+	private Operand operand(Expression expr) {
+		if (expr instanceof ExprLiteral) {
+			return literal((ExprLiteral) expr);
+		} else if (expr instanceof ExprVariable) {
+			return variable(symbol(((ExprVariable) expr).getVariable()));
+		} else if (expr instanceof ExprBinaryOp) {
+			ExprBinaryOp binary = (ExprBinaryOp) expr;
+			// -- a chain of operators is evaluated from the left
+			Operand result = operand(binary.getOperands().get(0));
+			for (int i = 0; i < binary.getOperations().size(); i++) {
+				result = binary(binary.getOperations().get(i), result, operand(binary.getOperands().get(i + 1)));
+			}
+			return result;
+		} else if (expr instanceof ExprUnaryOp) {
+			ExprUnaryOp unary = (ExprUnaryOp) expr;
+			return unary(unary.getOperation(), operand(unary.getOperand()));
+		} else if (expr instanceof ExprIf) {
+			return conditional((ExprIf) expr);
+		} else if (expr instanceof ExprLet) {
+			return let((ExprLet) expr);
+		} else if (expr instanceof ExprInput) {
+			return input((ExprInput) expr);
+		} else if (expr instanceof ExprApplication) {
+			return application((ExprApplication) expr);
+		}
+		throw notImplemented(expr.getClass().getSimpleName());
+	}
+
+	/**
+	 * An operand of a known kind, that is tested against zero
+	 */
+	private abstract class Value implements Operand {
+		private final Kind kind;
+
+		Value(Kind kind) {
+			this.kind = kind;
+		}
+
+		@Override
+		public Kind kind() {
+			return kind;
+		}
+
+		@Override
+		public void gen(Kind target) {
+			push();
+			convert(kind, target);
+		}
+
+		@Override
+		public void genCondition(Code.Label isFalse) {
+			push();
+			if (kind == Kind.LONG) {
+				code.pushLong(0);
+				code.op(Code.LCMP, -3);
+			} else {
+				code.pushDouble(0);
+				code.op(Code.DCMPL, -3);
+			}
+			code.jump(Code.IFEQ, isFalse);
+		}
+
+		abstract void push();
+	}
+
+	/**
+	 * A boolean operand, that is computed by branches
+	 */
+	private abstract class BooleanValue implements Operand {
+		@Override
+		public Kind kind() {
+			return Kind.LONG;
+		}
+
+		@Override
+		public void gen(Kind target) {
+			Code.Label isFalse = code.newLabel();
+			Code.Label end = code.newLabel();
+			genCondition(isFalse);
+			code.pushLong(1);
+			code.jump(Code.GOTO, end);
+			code.place(isFalse);
+			code.pushLong(0);
+			code.place(end);
+			convert(Kind.LONG, target);
+		}
+	}
+
+	private void convert(Kind from, Kind to) {
+		if (from == Kind.LONG && to == Kind.DOUBLE) {
+			code.op(Code.L2D, 0);
+		} else if (from == Kind.DOUBLE && to == Kind.LONG) {
+			code.op(Code.D2L, 0);
+		}
+	}
+
+	private Operand literal(ExprLiteral literal) {
+		switch (literal.getKind()) {
+		case Integer:
+		case True:
+		case False:
+			long l = literal.getKind() == ExprLiteral.Kind.Integer ? parseInteger(literal.getText()) : literal.getKind() == ExprLiteral.Kind.True ? 1 : 0;
+			return new Value(Kind.LONG) {
+				@Override
+				void push() {
+					code.pushLong(l);
+				}
+			};
+		case Real:
+			double d = Double.parseDouble(literal.getText());
+			return new Value(Kind.DOUBLE) {
+				@Override
+				void push() {
+					code.pushDouble(d);
+				}
+			};
+		default:
+			throw notImplemented("literal " + literal.getText());
+		}
+	}
+
+	private Operand variable(Symbol symbol) {
+		return new Value(symbol.kind) {
+			@Override
+			void push() {
+				if (symbol.field != null) {
+					code.aload0();
+					code.getField(className, symbol.field, descriptor(symbol.kind));
+				} else if (symbol.slot >= 0) {
+					if (symbol.kind == Kind.LONG) {
+						code.lload(symbol.slot);
+					} else {
+						code.dload(symbol.slot);
+					}
+				} else if (symbol.kind == Kind.LONG) {
+					code.pushLong(symbol.constant.longValue());
+				} else {
+					code.pushDouble(symbol.constant.doubleValue());
+				}
+			}
+		};
+	}
+
+	private Operand binary(String operation, Operand left, Operand right) {
+		switch (operation) {
+		case "+":
+		case "-":
+		case "*":
+		case "/":
+		case "div":
+		case "%":
+		case "mod":
+			Kind kind = left.kind() == Kind.DOUBLE || right.kind() == Kind.DOUBLE ? Kind.DOUBLE : Kind.LONG;
+			int opcode = arithmetic(operation, kind);
+			return new Value(kind) {
+				@Override
+				void push() {
+					left.gen(kind);
+					right.gen(kind);
+					code.op(opcode, -2);
+				}
+			};
+		case "&":
+		case "bitand":
+		case "|":
+		case "bitor":
+		case "^":
+		case "bitxor":
+			requireLong(operation, left, right);
+			int bitwise = operation.equals("&") || operation.equals("bitand") ? Code.LAND : operation.equals("|") || operation.equals("bitor") ? Code.LOR : Code.LXOR;
+			return new Value(Kind.LONG) {
+				@Override
+				void push() {
+					left.gen(Kind.LONG);
+					right.gen(Kind.LONG);
+					code.op(bitwise, -2);
+				}
+			};
+		case "<<":
+		case "lshift":
+		case ">>":
+		case "rshift":
+			requireLong(operation, left, right);
+			int shift = operation.equals("<<") || operation.equals("lshift") ? Code.LSHL : Code.LSHR;
+			return new Value(Kind.LONG) {
+				@Override
+				void push() {
+					left.gen(Kind.LONG);
+					right.gen(Kind.LONG);
+					code.op(Code.L2I, -1);
+					code.op(shift, -1);
+				}
+			};
+		case "<":
+		case "<=":
+		case ">":
+		case ">=":
+		case "=":
+		case "==":
+		case "!=":
+			Kind compared = left.kind() == Kind.DOUBLE || right.kind() == Kind.DOUBLE ? Kind.DOUBLE : Kind.LONG;
+			return new BooleanValue() {
+				@Override
+				public void genCondition(Code.Label isFalse) {
+					left.gen(compared);
+					right.gen(compared);
+					if (compared == Kind.LONG) {
+						code.op(Code.LCMP, -3);
+					} else {
+						// -- a comparison with NaN is false
+						code.op(operation.startsWith("<") ? Code.DCMPG : Code.DCMPL, -3);
+					}
+					code.jump(negatedBranch(operation), isFalse);
+				}
+			};
+		case "and":
+		case "&&":
+			return new BooleanValue() {
+				@Override
+				public void genCondition(Code.Label isFalse) {
+					left.genCondition(isFalse);
+					right.genCondition(isFalse);
+				}
+			};
+		case "or":
+		case "||":
+			return new BooleanValue() {
+				@Override
+				public void genCondition(Code.Label isFalse) {
+					Code.Label isTrue = code.newLabel();
+					Code.Label leftFalse = code.newLabel();
+					left.genCondition(leftFalse);
+					code.jump(Code.GOTO, isTrue);
+					code.place(leftFalse);
+					right.genCondition(isFalse);
+					code.place(isTrue);
+				}
+			};
+		default:
+			throw notImplemented("operator " + operation);
+		}
+	}
+
+	private static int arithmetic(String operation, Kind kind) {
+		boolean isLong = kind == Kind.LONG;
+		switch (operation) {
+		case "+":
+			return isLong ? Code.LADD : Code.DADD;
+		case "-":
+			return isLong ? Code.LSUB : Code.DSUB;
+		case "*":
+			return isLong ? Code.LMUL : Code.DMUL;
+		case "/":
+		case "div":
+			return isLong ? Code.LDIV : Code.DDIV;
+		default:
+			return isLong ? Code.LREM : Code.DREM;
+		}
+	}
+
+	/**
+	 * The branch taken when a comparison is false, after lcmp or dcmp
+	 */
+	private static int negatedBranch(String operation) {
+		switch (operation) {
+		case "<":
+			return Code.IFGE;
+		case "<=":
+			return Code.IFGT;
+		case ">":
+			return Code.IFLE;
+		case ">=":
+			return Code.IFLT;
+		case "!=":
+			return Code.IFEQ;
+		default:
+			return Code.IFNE;
+		}
+	}
+
+	private void requireLong(String operation, Operand left, Operand right) {
+		if (left.kind() != Kind.LONG || right.kind() != Kind.LONG) {
+			throw notImplemented("operator " + operation + " on reals");
+		}
+	}
+
+	private Operand unary(String operation, Operand operand) {
+		switch (operation) {
+		case "-":
+			Kind kind = operand.kind();
+			return new Value(kind) {
+				@Override
+				void push() {
+					operand.gen(kind);
+					code.op(kind == Kind.LONG ? Code.LNEG : Code.DNEG, 0);
+				}
+			};
+		case "~":
+		case "bitnot":
+			if (operand.kind() != Kind.LONG) {
+				throw notImplemented("operator " + operation + " on reals");
+			}
+			return new Value(Kind.LONG) {
+				@Override
+				void push() {
+					operand.gen(Kind.LONG);
+					code.pushLong(-1);
+					code.op(Code.LXOR, -2);
+				}
+			};
+		case "not":
+		case "!":
+			return new BooleanValue() {
+				@Override
+				public void genCondition(Code.Label isFalse) {
+					Code.Label operandFalse = code.newLabel();
+					operand.genCondition(operandFalse);
+					code.jump(Code.GOTO, isFalse);
+					code.place(operandFalse);
+				}
+			};
+		default:
+			throw notImplemented("operator " + operation);
+		}
+	}
+
+	private Operand conditional(ExprIf expr) {
+		Operand condition = operand(expr.getCondition());
+		Operand thenExpr = operand(expr.getThenExpr());
+		Operand elseExpr = operand(expr.getElseExpr());
+		Kind kind = thenExpr.kind() == Kind.DOUBLE || elseExpr.kind() == Kind.DOUBLE ? Kind.DOUBLE : Kind.LONG;
+		return new Operand() {
+			@Override
+			public Kind kind() {
+				return kind;
+			}
+
+			@Override
+			public void gen(Kind target) {
+				Code.Label elseLabel = code.newLabel();
+				Code.Label end = code.newLabel();
+				condition.genCondition(elseLabel);
+				thenExpr.gen(target);
+				code.jump(Code.GOTO, end);
+				code.place(elseLabel);
+				elseExpr.gen(target);
+				code.place(end);
+			}
+
+			@Override
+			public void genCondition(Code.Label isFalse) {
+				Code.Label elseLabel = code.newLabel();
+				Code.Label end = code.newLabel();
+				condition.genCondition(elseLabel);
+				thenExpr.genCondition(isFalse);
+				code.jump(Code.GOTO, end);
+				code.place(elseLabel);
+				elseExpr.genCondition(isFalse);
+				code.place(end);
+			}
+		};
+	}
+
+	/**
+	 * The variables of a let expression are local variables of the method in which it is generated
+	 */
+	private Operand let(ExprLet let) {
+		for (VarDecl decl : let.getVarDecls()) {
+			if (!symbols.containsKey(decl)) {
+				Kind kind = ClosureCompiler.kindOf(decl.getType(), decl.getValue() != null ? kindOf(decl.getValue()) : Kind.LONG);
+				if (kind == Kind.VALUE || decl.getValue() == null) {
+					throw notImplemented("the variable " + decl.getName());
+				}
+				symbols.put(decl, new Symbol(kind, -1, null, code.newLocal(2), null));
+			}
+		}
+		Operand body = operand(let.getBody());
+		return new Operand() {
+			@Override
+			public Kind kind() {
+				return body.kind();
+			}
+
+			@Override
+			public void gen(Kind target) {
+				let.getVarDecls().forEach(decl -> store(symbols.get(decl), decl.getValue()));
+				body.gen(target);
+			}
+
+			@Override
+			public void genCondition(Code.Label isFalse) {
+				let.getVarDecls().forEach(decl -> store(symbols.get(decl), decl.getValue()));
+				body.genCondition(isFalse);
+			}
+		};
+	}
+
+	private Operand input(ExprInput input) {
+		int port = inputIndex(input.getPort());
+		Kind kind = inputKinds[port];
+		if (input.hasRepeat() || kind == Kind.VALUE) {
+			throw notImplemented("input from the port " + input.getPort().getName());
+		}
+		int offset = input.getOffset();
+		return new Value(kind) {
+			@Override
+			void push() {
+				code.aload0();
+				code.getField(className, "in" + port, "L" + inputType(port) + ";");
+				code.pushInt(offset);
+				if (kind == Kind.LONG) {
+					code.invokeInterface(LONG_OUTPUT_END, "peekLong", "(I)J");
+				} else {
+					code.invokeInterface(DOUBLE_OUTPUT_END, "peekDouble", "(I)D");
+				}
+			}
+		};
+	}
+
+	/**
+	 * The application of an operator function is compiled as the operator
+	 */
+	private Operand application(ExprApplication apply) {
+		String name = null;
+		if (apply.getFunction() instanceof ExprVariable) {
+			name = ((ExprVariable) apply.getFunction()).getVariable().getName();
+		} else if (apply.getFunction() instanceof ExprLiteral && ((ExprLiteral) apply.getFunction()).getKind() == ExprLiteral.Kind.Function) {
+			name = ((ExprLiteral) apply.getFunction()).getText();
+		}
+		List<Expression> args = apply.getArgs();
+		if (name != null && name.startsWith("$BinaryOperation.") && args.size() == 2) {
+			return binary(name.substring(name.indexOf('.') + 1), operand(args.get(0)), operand(args.get(1)));
+		} else if (name != null && name.startsWith("$UnaryOperation.") && args.size() == 1) {
+			return unary(name.substring(name.indexOf('.') + 1), operand(args.get(0)));
+		}
+		throw notImplemented("application of " + (name != null ? name : apply.getFunction().getClass().getSimpleName()));
+	}
+
+	// --- names, scopes and ports ---------------------------------------------
+
+	private Symbol symbol(Variable var) {
+		VarDecl decl = names.declaration(var);
+		Symbol symbol = decl != null ? declaration(decl) : null;
+		if (symbol == null) {
+			throw notImplemented("access to the variable " + var.getName());
+		}
+		return symbol;
+	}
+
+	/**
+	 * The scopes of the variables read or written in a tree
+	 */
+	private long scopesRead(IRNode node) {
+		long[] mask = new long[1];
+		collectScopes(node, mask);
+		return mask[0];
+	}
+
+	private long scopesRead(List<? extends IRNode> nodes) {
+		long[] mask = new long[1];
+		nodes.forEach(node -> collectScopes(node, mask));
+		return mask[0];
+	}
+
+	private void collectScopes(IRNode node, long[] mask) {
+		Variable var = null;
+		if (node instanceof ExprVariable) {
+			var = ((ExprVariable) node).getVariable();
+		} else if (node instanceof LValueVariable) {
+			var = ((LValueVariable) node).getVariable();
+		}
+		if (var != null) {
+			VarDecl decl = names.declaration(var);
+			Symbol symbol = decl != null ? symbols.get(decl) : null;
+			if (symbol != null && symbol.scope >= 0) {
+				mask[0] |= 1L << symbol.scope;
+			}
+		}
+		node.forEachChild(child -> collectScopes(child, mask));
+	}
+
+	private static String descriptor(Kind kind) {
+		return kind == Kind.LONG ? "J" : "D";
+	}
+
+	private String inputType(int port) {
+		return inputKinds[port] == Kind.LONG ? LONG_OUTPUT_END : inputKinds[port] == Kind.DOUBLE ? DOUBLE_OUTPUT_END : OUTPUT_END;
+	}
+
+	private String outputType(int port) {
+		return outputKinds[port] == Kind.LONG ? LONG_INPUT_END : outputKinds[port] == Kind.DOUBLE ? DOUBLE_INPUT_END : INPUT_END;
+	}
+
+	private int inputIndex(Port port) {
+		return indexOf(actorMachine.getInputPorts(), port.getName());
+	}
+
+	private int outputIndex(Port port) {
+		return indexOf(actorMachine.getOutputPorts(), port.getName());
+	}
+
+	private static int indexOf(List<PortDecl> ports, String name) {
+		for (int i = 0; i < ports.size(); i++) {
+			if (ports.get(i).getName().equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown port " + name);
+	}
+
+	private static UnsupportedOperationException notImplemented(String msg) {
+		return new UnsupportedOperationException("Not supported by the bytecode compiler: " + msg);
+	}
+}
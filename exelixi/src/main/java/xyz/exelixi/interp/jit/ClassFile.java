@@ -0,0 +1,212 @@
+package xyz.exelixi.interp.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal class file writer: a constant pool, fields, and methods with a code attribute. The classes
+ * are written in the version 49 format, that is verified by type inference and needs no stack map.
+ */
+final class ClassFile {
+
+	private static final int VERSION = 49;
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> entries = new HashMap<>();
+	private int poolSize = 1;
+
+	private final String name;
+	private final String superName;
+	private final List<byte[]> fields = new ArrayList<>();
+	private final List<byte[]> methods = new ArrayList<>();
+
+	/**
+	 * @param name the internal name of the class
+	 * @param superName the internal name of its super class
+	 */
+	ClassFile(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	// --- constant pool -------------------------------------------------------
+
+	private int entry(String key, int slots, Writer writer) {
+		Integer index = entries.get(key);
+		if (index == null) {
+			index = poolSize;
+			try {
+				writer.write(poolOut);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			poolSize += slots;
+			if (poolSize > 0xFFFF) {
+				throw new UnsupportedOperationException("Too many constants in class " + name);
+			}
+			entries.put(key, index);
+		}
+		return index;
+	}
+
+	private interface Writer {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	int utf8(String value) {
+		return entry("U" + value, 1, out -> {
+			out.writeByte(1);
+			out.writeUTF(value);
+		});
+	}
+
+	int classRef(String internalName) {
+		int nameIndex = utf8(internalName);
+		return entry("C" + internalName, 1, out -> {
+			out.writeByte(7);
+			out.writeShort(nameIndex);
+		});
+	}
+
+	int longConstant(long value) {
+		return entry("J" + value, 2, out -> {
+			out.writeByte(5);
+			out.writeLong(value);
+		});
+	}
+
+	int doubleConstant(double value) {
+		return entry("D" + Double.doubleToRawLongBits(value), 2, out -> {
+			out.writeByte(6);
+			out.writeDouble(value);
+		});
+	}
+
+	int intConstant(int value) {
+		return entry("I" + value, 1, out -> {
+			out.writeByte(3);
+			out.writeInt(value);
+		});
+	}
+
+	private int nameAndType(String memberName, String descriptor) {
+		int nameIndex = utf8(memberName);
+		int descriptorIndex = utf8(descriptor);
+		return entry("N" + memberName + ":" + descriptor, 1, out -> {
+			out.writeByte(12);
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+		});
+	}
+
+	private int memberRef(int tag, String owner, String memberName, String descriptor) {
+		int classIndex = classRef(owner);
+		int nameAndTypeIndex = nameAndType(memberName, descriptor);
+		return entry("M" + tag + owner + "." + memberName + ":" + descriptor, 1, out -> {
+			out.writeByte(tag);
+			out.writeShort(classIndex);
+			out.writeShort(nameAndTypeIndex);
+		});
+	}
+
+	int fieldRef(String owner, String fieldName, String descriptor) {
+		return memberRef(9, owner, fieldName, descriptor);
+	}
+
+	int methodRef(String owner, String methodName, String descriptor) {
+		return memberRef(10, owner, methodName, descriptor);
+	}
+
+	int interfaceMethodRef(String owner, String methodName, String descriptor) {
+		return memberRef(11, owner, methodName, descriptor);
+	}
+
+	// --- members -------------------------------------------------------------
+
+	void addField(int access, String fieldName, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(fieldName));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	void addMethod(int access, String methodName, String descriptor, Code code) {
+		byte[] instructions = code.toByteArray();
+		if (instructions.length > 0xFFFF) {
+			throw new UnsupportedOperationException("The method " + methodName + " of class " + name + " is too large");
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(methodName));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + instructions.length);
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			out.writeInt(instructions.length);
+			out.write(instructions);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	byte[] toByteArray() {
+		int thisIndex = classRef(name);
+		int superIndex = classRef(superName);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolSize);
+			poolOut.flush();
+			out.write(pool.toByteArray());
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisIndex);
+			out.writeShort(superIndex);
+			out.writeShort(0); // interfaces
+			out.writeShort(fields.size());
+			for (byte[] field : fields) {
+				out.write(field);
+			}
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,404 @@
+package xyz.exelixi.interp.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An assembler of the code of one method. The depth of the operand stack is followed instruction by
+ * instruction, and the branches are resolved when their labels are placed.
+ */
+final class Code {
+
+	static final int LCONST_0 = 9;
+	static final int DCONST_0 = 14;
+	static final int ICONST_0 = 3;
+	static final int ALOAD_0 = 42;
+	static final int AALOAD = 50;
+	static final int LADD = 97;
+	static final int DADD = 99;
+	static final int LSUB = 101;
+	static final int DSUB = 103;
+	static final int LMUL = 105;
+	static final int DMUL = 107;
+	static final int LDIV = 109;
+	static final int DDIV = 111;
+	static final int LREM = 113;
+	static final int DREM = 115;
+	static final int LNEG = 117;
+	static final int DNEG = 119;
+	static final int LSHL = 121;
+	static final int LSHR = 123;
+	static final int LAND = 127;
+	static final int LOR = 129;
+	static final int LXOR = 131;
+	static final int L2I = 136;
+	static final int L2D = 138;
+	static final int D2L = 143;
+	static final int LCMP = 148;
+	static final int DCMPL = 151;
+	static final int DCMPG = 152;
+	static final int IFEQ = 153;
+	static final int IFNE = 154;
+	static final int IFLT = 155;
+	static final int IFGE = 156;
+	static final int IFGT = 157;
+	static final int IFLE = 158;
+	static final int GOTO = 167;
+	static final int TABLESWITCH = 170;
+	static final int IRETURN = 172;
+	static final int RETURN = 177;
+
+	private static final int LDC2_W = 20;
+	private static final int LLOAD = 22;
+	private static final int DLOAD = 24;
+	private static final int ALOAD = 25;
+	private static final int LSTORE = 55;
+	private static final int DSTORE = 57;
+	private static final int BIPUSH = 16;
+	private static final int SIPUSH = 17;
+	private static final int LDC_W = 19;
+	private static final int GETFIELD = 180;
+	private static final int PUTFIELD = 181;
+	private static final int INVOKEVIRTUAL = 182;
+	private static final int INVOKESPECIAL = 183;
+	private static final int INVOKEINTERFACE = 185;
+	private static final int CHECKCAST = 192;
+
+	/**
+	 * A position in the code, the target of branches
+	 */
+	static final class Label {
+		private int position = -1;
+		private int depth = -1;
+		private final List<int[]> fixups = new ArrayList<>();   // {instruction, offset field, width}
+	}
+
+	private final ClassFile classFile;
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	private byte[] bytes;
+	private final List<Label> labels = new ArrayList<>();
+	private int depth;
+	private int maxStack;
+	private int maxLocals;
+
+	/**
+	 * @param classFile the class of the method, that holds the constants
+	 * @param parameterSlots the local variable slots of this and of the parameters
+	 */
+	Code(ClassFile classFile, int parameterSlots) {
+		this.classFile = classFile;
+		this.maxLocals = parameterSlots;
+	}
+
+	int getMaxStack() {
+		return maxStack;
+	}
+
+	int getMaxLocals() {
+		return maxLocals;
+	}
+
+	/**
+	 * Allocate a local variable
+	 * @param size 1, or 2 for a long or a double
+	 * @return the slot of the variable
+	 */
+	int newLocal(int size) {
+		int slot = maxLocals;
+		maxLocals += size;
+		return slot;
+	}
+
+	private void stack(int delta) {
+		depth += delta;
+		if (depth < 0) {
+			throw new IllegalStateException("Negative stack depth");
+		}
+		maxStack = Math.max(maxStack, depth);
+	}
+
+	private void u1(int b) {
+		code.write(b);
+	}
+
+	private void u2(int s) {
+		code.write(s >> 8);
+		code.write(s);
+	}
+
+	private void u4(int i) {
+		u2(i >>> 16);
+		u2(i & 0xFFFF);
+	}
+
+	// --- instructions --------------------------------------------------------
+
+	/**
+	 * An instruction without operand
+	 * @param opcode
+	 * @param delta the change of the stack depth, in slots
+	 */
+	void op(int opcode, int delta) {
+		u1(opcode);
+		stack(delta);
+	}
+
+	void aload0() {
+		op(ALOAD_0, 1);
+	}
+
+	void aload(int slot) {
+		u1(ALOAD);
+		u1(slot);
+		stack(1);
+	}
+
+	void lload(int slot) {
+		wide(LLOAD, slot);
+		stack(2);
+	}
+
+	void dload(int slot) {
+		wide(DLOAD, slot);
+		stack(2);
+	}
+
+	void lstore(int slot) {
+		wide(LSTORE, slot);
+		stack(-2);
+	}
+
+	void dstore(int slot) {
+		wide(DSTORE, slot);
+		stack(-2);
+	}
+
+	private void wide(int opcode, int slot) {
+		if (slot < 256) {
+			u1(opcode);
+			u1(slot);
+		} else {
+			u1(196);
+			u1(opcode);
+			u2(slot);
+		}
+	}
+
+	void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			u1(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			u1(BIPUSH);
+			u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			u1(SIPUSH);
+			u2(value);
+		} else {
+			u1(LDC_W);
+			u2(classFile.intConstant(value));
+		}
+		stack(1);
+	}
+
+	void pushLong(long value) {
+		if (value == 0 || value == 1) {
+			u1(LCONST_0 + (int) value);
+		} else {
+			u1(LDC2_W);
+			u2(classFile.longConstant(value));
+		}
+		stack(2);
+	}
+
+	void pushDouble(double value) {
+		if (Double.doubleToRawLongBits(value) == 0) {
+			u1(DCONST_0);
+		} else {
+			u1(LDC2_W);
+			u2(classFile.doubleConstant(value));
+		}
+		stack(2);
+	}
+
+	void getField(String owner, String name, String descriptor) {
+		u1(GETFIELD);
+		u2(classFile.fieldRef(owner, name, descriptor));
+		stack(size(descriptor) - 1);
+	}
+
+	void putField(String owner, String name, String descriptor) {
+		u1(PUTFIELD);
+		u2(classFile.fieldRef(owner, name, descriptor));
+		stack(-size(descriptor) - 1);
+	}
+
+	void invokeVirtual(String owner, String name, String descriptor) {
+		u1(INVOKEVIRTUAL);
+		u2(classFile.methodRef(owner, name, descriptor));
+		stack(invocationDelta(descriptor) - 1);
+	}
+
+	void invokeSpecial(String owner, String name, String descriptor) {
+		u1(INVOKESPECIAL);
+		u2(classFile.methodRef(owner, name, descriptor));
+		stack(invocationDelta(descriptor) - 1);
+	}
+
+	void invokeInterface(String owner, String name, String descriptor) {
+		int arguments = argumentSlots(descriptor);
+		u1(INVOKEINTERFACE);
+		u2(classFile.interfaceMethodRef(owner, name, descriptor));
+		u1(arguments + 1);
+		u1(0);
+		stack(invocationDelta(descriptor) - 1);
+	}
+
+	void checkCast(String internalName) {
+		u1(CHECKCAST);
+		u2(classFile.classRef(internalName));
+	}
+
+	// --- branches ------------------------------------------------------------
+
+	Label newLabel() {
+		Label label = new Label();
+		labels.add(label);
+		return label;
+	}
+
+	/**
+	 * A conditional or unconditional branch
+	 * @param opcode
+	 * @param label
+	 */
+	void jump(int opcode, Label label) {
+		int position = code.size();
+		u1(opcode);
+		stack(opcode == GOTO ? 0 : -1);
+		label.fixups.add(new int[] { position, code.size(), 2 });
+		u2(0);
+		reach(label);
+	}
+
+	private void reach(Label label) {
+		if (label.depth >= 0 && label.depth != depth) {
+			throw new IllegalStateException("Inconsistent stack depth at a branch target");
+		}
+		label.depth = depth;
+	}
+
+	/**
+	 * A table switch on the int on top of the stack, from the case 0
+	 * @param cases
+	 * @param otherwise
+	 */
+	void tableSwitch(Label[] cases, Label otherwise) {
+		int position = code.size();
+		u1(TABLESWITCH);
+		stack(-1);
+		while (code.size() % 4 != 0) {
+			u1(0);
+		}
+		otherwise.fixups.add(new int[] { position, code.size(), 4 });
+		u4(0);
+		reach(otherwise);
+		u4(0);
+		u4(cases.length - 1);
+		for (Label label : cases) {
+			label.fixups.add(new int[] { position, code.size(), 4 });
+			u4(0);
+			reach(label);
+		}
+	}
+
+	/**
+	 * Place a label at the current position. The code after an unconditional branch is only reached
+	 * through its label, with the stack depth of the branches.
+	 * @param label
+	 */
+	void place(Label label) {
+		label.position = code.size();
+		if (label.depth >= 0) {
+			depth = label.depth;
+		} else {
+			label.depth = depth;
+		}
+	}
+
+	/**
+	 * Set the stack depth after an instruction that does not continue, such as a return or a goto
+	 * @param depth
+	 */
+	void unreachable(int depth) {
+		this.depth = depth;
+	}
+
+	byte[] toByteArray() {
+		if (bytes == null) {
+			bytes = code.toByteArray();
+			for (Label label : labels) {
+				for (int[] fixup : label.fixups) {
+					if (label.position < 0) {
+						throw new IllegalStateException("Label not placed");
+					}
+					int offset = label.position - fixup[0];
+					if (fixup[2] == 2) {
+						if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+							throw new UnsupportedOperationException("Branch offset out of range");
+						}
+						bytes[fixup[1]] = (byte) (offset >> 8);
+						bytes[fixup[1] + 1] = (byte) offset;
+					} else {
+						bytes[fixup[1]] = (byte) (offset >> 24);
+						bytes[fixup[1] + 1] = (byte) (offset >> 16);
+						bytes[fixup[1] + 2] = (byte) (offset >> 8);
+						bytes[fixup[1] + 3] = (byte) offset;
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
+	// --- descriptors ---------------------------------------------------------
+
+	static int size(String descriptor) {
+		switch (descriptor.charAt(0)) {
+		case 'V':
+			return 0;
+		case 'J':
+		case 'D':
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	private static int argumentSlots(String descriptor) {
+		int slots = 0;
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			char c = descriptor.charAt(i);
+			if (c == 'J' || c == 'D') {
+				slots += 2;
+				i++;
+			} else {
+				slots += 1;
+				while (descriptor.charAt(i) == '[') {
+					i++;
+				}
+				i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+			}
+		}
+		return slots;
+	}
+
+	/**
+	 * The change of the stack depth by a method invocation, without its receiver
+	 */
+	private static int invocationDelta(String descriptor) {
+		return size(descriptor.substring(descriptor.indexOf(')') + 1)) - argumentSlots(descriptor);
+	}
+
+}
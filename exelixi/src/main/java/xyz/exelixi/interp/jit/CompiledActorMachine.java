@@ -0,0 +1,68 @@
+package xyz.exelixi.interp.jit;
+
+import se.lth.cs.tycho.ir.decl.VarDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Scope;
+import xyz.exelixi.interp.Simulator;
+
+import java.util.List;
+
+/**
+ * The super class of the actor machine classes generated by the {@link BytecodeCompiler}. The generated
+ * step() method runs the controller, with the state variables of the actor machine in fields of the
+ * generated class.
+ */
+public abstract class CompiledActorMachine implements Simulator {
+
+	/**
+	 * The controller state
+	 */
+	protected int state;
+
+	/**
+	 * The initialized scopes, one bit per scope
+	 */
+	protected long live;
+
+	/**
+	 * The number of transitions executed
+	 */
+	protected long firings;
+
+	private ActorMachine actorMachine;
+
+	protected CompiledActorMachine() {
+	}
+
+	void setActorMachine(ActorMachine actorMachine) {
+		this.actorMachine = actorMachine;
+	}
+
+	/**
+	 * @return the number of transitions executed
+	 */
+	public long getFirings() {
+		return firings;
+	}
+
+	@Override
+	public void scopesToString(StringBuffer sb) {
+		List<Scope> scopeList = actorMachine.getScopes();
+		for (int s = 0; s < scopeList.size(); s++) {
+			if ((live & (1L << s)) != 0) {
+				sb.append("{\n");
+				List<VarDecl> declList = scopeList.get(s).getDeclarations();
+				for (int d = 0; d < declList.size(); d++) {
+					sb.append("  " + declList.get(d).getName() + " : ");
+					try {
+						sb.append(getClass().getField(BytecodeCompiler.fieldName(s, d)).get(this) + "\n");
+					} catch (ReflectiveOperationException e) {
+						sb.append("?\n");
+					}
+				}
+				sb.append("}\n");
+			}
+		}
+	}
+
+}
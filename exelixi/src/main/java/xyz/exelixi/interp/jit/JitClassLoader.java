@@ -0,0 +1,16 @@
+package xyz.exelixi.interp.jit;
+
+/**
+ * The class loader of the generated actor machine classes.
+ */
+final class JitClassLoader extends ClassLoader {
+
+	JitClassLoader() {
+		super(CompiledActorMachine.class.getClassLoader());
+	}
+
+	Class<?> define(String name, byte[] bytes) {
+		return defineClass(name, bytes, 0, bytes.length);
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * EXELIXI
+ *
+ * Copyright (C) 2017 EPFL SCI-STI-MM
+ *
+ * This file is part of EXELIXI.
+ *
+ * EXELIXI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * EXELIXI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with EXELIXI. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or
+ * an Eclipse library), containing parts covered by the terms of the
+ * Eclipse Public License (EPL), the licensors of this Program grant you
+ * additional permission to convey the resulting work.  Corresponding Source
+ * for a non-source form of such a combination shall include the source code
+ * for the parts of Eclipse libraries used as well as that of the covered work.
+ *
+ */
+package xyz.exelixi.utils;
+
+import se.lth.cs.tycho.ir.ToolAttribute;
+import se.lth.cs.tycho.ir.ToolValueAttribute;
+import se.lth.cs.tycho.ir.expr.ExprLiteral;
+import se.lth.cs.tycho.ir.expr.Expression;
+import se.lth.cs.tycho.ir.Port;
+import se.lth.cs.tycho.ir.entity.Entity;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.entity.am.Transition;
+import se.lth.cs.tycho.ir.network.Connection;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+
+/**
+ * Helper methods for the channel buffer sizes of a network
+ *
+ * @author Endri Bezati
+ */
+public class BufferSizes {
+
+    /**
+     * The connection attributes that define a buffer size
+     */
+    public static final List<String> ATTRIBUTE_NAMES = Arrays.asList("bufferSize", "buffersize");
+
+    /**
+     * Get the buffer size declared by the tool attributes of a connection
+     *
+     * @param connection the connection
+     * @return the declared size, or empty if the connection has no integer size attribute
+     */
+    public static OptionalInt declaredSize(Connection connection) {
+        for (ToolAttribute attribute : connection.getAttributes()) {
+            if (attribute instanceof ToolValueAttribute && ATTRIBUTE_NAMES.contains(attribute.getName())) {
+                Expression value = ((ToolValueAttribute) attribute).getValue();
+                if (value instanceof ExprLiteral && ((ExprLiteral) value).getKind() == ExprLiteral.Kind.Integer) {
+                    try {
+                        return OptionalInt.of(Integer.decode(((ExprLiteral) value).getText()));
+                    } catch (NumberFormatException e) {
+                        return OptionalInt.empty();
+                    }
+                }
+            }
+        }
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Round a buffer size up to the next power of two
+     *
+     * @param size the size
+     * @return the smallest power of two greater or equal to size
+     */
+    public static int nextPowerOfTwo(int size) {
+        int power = 1;
+        while (power < size && power < (1 << 30)) {
+            power = power << 1;
+        }
+        return power;
+    }
+
+    /**
+     * The largest number of tokens a transition of an actor machine reads from or writes to a port
+     *
+     * @param entity the entity of the port
+     * @param port   the name of the port
+     * @param input  true for an input port, false for an output port
+     * @return the largest rate of the port, at least 1
+     */
+    public static int portRate(Entity entity, String port, boolean input) {
+        int rate = 1;
+        if (entity instanceof ActorMachine) {
+            for (Transition transition : ((ActorMachine) entity).getTransitions()) {
+                Map<Port, Integer> rates = input ? transition.getInputRates() : transition.getOutputRates();
+                for (Map.Entry<Port, Integer> entry : rates.entrySet()) {
+                    if (entry.getKey().getName().equals(port)) {
+                        rate = Math.max(rate, entry.getValue());
+                    }
+                }
+            }
+        }
+        return rate;
+    }
+
+}
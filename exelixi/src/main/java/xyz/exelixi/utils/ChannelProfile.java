@@ -0,0 +1,143 @@
+/*
+ * EXELIXI
+ *
+ * Copyright (C) 2017 EPFL SCI-STI-MM
+ *
+ * This file is part of EXELIXI.
+ *
+ * EXELIXI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * EXELIXI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with EXELIXI. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or
+ * an Eclipse library), containing parts covered by the terms of the
+ * Eclipse Public License (EPL), the licensors of this Program grant you
+ * additional permission to convey the resulting work.  Corresponding Source
+ * for a non-source form of such a combination shall include the source code
+ * for the parts of Eclipse libraries used as well as that of the covered work.
+ *
+ */
+package xyz.exelixi.utils;
+
+import se.lth.cs.tycho.ir.network.Connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The channel occupancy measured by a profiled execution of a network, used to size the channel buffers
+ * of the next compilation. The profile is a CSV file with one line per channel, keyed by the name of the
+ * target end of the channel.
+ *
+ * @author Endri Bezati
+ */
+public class ChannelProfile {
+
+    public static final String HEADER = "source,target,size,high_water,stalls";
+
+    /**
+     * Channels that never hold more tokens than this get a buffer of this size
+     */
+    public static final int SMALL_SIZE = 8;
+
+    /**
+     * Growth factor of the channels that stalled their producer
+     */
+    public static final int GROWTH = 4;
+
+    /**
+     * Largest buffer size given to a channel that stalled its producer
+     */
+    public static final int MAX_SIZE = 1 << 20;
+
+    /**
+     * The measures of one channel
+     */
+    public static class Entry {
+        public final int size;
+        public final long highWater;
+        public final long stalls;
+
+        public Entry(int size, long highWater, long stalls) {
+            this.size = size;
+            this.highWater = highWater;
+            this.stalls = stalls;
+        }
+
+        /**
+         * The buffer size of the channel: a small buffer if it never held more than SMALL_SIZE tokens, a
+         * larger buffer if its producer stalled on it, and the given size otherwise. The buffer is never
+         * smaller than the largest rate of its ports, that the profiled run may not have exercised.
+         *
+         * @param size    the size the channel would get without profile
+         * @param minSize the largest number of tokens read or written at once on the channel
+         * @return the profiled size, a power of two
+         */
+        public int channelSize(int size, int minSize) {
+            int profiled;
+            if (stalls > 0) {
+                long grown = (long) Math.max(size, this.size) * GROWTH;
+                profiled = Math.max(size, BufferSizes.nextPowerOfTwo((int) Math.min(grown, MAX_SIZE)));
+            } else if (highWater <= SMALL_SIZE) {
+                profiled = SMALL_SIZE;
+            } else {
+                profiled = size;
+            }
+            return Math.max(profiled, BufferSizes.nextPowerOfTwo(minSize));
+        }
+    }
+
+    /**
+     * The name of a connection end in a profile: instance.port, or port for a network port
+     *
+     * @param end the connection end
+     * @return the name
+     */
+    public static String endName(Connection.End end) {
+        return end.getInstance().map(instance -> instance + "." + end.getPort()).orElse(end.getPort());
+    }
+
+    /**
+     * Read a channel profile
+     *
+     * @param path the CSV file written by a profiled execution
+     * @return the measures of each channel, by target end name
+     * @throws IOException if the file can not be read
+     */
+    public static Map<String, Entry> read(Path path) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(",");
+                if (fields.length != 5 || line.startsWith(HEADER)) {
+                    continue;
+                }
+                try {
+                    entries.merge(fields[1], new Entry(Integer.parseInt(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])),
+                            (a, b) -> new Entry(Math.max(a.size, b.size), Math.max(a.highWater, b.highWater), a.stalls + b.stalls));
+                } catch (NumberFormatException e) {
+                    // -- not a channel line
+                }
+            }
+        }
+        return entries;
+    }
+
+}
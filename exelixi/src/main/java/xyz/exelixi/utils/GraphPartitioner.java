@@ -0,0 +1,302 @@
+/*
+ * EXELIXI
+ *
+ * Copyright (C) 2017 EPFL SCI-STI-MM
+ *
+ * This file is part of EXELIXI.
+ *
+ * EXELIXI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * EXELIXI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with EXELIXI. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or
+ * an Eclipse library), containing parts covered by the terms of the
+ * Eclipse Public License (EPL), the licensors of this Program grant you
+ * additional permission to convey the resulting work.  Corresponding Source
+ * for a non-source form of such a combination shall include the source code
+ * for the parts of Eclipse libraries used as well as that of the covered work.
+ *
+ */
+package xyz.exelixi.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Balanced k-way partitioning of a weighted undirected graph by multilevel partitioning: the graph is
+ * coarsened by heavy-edge matching, the coarsest graph is partitioned greedily, and the partition is
+ * projected back level by level and refined by moving boundary vertices that reduce the edge cut.
+ *
+ * @author Endri Bezati
+ */
+public class GraphPartitioner {
+
+    /**
+     * The coarsening stops when the graph has at most this number of vertices per partition
+     */
+    private static final int COARSEST_VERTICES_PER_PART = 8;
+
+    private static final int REFINEMENT_PASSES = 8;
+
+    /**
+     * A graph level: vertex weights and weighted adjacency
+     */
+    private static class Graph {
+        final double[] weights;
+        final List<Map<Integer, Double>> edges;
+
+        Graph(double[] weights) {
+            this.weights = weights;
+            this.edges = new ArrayList<>();
+            for (int v = 0; v < weights.length; v++) {
+                edges.add(new HashMap<>());
+            }
+        }
+
+        int size() {
+            return weights.length;
+        }
+
+        void addEdge(int u, int v, double weight) {
+            if (u != v && weight > 0) {
+                edges.get(u).merge(v, weight, Double::sum);
+                edges.get(v).merge(u, weight, Double::sum);
+            }
+        }
+
+        double totalWeight() {
+            return Arrays.stream(weights).sum();
+        }
+    }
+
+    private final Graph graph;
+
+    /**
+     * Create a partitioner for a graph
+     *
+     * @param weights the weight of each vertex
+     */
+    public GraphPartitioner(double[] weights) {
+        this.graph = new Graph(weights.clone());
+    }
+
+    /**
+     * Add an edge, the weights of parallel edges are added
+     */
+    public void addEdge(int u, int v, double weight) {
+        graph.addEdge(u, v, weight);
+    }
+
+    /**
+     * Partition the graph
+     *
+     * @param parts     the number of partitions
+     * @param imbalance the tolerated load imbalance, 0.05 allows a partition 5% heavier than the average
+     * @return the partition of each vertex
+     */
+    public int[] partition(int parts, double imbalance) {
+        int n = graph.size();
+        if (parts <= 1 || n == 0) {
+            return new int[n];
+        }
+        if (parts >= n) {
+            return IntStream.range(0, n).toArray();
+        }
+
+        // -- coarsening
+        List<Graph> levels = new ArrayList<>();
+        List<int[]> maps = new ArrayList<>();
+        levels.add(graph);
+        double maxVertexWeight = graph.totalWeight() / parts;
+        while (levels.get(levels.size() - 1).size() > parts * COARSEST_VERTICES_PER_PART) {
+            Graph fine = levels.get(levels.size() - 1);
+            int[] map = new int[fine.size()];
+            Graph coarse = coarsen(fine, map, maxVertexWeight);
+            if (coarse.size() > fine.size() * 0.9) {
+                break;
+            }
+            levels.add(coarse);
+            maps.add(map);
+        }
+
+        // -- initial partition of the coarsest graph, then projection and refinement
+        Graph coarsest = levels.get(levels.size() - 1);
+        double maxLoad = graph.totalWeight() / parts * (1 + imbalance);
+        int[] partition = initialPartition(coarsest, parts, maxLoad);
+        refine(coarsest, partition, parts, maxLoad);
+        for (int level = levels.size() - 2; level >= 0; level--) {
+            Graph fine = levels.get(level);
+            int[] map = maps.get(level);
+            int[] projected = new int[fine.size()];
+            for (int v = 0; v < fine.size(); v++) {
+                projected[v] = partition[map[v]];
+            }
+            partition = projected;
+            refine(fine, partition, parts, maxLoad);
+        }
+        return partition;
+    }
+
+    /**
+     * The sum of the weights of the edges between partitions
+     */
+    public double edgeCut(int[] partition) {
+        double cut = 0;
+        for (int u = 0; u < graph.size(); u++) {
+            for (Map.Entry<Integer, Double> edge : graph.edges.get(u).entrySet()) {
+                if (partition[u] != partition[edge.getKey()]) {
+                    cut += edge.getValue();
+                }
+            }
+        }
+        return cut / 2;
+    }
+
+    /**
+     * Match every vertex with its unmatched neighbour of heaviest edge, as long as the merged vertex is
+     * not heavier than a partition should be. Vertices are visited by increasing degree, so that vertices
+     * with few neighbours find a match.
+     */
+    private static Graph coarsen(Graph fine, int[] map, double maxVertexWeight) {
+        Arrays.fill(map, -1);
+        List<Integer> order = IntStream.range(0, fine.size()).boxed()
+                .sorted(Comparator.comparingInt((Integer v) -> fine.edges.get(v).size()).thenComparing(v -> v))
+                .collect(Collectors.toList());
+        int coarseSize = 0;
+        for (int v : order) {
+            if (map[v] >= 0) {
+                continue;
+            }
+            int match = -1;
+            double heaviest = 0;
+            for (Map.Entry<Integer, Double> edge : fine.edges.get(v).entrySet()) {
+                int u = edge.getKey();
+                if (map[u] < 0 && edge.getValue() > heaviest && fine.weights[u] + fine.weights[v] <= maxVertexWeight) {
+                    match = u;
+                    heaviest = edge.getValue();
+                }
+            }
+            map[v] = coarseSize;
+            if (match >= 0) {
+                map[match] = coarseSize;
+            }
+            coarseSize++;
+        }
+
+        double[] weights = new double[coarseSize];
+        for (int v = 0; v < fine.size(); v++) {
+            weights[map[v]] += fine.weights[v];
+        }
+        Graph coarse = new Graph(weights);
+        for (int u = 0; u < fine.size(); u++) {
+            for (Map.Entry<Integer, Double> edge : fine.edges.get(u).entrySet()) {
+                if (u < edge.getKey()) {
+                    coarse.addEdge(map[u], map[edge.getKey()], edge.getValue());
+                }
+            }
+        }
+        return coarse;
+    }
+
+    /**
+     * Assign the vertices by decreasing weight to the partition they are most connected to among the
+     * partitions that can hold them, or else to the lightest partition
+     */
+    private static int[] initialPartition(Graph graph, int parts, double maxLoad) {
+        int[] partition = new int[graph.size()];
+        Arrays.fill(partition, -1);
+        double[] loads = new double[parts];
+        List<Integer> order = IntStream.range(0, graph.size()).boxed()
+                .sorted(Comparator.comparingDouble((Integer v) -> -graph.weights[v]).thenComparing(v -> v))
+                .collect(Collectors.toList());
+        for (int v : order) {
+            double[] connection = new double[parts];
+            for (Map.Entry<Integer, Double> edge : graph.edges.get(v).entrySet()) {
+                if (partition[edge.getKey()] >= 0) {
+                    connection[partition[edge.getKey()]] += edge.getValue();
+                }
+            }
+            int best = -1;
+            for (int p = 0; p < parts; p++) {
+                if (loads[p] + graph.weights[v] <= maxLoad
+                        && (best < 0 || connection[p] > connection[best] || (connection[p] == connection[best] && loads[p] < loads[best]))) {
+                    best = p;
+                }
+            }
+            if (best < 0) {
+                best = 0;
+                for (int p = 1; p < parts; p++) {
+                    if (loads[p] < loads[best]) {
+                        best = p;
+                    }
+                }
+            }
+            partition[v] = best;
+            loads[best] += graph.weights[v];
+        }
+        return partition;
+    }
+
+    /**
+     * Move the boundary vertices to the neighbouring partition that reduces the edge cut the most, as long
+     * as the target partition stays under the maximum load. A move without gain is also made if it
+     * relieves an overloaded partition.
+     */
+    private static void refine(Graph graph, int[] partition, int parts, double maxLoad) {
+        double[] loads = new double[parts];
+        for (int v = 0; v < graph.size(); v++) {
+            loads[partition[v]] += graph.weights[v];
+        }
+        for (int pass = 0; pass < REFINEMENT_PASSES; pass++) {
+            boolean moved = false;
+            for (int v = 0; v < graph.size(); v++) {
+                int from = partition[v];
+                double[] connection = new double[parts];
+                for (Map.Entry<Integer, Double> edge : graph.edges.get(v).entrySet()) {
+                    connection[partition[edge.getKey()]] += edge.getValue();
+                }
+                int best = from;
+                double bestGain = 0;
+                for (int to = 0; to < parts; to++) {
+                    if (to == from || loads[to] + graph.weights[v] > maxLoad) {
+                        continue;
+                    }
+                    double gain = connection[to] - connection[from];
+                    boolean rebalance = loads[from] > maxLoad && loads[to] + graph.weights[v] < loads[from];
+                    if (gain > bestGain || (rebalance && gain >= bestGain && best == from)) {
+                        best = to;
+                        bestGain = gain;
+                    }
+                }
+                if (best != from) {
+                    partition[v] = best;
+                    loads[from] -= graph.weights[v];
+                    loads[best] += graph.weights[v];
+                    moved = true;
+                }
+            }
+            if (!moved) {
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * EXELIXI
+ *
+ * Copyright (C) 2017 EPFL SCI-STI-MM
+ *
+ * This file is part of EXELIXI.
+ *
+ * EXELIXI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * EXELIXI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with EXELIXI. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additional permission under GNU GPL version 3 section 7
+ *
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or
+ * an Eclipse library), containing parts covered by the terms of the
+ * Eclipse Public License (EPL), the licensors of this Program grant you
+ * additional permission to convey the resulting work.  Corresponding Source
+ * for a non-source form of such a combination shall include the source code
+ * for the parts of Eclipse libraries used as well as that of the covered work.
+ *
+ */
+package xyz.exelixi.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+
+/**
+ * The placement of the network instances on pinned threads, read from a mapping file. Each line of the
+ * file is either a thread, with the CPUs it is pinned to and optionally its NUMA node, or an instance
+ * with the thread that executes it:
+ * <pre>
+ * # thread &lt;index&gt; &lt;cpus&gt; [&lt;node&gt;]
+ * thread 0 0-7 0
+ * thread 1 8-15,24 1
+ * # instance &lt;name&gt; &lt;thread&gt;
+ * instance parser 0
+ * instance decoder 1
+ * </pre>
+ * The instances that are not mapped are executed by thread 0.
+ *
+ * @author Endri Bezati
+ */
+public class ThreadMapping {
+
+    /**
+     * The number of NUMA nodes of a node mask
+     */
+    public static final int MAX_NODES = 64;
+
+    /**
+     * A pinned thread
+     */
+    public static class Thread {
+        public final int index;
+        public final List<Integer> cpus;
+        public final OptionalInt node;
+
+        public Thread(int index, List<Integer> cpus, OptionalInt node) {
+            this.index = index;
+            this.cpus = cpus;
+            this.node = node;
+        }
+    }
+
+    private final List<Thread> threads;
+    private final Map<String, Integer> instances;
+
+    public ThreadMapping(List<Thread> threads, Map<String, Integer> instances) {
+        this.threads = threads;
+        this.instances = instances;
+    }
+
+    /**
+     * The threads, ordered by index
+     */
+    public List<Thread> getThreads() {
+        return Collections.unmodifiableList(threads);
+    }
+
+    /**
+     * The thread of an instance
+     *
+     * @param instanceName the instance name
+     * @return the thread index, 0 if the instance is not mapped
+     */
+    public int threadOf(String instanceName) {
+        return instances.getOrDefault(instanceName, 0);
+    }
+
+    /**
+     * The names of the mapped instances
+     */
+    public Set<String> getInstanceNames() {
+        return Collections.unmodifiableSet(instances.keySet());
+    }
+
+    /**
+     * Read a mapping file
+     *
+     * @param path the mapping file
+     * @return the mapping
+     * @throws IOException if the file can not be read or is malformed
+     */
+    public static ThreadMapping read(Path path) throws IOException {
+        Map<Integer, Thread> threads = new HashMap<>();
+        Map<String, Integer> instances = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                String[] fields = line.replaceAll("#.*", "").trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (fields[0].equals("thread") && (fields.length == 3 || fields.length == 4)) {
+                        int index = Integer.parseInt(fields[1]);
+                        OptionalInt node = fields.length == 4 ? OptionalInt.of(Integer.parseInt(fields[3])) : OptionalInt.empty();
+                        if (node.isPresent() && (node.getAsInt() < 0 || node.getAsInt() >= MAX_NODES)) {
+                            throw new IOException(path + ":" + number + ": the node " + node.getAsInt() + " is not between 0 and " + (MAX_NODES - 1));
+                        }
+                        threads.put(index, new Thread(index, cpus(fields[2]), node));
+                    } else if (fields[0].equals("instance") && fields.length == 3) {
+                        instances.put(fields[1], Integer.parseInt(fields[2]));
+                    } else {
+                        throw new IOException(path + ":" + number + ": expected \"thread <index> <cpus> [<node>]\" or \"instance <name> <thread>\"");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + number + ": invalid number " + e.getMessage());
+                }
+            }
+        }
+
+        List<Thread> result = new ArrayList<>();
+        for (int index = 0; index < threads.size(); index++) {
+            if (!threads.containsKey(index)) {
+                throw new IOException(path + ": threads must be numbered from 0 to " + (threads.size() - 1));
+            }
+            result.add(threads.get(index));
+        }
+        if (result.isEmpty()) {
+            result.add(new Thread(0, Collections.emptyList(), OptionalInt.empty()));
+        }
+        for (Map.Entry<String, Integer> instance : instances.entrySet()) {
+            if (instance.getValue() < 0 || instance.getValue() >= result.size()) {
+                throw new IOException(path + ": instance " + instance.getKey() + " is mapped to the unknown thread " + instance.getValue());
+            }
+        }
+        return new ThreadMapping(result, instances);
+    }
+
+    /**
+     * Parse a CPU list such as 0-3,8,10-11
+     */
+    private static List<Integer> cpus(String list) {
+        List<Integer> cpus = new ArrayList<>();
+        for (String range : list.split(",")) {
+            String[] bounds = range.split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = bounds.length > 1 ? Integer.parseInt(bounds[1]) : first;
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus;
+    }
+
+}
@@ -0,0 +1,77 @@
+package xyz.exelixi.interp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.ir.QID;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Networks of test/processes run end to end by the interpreter phase, from and to binary token files
+ */
+public class ExelixiInterpreterPhaseTest {
+
+	private static final Path PROCESSES = Paths.get("..", "test", "processes");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Run a network on some bytes through its ports In and Out
+	 * @return the bytes written to Out
+	 */
+	private byte[] run(String network, byte[] input, Map<String, String> settings) throws Exception {
+		Path in = folder.newFile("in.bin").toPath();
+		Path out = folder.getRoot().toPath().resolve("out.bin");
+		Files.write(in, input);
+		Map<String, String> all = new HashMap<>(settings);
+		all.put(ExelixiInterpreterPhase.ports.getKey(), "In=" + in + ",Out=" + out);
+		FrontEnd frontEnd = new FrontEnd(PROCESSES, all);
+		CompilationTask task = frontEnd.load(QID.parse(network));
+		assertTrue("The interpreter phase reported an error", frontEnd.interpret(task));
+		return Files.readAllBytes(out);
+	}
+
+	private static byte[] bytes(int count) {
+		byte[] bytes = new byte[count];
+		for (int i = 0; i < count; i++) {
+			bytes[i] = (byte) (i * 37 + 11);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void repeatChainCopiesItsInput() throws Exception {
+		// -- a multiple of both repeat counts A and B, so that every token is read by id2
+		byte[] input = bytes(30);
+		assertArrayEquals(input, run("Repeat.IdRepeatChain", input, new HashMap<>()));
+	}
+
+	@Test
+	public void repeatChainCopiesItsInputWithTheJit() throws Exception {
+		byte[] input = bytes(30);
+		Map<String, String> settings = new HashMap<>();
+		settings.put(ExelixiInterpreterPhase.jit.getKey(), "on");
+		assertArrayEquals(input, run("Repeat.IdRepeatChain", input, settings));
+	}
+
+	@Test
+	public void repeatChainCopiesItsInputOnTwoWorkers() throws Exception {
+		// -- the network ports and id2 are stepped by the second worker, so some channels are concurrent
+		byte[] input = bytes(30);
+		Map<String, String> settings = new HashMap<>();
+		settings.put(ExelixiInterpreterPhase.workers.getKey(), "2");
+		settings.put(ExelixiInterpreterPhase.jit.getKey(), "on");
+		assertArrayEquals(input, run("Repeat.IdRepeatChain", input, settings));
+	}
+
+}
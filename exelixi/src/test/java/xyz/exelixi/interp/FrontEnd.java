@@ -0,0 +1,86 @@
+package xyz.exelixi.interp;
+
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.comp.Context;
+import se.lth.cs.tycho.ir.QID;
+import se.lth.cs.tycho.phases.Phase;
+import se.lth.cs.tycho.reporting.Diagnostic;
+import se.lth.cs.tycho.reporting.Reporter;
+import se.lth.cs.tycho.settings.Configuration;
+import se.lth.cs.tycho.settings.Setting;
+import se.lth.cs.tycho.settings.SettingsManager;
+import xyz.exelixi.Settings;
+import xyz.exelixi.frontend.FrontendLoader;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The phases of the interpreter backend that precede the interpreter phase, run on the CAL sources of a
+ * directory, with the settings of every phase.
+ */
+public final class FrontEnd {
+
+	private final ExelixiInterpreter backend = new ExelixiInterpreter();
+	private final Context context;
+
+	/**
+	 * @param sourcePath the directory of the CAL sources
+	 * @param settings the values of the other settings, by key
+	 */
+	public FrontEnd(Path sourcePath, Map<String, String> settings) throws Exception {
+		Set<Setting<?>> all = new LinkedHashSet<>(Arrays.asList(Settings.sourcePaths, Settings.orccSourcePaths, Settings.xdfSourcePaths,
+				Settings.targetPath, Settings.phaseTimer, Settings.selectedBackend, Reporter.reportingLevel, FrontendLoader.followLinks));
+		for (Phase phase : backend.getPhases()) {
+			all.addAll(phase.getPhaseSettings());
+		}
+		List<Setting<?>> list = new ArrayList<>(all);
+		Configuration.Builder builder = Configuration.builder(SettingsManager.builder().addAll(list).build());
+		builder.set(Settings.sourcePaths.getKey(), sourcePath.toString());
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			builder.set(setting.getKey(), setting.getValue());
+		}
+		Configuration configuration = builder.build();
+		Reporter reporter = Reporter.instance(configuration);
+		context = new Context(configuration, FrontendLoader.instance(configuration, reporter), reporter);
+	}
+
+	public Context getContext() {
+		return context;
+	}
+
+	/**
+	 * Compile an entity up to the interpreter phase
+	 * @param entity the name of the entity
+	 * @return the compilation task, with the elaborated network of actor machines
+	 */
+	public CompilationTask load(QID entity) {
+		CompilationTask task = new CompilationTask(Collections.emptyList(), entity, null);
+		for (Phase phase : backend.getPhases()) {
+			if (phase instanceof ExelixiInterpreterPhase) {
+				break;
+			}
+			task = phase.execute(task, context);
+			if (context.getReporter().getMessageCount(Diagnostic.Kind.ERROR) > 0) {
+				throw new AssertionError("The phase " + phase.getName() + " reported an error");
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * Run the interpreter phase on a loaded task
+	 * @return true if it did not report an error
+	 */
+	public boolean interpret(CompilationTask task) {
+		new ExelixiInterpreterPhase().execute(task, context);
+		return context.getReporter().getMessageCount(Diagnostic.Kind.ERROR) == 0;
+	}
+
+}
@@ -0,0 +1,133 @@
+package xyz.exelixi.interp.jit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.lth.cs.tycho.comp.CompilationTask;
+import se.lth.cs.tycho.comp.Context;
+import se.lth.cs.tycho.comp.SourceUnit;
+import se.lth.cs.tycho.ir.QID;
+import se.lth.cs.tycho.ir.decl.GlobalEntityDecl;
+import se.lth.cs.tycho.ir.entity.am.ActorMachine;
+import se.lth.cs.tycho.ir.network.Instance;
+import se.lth.cs.tycho.phases.attributes.Names;
+import se.lth.cs.tycho.phases.attributes.Types;
+import xyz.exelixi.interp.BasicInterpreter;
+import xyz.exelixi.interp.Channel;
+import xyz.exelixi.interp.FrontEnd;
+import xyz.exelixi.interp.LongChannel;
+import xyz.exelixi.interp.Simulator;
+import xyz.exelixi.interp.closure.ClosureActorMachineSimulator;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * An actor loaded through the front end, compiled by the {@link BytecodeCompiler} and run next to the
+ * closures of the same actor machine on the same tokens
+ */
+public class BytecodeCompilerTest {
+
+	/**
+	 * An integer actor with a parameter, state variables, guards and a multi-token input pattern
+	 */
+	private static final String SOURCE = String.join("\n",
+			"namespace Jit :",
+			"	actor Accumulate (int factor) int(size=32) In ==> int(size=32) Out :",
+			"		int sum := 0;",
+			"		int count := 0;",
+			"",
+			"		positive: action In:[x] ==> Out:[sum]",
+			"		guard x >= 0",
+			"		do",
+			"			sum := sum + factor * x;",
+			"			count := count + 1;",
+			"		end",
+			"",
+			"		pair: action In:[x, y] ==> Out:[x - y, count]",
+			"		guard x < 0",
+			"		do",
+			"			count := count + 2;",
+			"		end",
+			"	end",
+			"",
+			"	network Accumulator () int(size=32) In ==> int(size=32) Out :",
+			"		entities",
+			"			accumulate = Accumulate(factor = 3);",
+			"		structure",
+			"			In --> accumulate.In;",
+			"			accumulate.Out --> Out;",
+			"	end",
+			"end",
+			"");
+
+	private static final long[] INPUT = { 1, 2, -3, 4, 5, -6, -7, 8, 9, 10, -11 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Write the tokens to the input of a simulator, step it until it waits and read its output
+	 */
+	private static List<Long> run(Simulator simulator, LongChannel input, LongChannel.LongOutputEnd output) {
+		LongChannel.LongInputEnd writer = input.getInputEnd();
+		for (long token : INPUT) {
+			writer.writeLong(token);
+		}
+		while (simulator.step()) {
+		}
+		List<Long> tokens = new ArrayList<>();
+		while (output.tokens(1)) {
+			tokens.add(output.peekLong(0));
+			output.remove(1);
+		}
+		return tokens;
+	}
+
+	@Test
+	public void compiledActorMachineMatchesItsClosures() throws Exception {
+		Path sources = folder.newFolder("cal").toPath();
+		Files.write(sources.resolve("Jit.cal"), SOURCE.getBytes(StandardCharsets.UTF_8));
+		FrontEnd frontEnd = new FrontEnd(sources, Collections.emptyMap());
+		CompilationTask task = frontEnd.load(QID.parse("Jit.Accumulator"));
+		Context context = frontEnd.getContext();
+		Names names = context.getAttributeManager().getAttributeModule(Names.key, task);
+		Types types = context.getAttributeManager().getAttributeModule(Types.key, task);
+
+		Instance instance = task.getNetwork().getInstances().get(0);
+		GlobalEntityDecl entityDecl = task.getSourceUnits().stream()
+				.map(SourceUnit::getTree)
+				.filter(ns -> ns.getQID().equals(instance.getEntityName().getButLast()))
+				.flatMap(ns -> ns.getEntityDecls().stream())
+				.filter(decl -> decl.getName().equals(instance.getEntityName().getLast().toString()))
+				.findFirst().get();
+		ActorMachine actorMachine = (ActorMachine) entityDecl.getEntity();
+
+		LongChannel compiledInput = new LongChannel(INPUT.length);
+		LongChannel compiledOutput = new LongChannel(2 * INPUT.length);
+		LongChannel.LongOutputEnd compiledReader = (LongChannel.LongOutputEnd) compiledOutput.createOutputEnd();
+		CompiledActorMachine compiled = BytecodeCompiler.compile(actorMachine, instance, names,
+				new Channel.OutputEnd[] { compiledInput.createOutputEnd() }, new Channel.InputEnd[] { compiledOutput.getInputEnd() });
+
+		LongChannel closureInput = new LongChannel(INPUT.length);
+		LongChannel closureOutput = new LongChannel(2 * INPUT.length);
+		LongChannel.LongOutputEnd closureReader = (LongChannel.LongOutputEnd) closureOutput.createOutputEnd();
+		ClosureActorMachineSimulator closures = new ClosureActorMachineSimulator(actorMachine, instance, task, names, types,
+				new Channel.OutputEnd[] { closureInput.createOutputEnd() }, new Channel.InputEnd[] { closureOutput.getInputEnd() }, new BasicInterpreter(100));
+
+		List<Long> expected = run(closures, closureInput, closureReader);
+		assertEquals(expected, run(compiled, compiledInput, compiledReader));
+		assertEquals(closures.getFirings(), compiled.getFirings());
+		// -- 1, 2, (-3, 4), 5, (-6, -7), 8, 9, 10 and the last token waits for a second one
+		assertEquals(8, compiled.getFirings());
+		assertFalse(expected.isEmpty());
+	}
+
+}
@@ -0,0 +1,169 @@
+package xyz.exelixi.interp.jit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Methods assembled by {@link Code}, loaded and run through the verifier of the JVM
+ */
+public class CodeTest {
+
+	private static final String OBJECT = "java/lang/Object";
+	private static final int NOP = 0;
+
+	private static int counter;
+
+	private static String nextName(String simpleName) {
+		return "xyz/exelixi/interp/jit/test/" + simpleName + "_" + (++counter);
+	}
+
+	/**
+	 * A class with a default constructor
+	 */
+	private static ClassFile newClass(String name) {
+		ClassFile classFile = new ClassFile(name, OBJECT);
+		Code init = new Code(classFile, 1);
+		init.aload0();
+		init.invokeSpecial(OBJECT, "<init>", "()V");
+		init.op(Code.RETURN, 0);
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+		return classFile;
+	}
+
+	/**
+	 * Load a class and call its method int run(long) on a new instance
+	 */
+	private static int run(ClassFile classFile, String name, long argument) throws Exception {
+		Class<?> loaded = new JitClassLoader().define(name.replace('/', '.'), classFile.toByteArray());
+		Object instance = loaded.newInstance();
+		return (Integer) loaded.getMethod("run", long.class).invoke(instance, argument);
+	}
+
+	@Test
+	public void branchesAreFixedUpForwardAndBackward() throws Exception {
+		String name = nextName("Loop");
+		ClassFile classFile = newClass(name);
+		Code code = new Code(classFile, 3);
+		int sum = code.newLocal(2);
+		int i = code.newLocal(2);
+		code.pushLong(0);
+		code.lstore(sum);
+		code.pushLong(0);
+		code.lstore(i);
+		Code.Label loop = code.newLabel();
+		Code.Label end = code.newLabel();
+		code.place(loop);
+		code.lload(i);
+		code.lload(1);
+		code.op(Code.LCMP, -3);
+		code.jump(Code.IFGE, end);
+		code.lload(sum);
+		code.lload(i);
+		code.op(Code.LADD, -2);
+		code.lstore(sum);
+		code.lload(i);
+		code.pushLong(1);
+		code.op(Code.LADD, -2);
+		code.lstore(i);
+		code.jump(Code.GOTO, loop);
+		code.place(end);
+		code.lload(sum);
+		code.op(Code.L2I, -1);
+		code.op(Code.IRETURN, -1);
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "run", "(J)I", code);
+
+		assertEquals(45, run(classFile, name, 10));
+		assertEquals(0, run(classFile, name, 0));
+	}
+
+	@Test
+	public void tableSwitchIsPaddedAtEveryOffset() throws Exception {
+		for (int padding = 0; padding < 4; padding++) {
+			String name = nextName("Switch");
+			ClassFile classFile = newClass(name);
+			Code code = new Code(classFile, 3);
+			code.lload(1);
+			code.op(Code.L2I, -1);
+			for (int p = 0; p < padding; p++) {
+				code.op(NOP, 0);
+			}
+			int position = 3 + padding;
+			Code.Label[] cases = { code.newLabel(), code.newLabel(), code.newLabel() };
+			Code.Label otherwise = code.newLabel();
+			code.tableSwitch(cases, otherwise);
+			for (int c = 0; c < cases.length; c++) {
+				code.place(cases[c]);
+				code.pushInt(10 * (c + 1));
+				code.op(Code.IRETURN, -1);
+			}
+			code.place(otherwise);
+			code.pushInt(-1);
+			code.op(Code.IRETURN, -1);
+			classFile.addMethod(ClassFile.ACC_PUBLIC, "run", "(J)I", code);
+
+			// -- the operands start at the next multiple of 4: default, low 0, high 2
+			byte[] bytes = code.toByteArray();
+			assertEquals((byte) Code.TABLESWITCH, bytes[position]);
+			int operands = (position + 4) & ~3;
+			for (int b = position + 1; b < operands; b++) {
+				assertEquals(0, bytes[b]);
+			}
+			assertEquals(0, readInt(bytes, operands + 4));
+			assertEquals(cases.length - 1, readInt(bytes, operands + 8));
+
+			assertEquals(10, run(classFile, name, 0));
+			assertEquals(20, run(classFile, name, 1));
+			assertEquals(30, run(classFile, name, 2));
+			assertEquals(-1, run(classFile, name, 3));
+			assertEquals(-1, run(classFile, name, -1));
+		}
+	}
+
+	@Test
+	public void wideLocalsAreAddressed() throws Exception {
+		String name = nextName("Wide");
+		ClassFile classFile = newClass(name);
+		Code code = new Code(classFile, 3);
+		int near = code.newLocal(2);
+		int farLong = near;
+		while (farLong < 300) {
+			farLong = code.newLocal(2);
+		}
+		int farDouble = code.newLocal(2);
+		assertTrue(farLong >= 256);
+		code.pushLong(7);
+		code.lstore(near);
+		code.lload(1);
+		code.lstore(farLong);
+		code.pushDouble(2.5);
+		code.dstore(farDouble);
+		code.lload(farLong);
+		code.lload(near);
+		code.op(Code.LADD, -2);
+		code.dload(farDouble);
+		code.op(Code.D2L, 0);
+		code.op(Code.LADD, -2);
+		code.op(Code.L2I, -1);
+		code.op(Code.IRETURN, -1);
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "run", "(J)I", code);
+
+		assertEquals(farDouble + 2, code.getMaxLocals());
+		assertEquals(1009, run(classFile, name, 1000));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void inconsistentStackDepthIsRejected() {
+		Code code = new Code(newClass(nextName("Depth")), 1);
+		Code.Label label = code.newLabel();
+		code.jump(Code.GOTO, label);
+		code.pushInt(1);
+		code.jump(Code.GOTO, label);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+	}
+
+}